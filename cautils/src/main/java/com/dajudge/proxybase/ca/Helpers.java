@@ -19,19 +19,18 @@ package com.dajudge.proxybase.ca;
 
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.x500.X500Name;
-import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.bouncycastle.asn1.x509.BasicConstraints;
 import org.bouncycastle.asn1.x509.Certificate;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
 import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.X509v3CertificateBuilder;
-import org.bouncycastle.crypto.util.PrivateKeyFactory;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.operator.ContentSigner;
-import org.bouncycastle.operator.DefaultDigestAlgorithmIdentifierFinder;
-import org.bouncycastle.operator.DefaultSignatureAlgorithmIdentifierFinder;
 import org.bouncycastle.operator.OperatorCreationException;
-import org.bouncycastle.operator.bc.BcRSAContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -44,10 +43,15 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.time.temporal.TemporalAmount;
 import java.util.Date;
+import java.util.List;
 import java.util.function.Supplier;
 
+import static java.util.Collections.emptyList;
+
 public final class Helpers {
     private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+    private static final ThreadLocal<CertificateFactory> CERTIFICATE_FACTORY =
+            ThreadLocal.withInitial(() -> call(() -> CertificateFactory.getInstance("X.509", "BC")));
 
     static {
         Security.addProvider(new BouncyCastleProvider());
@@ -85,12 +89,57 @@ public final class Helpers {
             final Date notAfter,
             final boolean isTrustAnchor
     ) {
-        try {
-            final AlgorithmIdentifier sigAlgId = new DefaultSignatureAlgorithmIdentifierFinder()
-                    .find(algorithm);
-            final AlgorithmIdentifier digAlgId = new DefaultDigestAlgorithmIdentifierFinder()
-                    .find(sigAlgId);
+        return sign(
+                ownerDn,
+                issuerDn,
+                signingKey,
+                algorithm,
+                publicKey,
+                notBefore,
+                notAfter,
+                isTrustAnchor,
+                emptyList()
+        );
+    }
+
+    public static X509Certificate sign(
+            final String ownerDn,
+            final String issuerDn,
+            final PrivateKey signingKey,
+            final String algorithm,
+            final PublicKey publicKey,
+            final Date notBefore,
+            final Date notAfter,
+            final boolean isTrustAnchor,
+            final List<String> dnsNames
+    ) {
+        return sign(
+                ownerDn,
+                issuerDn,
+                contentSigner(signingKey, algorithm),
+                publicKey,
+                notBefore,
+                notAfter,
+                isTrustAnchor,
+                dnsNames
+        );
+    }
 
+    /**
+     * Signs a certificate with an existing content signer. JCA based signers can be reused for multiple
+     * certificates, but only by one thread at a time.
+     */
+    public static X509Certificate sign(
+            final String ownerDn,
+            final String issuerDn,
+            final ContentSigner signer,
+            final PublicKey publicKey,
+            final Date notBefore,
+            final Date notAfter,
+            final boolean isTrustAnchor,
+            final List<String> dnsNames
+    ) {
+        try {
             final X509v3CertificateBuilder certGenerator = new X509v3CertificateBuilder(
                     new X500Name(issuerDn),
                     BigInteger.valueOf(SECURE_RANDOM.nextInt()),
@@ -102,27 +151,37 @@ public final class Helpers {
             if (isTrustAnchor) {
                 certGenerator.addExtension(new ASN1ObjectIdentifier("2.5.29.19"), false, new BasicConstraints(true));
             }
-            final ContentSigner sigGen = new BcRSAContentSignerBuilder(sigAlgId, digAlgId)
-                    .build(PrivateKeyFactory.createKey(signingKey.getEncoded()));
-
-            final X509CertificateHolder holder = certGenerator.build(sigGen);
+            if (!dnsNames.isEmpty()) {
+                final GeneralName[] names = dnsNames.stream()
+                        .map(name -> new GeneralName(GeneralName.dNSName, name))
+                        .toArray(GeneralName[]::new);
+                certGenerator.addExtension(Extension.subjectAlternativeName, false, new GeneralNames(names));
+            }
+            final X509CertificateHolder holder = certGenerator.build(signer);
             final Certificate eeX509CertificateStructure = holder.toASN1Structure();
-            final CertificateFactory cf = CertificateFactory.getInstance("X.509", "BC");
 
             try (final InputStream stream = new ByteArrayInputStream(eeX509CertificateStructure.getEncoded())) {
-                return (X509Certificate) cf.generateCertificate(stream);
+                return (X509Certificate) CERTIFICATE_FACTORY.get().generateCertificate(stream);
             }
-        } catch (final CertificateException | IOException | OperatorCreationException | NoSuchProviderException e) {
+        } catch (final CertificateException | IOException e) {
             throw new RuntimeException("Failed to sign certificate", e);
         }
     }
 
+    public static ContentSigner contentSigner(final PrivateKey signingKey, final String algorithm) {
+        try {
+            return new JcaContentSignerBuilder(algorithm).build(signingKey);
+        } catch (final OperatorCreationException e) {
+            throw new RuntimeException("Failed to create content signer", e);
+        }
+    }
+
     public static KeyPair keyPair() {
-        return call(() -> {
-            final KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
-            kpg.initialize(2048);
-            return kpg.generateKeyPair();
-        });
+        return keyPair(KeyType.RSA_2048);
+    }
+
+    public static KeyPair keyPair(final KeyType type) {
+        return call(type::generate);
     }
 
     public static byte[] serialize(final KeyStore keyStore, final char[] password) {
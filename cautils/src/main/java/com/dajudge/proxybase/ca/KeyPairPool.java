@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.ca;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.KeyPair;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Keeps a number of pre-generated key pairs around, so issuing a certificate doesn't have to wait for key
+ * generation. The pool is refilled by a background thread; if it runs dry, key pairs are generated on the
+ * calling thread.
+ */
+public class KeyPairPool implements Supplier<KeyPair>, AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(KeyPairPool.class);
+    private final KeyType type;
+    private final BlockingQueue<KeyPair> pool;
+    private final Thread refiller;
+
+    public KeyPairPool(final KeyType type, final int capacity) {
+        this.type = type;
+        this.pool = new ArrayBlockingQueue<>(capacity);
+        this.refiller = new Thread(this::refill, "proxybase-keypair-pool-" + type.name().toLowerCase(Locale.ROOT));
+        refiller.setDaemon(true);
+        refiller.start();
+    }
+
+    @Override
+    public KeyPair get() {
+        final KeyPair pooled = pool.poll();
+        return pooled != null ? pooled : Helpers.keyPair(type);
+    }
+
+    private void refill() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                pool.put(Helpers.keyPair(type));
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final RuntimeException e) {
+            LOG.error("Failed to generate key pairs, pool will not be refilled", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        refiller.interrupt();
+    }
+}
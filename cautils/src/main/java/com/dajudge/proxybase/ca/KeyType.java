@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.ca;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+
+/**
+ * The key pair types supported for issuing certificates. EC keys are much cheaper to generate and to handshake
+ * with than RSA keys, but might not be supported by older clients.
+ */
+public enum KeyType {
+    RSA_2048("SHA256withRSA") {
+        @Override
+        KeyPairGenerator createGenerator() throws GeneralSecurityException {
+            final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            return generator;
+        }
+    },
+    EC_P256("SHA256withECDSA") {
+        @Override
+        KeyPairGenerator createGenerator() throws GeneralSecurityException {
+            final KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            return generator;
+        }
+    },
+    ED25519("Ed25519") {
+        @Override
+        KeyPairGenerator createGenerator() throws GeneralSecurityException {
+            // Java 8 has no EdDSA support of its own, so we rely on BouncyCastle here
+            return KeyPairGenerator.getInstance("Ed25519", "BC");
+        }
+    };
+
+    private final String signatureAlgorithm;
+
+    KeyType(final String signatureAlgorithm) {
+        this.signatureAlgorithm = signatureAlgorithm;
+    }
+
+    abstract KeyPairGenerator createGenerator() throws GeneralSecurityException;
+
+    KeyPair generate() throws GeneralSecurityException {
+        return createGenerator().generateKeyPair();
+    }
+
+    /**
+     * @return the signature algorithm to use for signing with keys of this type.
+     */
+    public String getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+}
@@ -20,17 +20,38 @@ package com.dajudge.proxybase.ca.selfsign;
 import com.dajudge.proxybase.ca.Helpers;
 import com.dajudge.proxybase.certs.KeyStoreManager;
 import com.dajudge.proxybase.certs.KeyStoreWrapper;
+import org.bouncycastle.operator.ContentSigner;
 
 import java.io.IOException;
 import java.security.*;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
 
+import static java.util.Collections.emptyList;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Issues certificates signed by a CA key from a key store. The decoded CA key and certificate are kept until the
+ * content of the key store changes, so issuing a certificate doesn't have to recover the key from the key store
+ * each time.
+ */
 public class CertificateAuthority {
     private final KeyStoreManager keyStoreManager;
     private final String keyAlias;
+    // Content signers aren't thread safe, but can be reused for sequential signing on the same thread
+    private final ThreadLocal<Signers> signers = ThreadLocal.withInitial(Signers::new);
+    private volatile SigningMaterial signingMaterial;
 
     public CertificateAuthority(
             final KeyStoreManager keyStoreManager,
@@ -40,17 +61,9 @@ public class CertificateAuthority {
         this.keyAlias = keyAlias;
     }
 
-
-    private PrivateKey caPrivateKey() {
-        final KeyStoreWrapper wrapper = keyStoreManager.getKeyStore();
-        final KeyStore keyStore = wrapper.getKeyStore();
-        final char[] password = wrapper.getKeyPassword();
-        return loadKey(keyStore, keyAlias, password);
-    }
-
     public KeyStore getTrustStore(final String type) {
         return Helpers.createKeyStore(keyStore -> {
-            keyStore.setCertificateEntry("ca", caCert());
+            keyStore.setCertificateEntry("ca", signingMaterial().caCert);
         }, type);
     }
 
@@ -61,20 +74,30 @@ public class CertificateAuthority {
             final Date notBefore,
             final Date notAfter,
             final String type
+    ) {
+        return createKeyStore(certificateDn, algorithm, keyPassword, notBefore, notAfter, type, Helpers::keyPair);
+    }
+
+    public KeyStore createKeyStore(
+            final String certificateDn,
+            final String algorithm,
+            final char[] keyPassword,
+            final Date notBefore,
+            final Date notAfter,
+            final String type,
+            final Supplier<KeyPair> keyPairs
     ) {
         try {
             final KeyStore keystore = KeyStore.getInstance(type);
             keystore.load(null, null);
-            final KeyPair keyPair = Helpers.keyPair();
-            final X509Certificate cert = Helpers.sign(
+            final KeyPair keyPair = keyPairs.get();
+            final X509Certificate cert = createCertificate(
                     certificateDn,
-                    caCert().getSubjectDN().getName(),
-                    caPrivateKey(),
                     algorithm,
                     keyPair.getPublic(),
                     notBefore,
                     notAfter,
-                    false
+                    emptyList()
             );
             keystore.setKeyEntry("key", keyPair.getPrivate(), keyPassword, new Certificate[]{cert});
             return keystore;
@@ -83,9 +106,138 @@ public class CertificateAuthority {
         }
     }
 
-    private X509Certificate caCert() {
+    /**
+     * Issues one key store per certificate DN, generating keys and signing in parallel on the common fork join pool.
+     * That's meant for issuing batches up front, e.g. in test setups, where using all cores is the point; pass an
+     * executor of your own when issuing at runtime, so the batch doesn't starve other users of the common pool.
+     *
+     * @return the key stores in the order of the given DNs.
+     */
+    public List<KeyStore> issue(
+            final Collection<String> certificateDns,
+            final String algorithm,
+            final char[] keyPassword,
+            final Date notBefore,
+            final Date notAfter,
+            final String type,
+            final Supplier<KeyPair> keyPairs
+    ) {
+        return issue(
+                certificateDns,
+                algorithm,
+                keyPassword,
+                notBefore,
+                notAfter,
+                type,
+                keyPairs,
+                ForkJoinPool.commonPool()
+        );
+    }
+
+    /**
+     * Issues one key store per certificate DN, generating keys and signing in parallel on the given executor.
+     *
+     * @return the key stores in the order of the given DNs.
+     */
+    public List<KeyStore> issue(
+            final Collection<String> certificateDns,
+            final String algorithm,
+            final char[] keyPassword,
+            final Date notBefore,
+            final Date notAfter,
+            final String type,
+            final Supplier<KeyPair> keyPairs,
+            final Executor executor
+    ) {
+        final List<CompletableFuture<KeyStore>> futures = certificateDns.stream()
+                .map(dn -> CompletableFuture.supplyAsync(
+                        () -> createKeyStore(dn, algorithm, keyPassword, notBefore, notAfter, type, keyPairs),
+                        executor
+                ))
+                .collect(toList());
+        try {
+            return futures.stream()
+                    .map(CompletableFuture::join)
+                    .collect(toList());
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public X509Certificate createCertificate(
+            final String certificateDn,
+            final String algorithm,
+            final PublicKey publicKey,
+            final Date notBefore,
+            final Date notAfter,
+            final List<String> dnsNames
+    ) {
+        final SigningMaterial material = signingMaterial();
+        return Helpers.sign(
+                certificateDn,
+                material.issuerDn,
+                signer(material, algorithm),
+                publicKey,
+                notBefore,
+                notAfter,
+                false,
+                dnsNames
+        );
+    }
+
+    private SigningMaterial signingMaterial() {
+        final KeyStoreWrapper keyStore = keyStoreManager.getKeyStore();
+        final SigningMaterial current = signingMaterial;
+        // Reloading yields a new wrapper even if nothing changed, so compare the content
+        if (current != null && KeyStoreWrapper.sameContent(current.keyStore, keyStore)) {
+            return current;
+        }
+        final SigningMaterial reloaded = new SigningMaterial(keyStore, keyAlias);
+        signingMaterial = reloaded;
+        return reloaded;
+    }
+
+    private ContentSigner signer(final SigningMaterial material, final String algorithm) {
+        final Signers current = signers.get();
+        if (current.material != material) {
+            // The CA key changed, the signers of the previous one are of no further use
+            current.material = material;
+            current.byAlgorithm.clear();
+        }
+        return current.byAlgorithm.computeIfAbsent(
+                algorithm,
+                it -> Helpers.contentSigner(material.caPrivateKey, it)
+        );
+    }
+
+    private static class SigningMaterial {
+        private final KeyStoreWrapper keyStore;
+        private final PrivateKey caPrivateKey;
+        private final X509Certificate caCert;
+        private final String issuerDn;
+
+        private SigningMaterial(final KeyStoreWrapper keyStore, final String keyAlias) {
+            this.keyStore = keyStore;
+            this.caPrivateKey = loadKey(keyStore.getKeyStore(), keyAlias, keyStore.getKeyPassword());
+            this.caCert = loadCert(keyStore.getKeyStore(), keyAlias);
+            this.issuerDn = caCert.getSubjectDN().getName();
+        }
+    }
+
+    /**
+     * The content signers of one thread for the signing material they were created for.
+     */
+    private static class Signers {
+        private final Map<String, ContentSigner> byAlgorithm = new HashMap<>();
+        private SigningMaterial material;
+    }
+
+    private static X509Certificate loadCert(final KeyStore keyStore, final String alias) {
         try {
-            return (X509Certificate) keyStoreManager.getKeyStore().getKeyStore().getCertificate(keyAlias);
+            return (X509Certificate) keyStore.getCertificate(alias);
         } catch (final KeyStoreException e) {
             throw new IllegalArgumentException("Failed to recover certificate from keystore", e);
         }
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.ca.selfsign;
+
+import com.dajudge.proxybase.ca.Helpers;
+import com.dajudge.proxybase.ca.KeyPairPool;
+import com.dajudge.proxybase.certs.KeyStoreWrapper;
+import org.bouncycastle.asn1.x500.X500NameBuilder;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Mints leaf certificates per hostname on background threads and keeps them in a size bounded LRU cache.
+ * Certificates are renewed ahead of their expiry, so callers on the handshake path can use
+ * {@link #getIfPresent(String)} and never wait for key generation or signing.
+ * <p>
+ * Hostnames usually come straight from the SNI extension of a client hello, so only valid LDH hostnames
+ * within the configured allowed domains are minted.
+ */
+public class CertificateMinter implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(CertificateMinter.class);
+    private static final long MIN_RENEWAL_CHECK_INTERVAL_MSECS = 1000;
+    private static final int MAX_HOSTNAME_LENGTH = 253;
+    private static final Pattern LDH_LABEL = Pattern.compile("[a-z0-9]([a-z0-9-]{0,61}[a-z0-9])?");
+
+    private final CertificateAuthority ca;
+    private final CertificateMinterConfig config;
+    private final Supplier<Long> clock;
+    private final ScheduledExecutorService executor;
+    private final Map<String, CompletableFuture<Leaf>> cache;
+    private final Supplier<KeyPair> keyPairs;
+    private final Set<String> renewing = ConcurrentHashMap.newKeySet();
+    private KeyPair sharedKeyPair;
+
+    public CertificateMinter(
+            final CertificateAuthority ca,
+            final CertificateMinterConfig config,
+            final Supplier<Long> clock
+    ) {
+        this(ca, config, clock, Helpers::keyPair);
+    }
+
+    /**
+     * @param keyPairs the source of key pairs for minted certificates, e.g. a {@link KeyPairPool}.
+     */
+    public CertificateMinter(
+            final CertificateAuthority ca,
+            final CertificateMinterConfig config,
+            final Supplier<Long> clock,
+            final Supplier<KeyPair> keyPairs
+    ) {
+        this.ca = ca;
+        this.config = config;
+        this.clock = clock;
+        this.keyPairs = keyPairs;
+        this.executor = Executors.newScheduledThreadPool(config.getThreads(), new MinterThreadFactory());
+        this.cache = new LinkedHashMap<String, CompletableFuture<Leaf>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CompletableFuture<Leaf>> eldest) {
+                return size() > config.getMaxEntries();
+            }
+        };
+        final long checkInterval = Math.max(MIN_RENEWAL_CHECK_INTERVAL_MSECS, config.getRenewBeforeMsecs() / 4);
+        executor.scheduleWithFixedDelay(this::renewExpiring, checkInterval, checkInterval, MILLISECONDS);
+    }
+
+    /**
+     * Returns the key store for the given hostname, minting it in the background if it's not cached yet. The
+     * returned future fails with an {@link IllegalArgumentException} if the hostname is not allowed.
+     */
+    public CompletableFuture<KeyStoreWrapper> mint(final String hostname) {
+        final String normalized = normalize(hostname);
+        if (!isAllowed(normalized)) {
+            final CompletableFuture<KeyStoreWrapper> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new IllegalArgumentException("Hostname not allowed: " + hostname));
+            return rejected;
+        }
+        return lookup(normalized).thenApply(Leaf::getKeyStore);
+    }
+
+    /**
+     * Returns the key store for the given hostname if it's already minted. Otherwise minting is started in the
+     * background and an empty result is returned immediately. Hostnames which are not allowed always yield an
+     * empty result.
+     */
+    public Optional<KeyStoreWrapper> getIfPresent(final String hostname) {
+        final String normalized = normalize(hostname);
+        if (!isAllowed(normalized)) {
+            LOG.debug("Not minting certificate for disallowed hostname {}", hostname);
+            return Optional.empty();
+        }
+        final CompletableFuture<Leaf> future = lookup(normalized);
+        if (!future.isDone() || future.isCompletedExceptionally()) {
+            return Optional.empty();
+        }
+        return Optional.of(future.join().getKeyStore());
+    }
+
+    private CompletableFuture<Leaf> lookup(final String hostname) {
+        final CompletableFuture<Leaf> future;
+        synchronized (cache) {
+            final CompletableFuture<Leaf> existing = cache.get(hostname);
+            if (existing != null && !isExpired(existing)) {
+                return existing;
+            }
+            future = CompletableFuture.supplyAsync(() -> issue(hostname), executor);
+            cache.put(hostname, future);
+        }
+        future.whenComplete((leaf, e) -> {
+            if (e != null) {
+                LOG.warn("Failed to mint certificate for {}", hostname, e);
+                synchronized (cache) {
+                    cache.remove(hostname, future);
+                }
+            }
+        });
+        return future;
+    }
+
+    private boolean isExpired(final CompletableFuture<Leaf> future) {
+        return future.isDone() && !future.isCompletedExceptionally() && future.join().getNotAfter() <= clock.get();
+    }
+
+    private void renewExpiring() {
+        final long renewalThreshold = clock.get() + config.getRenewBeforeMsecs();
+        final List<Map.Entry<String, CompletableFuture<Leaf>>> entries;
+        synchronized (cache) {
+            entries = new ArrayList<>(cache.entrySet());
+        }
+        entries.stream()
+                .filter(e -> e.getValue().isDone() && !e.getValue().isCompletedExceptionally())
+                .filter(e -> e.getValue().join().getNotAfter() <= renewalThreshold)
+                .filter(e -> renewing.add(e.getKey()))
+                .forEach(e -> renew(e.getKey()));
+    }
+
+    private void renew(final String hostname) {
+        CompletableFuture.supplyAsync(() -> issue(hostname), executor).whenComplete((leaf, e) -> {
+            renewing.remove(hostname);
+            if (e != null) {
+                LOG.warn("Failed to renew certificate for {}", hostname, e);
+                return;
+            }
+            synchronized (cache) {
+                // Don't resurrect entries that were evicted while the renewal was in progress
+                if (cache.containsKey(hostname)) {
+                    cache.put(hostname, CompletableFuture.completedFuture(leaf));
+                }
+            }
+        });
+    }
+
+    private Leaf issue(final String hostname) {
+        final long now = clock.get();
+        final Date notAfter = new Date(now + config.getValidityMsecs());
+        final KeyPair keyPair = config.isShareKeyPair() ? sharedKeyPair() : keyPairs.get();
+        final String dn = new X500NameBuilder(BCStyle.INSTANCE)
+                .addRDN(BCStyle.CN, hostname)
+                .build()
+                .toString();
+        final X509Certificate cert = ca.createCertificate(
+                dn,
+                config.getSignatureAlgorithm(),
+                keyPair.getPublic(),
+                new Date(now),
+                notAfter,
+                singletonList(hostname)
+        );
+        final KeyStore keyStore = Helpers.createKeyStore(it -> it.setKeyEntry(
+                "key",
+                keyPair.getPrivate(),
+                config.getKeyPassword(),
+                new Certificate[]{cert}
+        ), config.getKeyStoreType());
+        return new Leaf(new KeyStoreWrapper(keyStore, config.getKeyPassword()), notAfter.getTime());
+    }
+
+    private synchronized KeyPair sharedKeyPair() {
+        if (sharedKeyPair == null) {
+            sharedKeyPair = keyPairs.get();
+        }
+        return sharedKeyPair;
+    }
+
+    private static String normalize(final String hostname) {
+        return hostname.toLowerCase(Locale.ROOT);
+    }
+
+    private boolean isAllowed(final String hostname) {
+        return isValidHostname(hostname) && (config.getAllowedDomains().isEmpty()
+                || config.getAllowedDomains().stream().anyMatch(it -> isWithin(hostname, it)));
+    }
+
+    private static boolean isWithin(final String hostname, final String domain) {
+        return hostname.equals(domain) || hostname.endsWith("." + domain);
+    }
+
+    static boolean isValidHostname(final String hostname) {
+        if (hostname.isEmpty() || hostname.length() > MAX_HOSTNAME_LENGTH) {
+            return false;
+        }
+        for (final String label : hostname.split("\\.", -1)) {
+            if (!LDH_LABEL.matcher(label).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static class Leaf {
+        private final KeyStoreWrapper keyStore;
+        private final long notAfter;
+
+        private Leaf(final KeyStoreWrapper keyStore, final long notAfter) {
+            this.keyStore = keyStore;
+            this.notAfter = notAfter;
+        }
+
+        private KeyStoreWrapper getKeyStore() {
+            return keyStore;
+        }
+
+        private long getNotAfter() {
+            return notAfter;
+        }
+    }
+
+    private static class MinterThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "proxybase-minter-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.ca.selfsign;
+
+import java.util.List;
+import java.util.Locale;
+
+import static java.util.Collections.emptyList;
+import static java.util.stream.Collectors.toList;
+
+public class CertificateMinterConfig {
+    private final int maxEntries;
+    private final long validityMsecs;
+    private final long renewBeforeMsecs;
+    private final boolean shareKeyPair;
+    private final String signatureAlgorithm;
+    private final String keyStoreType;
+    private final char[] keyPassword;
+    private final int threads;
+    private final List<String> allowedDomains;
+
+    /**
+     * Creates a configuration which mints certificates for any valid hostname.
+     *
+     * @see #CertificateMinterConfig(int, long, long, boolean, String, String, char[], int, List)
+     */
+    public CertificateMinterConfig(
+            final int maxEntries,
+            final long validityMsecs,
+            final long renewBeforeMsecs,
+            final boolean shareKeyPair,
+            final String signatureAlgorithm,
+            final String keyStoreType,
+            final char[] keyPassword,
+            final int threads
+    ) {
+        this(
+                maxEntries,
+                validityMsecs,
+                renewBeforeMsecs,
+                shareKeyPair,
+                signatureAlgorithm,
+                keyStoreType,
+                keyPassword,
+                threads,
+                emptyList()
+        );
+    }
+
+    /**
+     * @param maxEntries         the maximum number of minted certificates to keep; the least recently used are evicted.
+     * @param validityMsecs      the validity period of a minted certificate.
+     * @param renewBeforeMsecs   how long before its expiry a cached certificate is renewed in the background.
+     * @param shareKeyPair       whether all minted certificates use the same key pair instead of a fresh one each.
+     * @param signatureAlgorithm the algorithm used for signing the certificates, e.g. {@code SHA256withRSA}.
+     * @param keyStoreType       the type of the key stores holding the minted certificates.
+     * @param keyPassword        the password protecting the private key in the minted key stores.
+     * @param threads            the number of background threads used for minting and renewal.
+     * @param allowedDomains     the domains certificates are minted for, including their subdomains; any valid
+     *                           hostname is allowed if empty.
+     */
+    public CertificateMinterConfig(
+            final int maxEntries,
+            final long validityMsecs,
+            final long renewBeforeMsecs,
+            final boolean shareKeyPair,
+            final String signatureAlgorithm,
+            final String keyStoreType,
+            final char[] keyPassword,
+            final int threads,
+            final List<String> allowedDomains
+    ) {
+        if (renewBeforeMsecs >= validityMsecs) {
+            throw new IllegalArgumentException("Renewal period must be shorter than the validity period");
+        }
+        this.maxEntries = maxEntries;
+        this.validityMsecs = validityMsecs;
+        this.renewBeforeMsecs = renewBeforeMsecs;
+        this.shareKeyPair = shareKeyPair;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.keyStoreType = keyStoreType;
+        this.keyPassword = keyPassword;
+        this.threads = threads;
+        this.allowedDomains = allowedDomains.stream()
+                .map(it -> it.toLowerCase(Locale.ROOT))
+                .collect(toList());
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getValidityMsecs() {
+        return validityMsecs;
+    }
+
+    public long getRenewBeforeMsecs() {
+        return renewBeforeMsecs;
+    }
+
+    public boolean isShareKeyPair() {
+        return shareKeyPair;
+    }
+
+    public String getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+
+    public String getKeyStoreType() {
+        return keyStoreType;
+    }
+
+    public char[] getKeyPassword() {
+        return keyPassword;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public List<String> getAllowedDomains() {
+        return allowedDomains;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.ca;
+
+import com.dajudge.proxybase.ca.selfsign.CertificateAuthority;
+import com.dajudge.proxybase.certs.KeyStoreWrapper;
+
+import java.security.KeyPair;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.Date;
+import java.util.function.Supplier;
+
+import static com.dajudge.proxybase.ca.Helpers.now;
+import static com.dajudge.proxybase.ca.Helpers.plus;
+
+/**
+ * Prints how many certificates per second can be issued for each key type, with key pairs generated on
+ * demand and taken from a {@link KeyPairPool}. Run with {@code main}, it's not part of the test suite.
+ */
+public final class CertificateIssuingBenchmark {
+    private static final long DURATION_MSECS = 5000;
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private CertificateIssuingBenchmark() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        for (final KeyType type : KeyType.values()) {
+            final CertificateAuthority ca = createCa(type);
+            report(type + " on demand", run(ca, type, () -> Helpers.keyPair(type)));
+            try (final KeyPairPool pool = new KeyPairPool(type, 256)) {
+                // Give the pool a head start, like a long running server would have
+                Thread.sleep(DURATION_MSECS);
+                report(type + " pooled", run(ca, type, pool));
+            }
+        }
+    }
+
+    private static CertificateAuthority createCa(final KeyType type) {
+        final KeyPair keyPair = Helpers.keyPair(type);
+        final Date now = now(System::currentTimeMillis);
+        final X509Certificate cert = Helpers.selfSignedCert(
+                "CN=benchmark",
+                keyPair,
+                now,
+                plus(now, Duration.ofDays(1)),
+                type.getSignatureAlgorithm(),
+                true
+        );
+        final KeyStoreWrapper keyStore = new KeyStoreWrapper(Helpers.createKeyStore(
+                it -> it.setKeyEntry("ca", keyPair.getPrivate(), PASSWORD, new Certificate[]{cert}),
+                "jks"
+        ), PASSWORD);
+        return new CertificateAuthority(() -> keyStore, "ca");
+    }
+
+    private static double run(final CertificateAuthority ca, final KeyType type, final Supplier<KeyPair> keyPairs) {
+        final long start = System.currentTimeMillis();
+        int issued = 0;
+        while (System.currentTimeMillis() - start < DURATION_MSECS) {
+            final Date now = now(System::currentTimeMillis);
+            ca.createKeyStore(
+                    "CN=leaf" + issued,
+                    type.getSignatureAlgorithm(),
+                    PASSWORD,
+                    now,
+                    plus(now, Duration.ofDays(1)),
+                    "jks",
+                    keyPairs
+            );
+            issued++;
+        }
+        return issued * 1000d / (System.currentTimeMillis() - start);
+    }
+
+    private static void report(final String name, final double certsPerSecond) {
+        System.out.printf("%-24s %10.1f certificates/s%n", name, certsPerSecond);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.ca.selfsign;
+
+import com.dajudge.proxybase.ca.Helpers;
+import com.dajudge.proxybase.ca.KeyType;
+import com.dajudge.proxybase.certs.KeyStoreWrapper;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.dajudge.proxybase.ca.Helpers.now;
+import static com.dajudge.proxybase.ca.Helpers.plus;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+public class CertificateAuthorityTest {
+    private static final char[] PASSWORD = "changeit".toCharArray();
+    private static final String ALGORITHM = KeyType.EC_P256.getSignatureAlgorithm();
+    private static final Date NOT_BEFORE = now(System::currentTimeMillis);
+    private static final Date NOT_AFTER = plus(NOT_BEFORE, Duration.ofDays(1));
+
+    private final AtomicInteger decodes = new AtomicInteger();
+
+    @Test
+    public void keeps_signing_material_while_key_store_is_unchanged() {
+        final KeyStore caKeyStore = caKeyStore("CN=ca");
+        // Every call returns a new wrapper, like a reloading key store manager does
+        final CertificateAuthority ca = new CertificateAuthority(() -> countingWrapper(reload(caKeyStore)), "ca");
+
+        ca.createCertificate("CN=first", ALGORITHM, keyPair().getPublic(), NOT_BEFORE, NOT_AFTER, asList());
+        ca.createCertificate("CN=second", ALGORITHM, keyPair().getPublic(), NOT_BEFORE, NOT_AFTER, asList());
+
+        assertEquals(1, decodes.get());
+    }
+
+    @Test
+    public void picks_up_changed_key_store() throws Exception {
+        final AtomicReference<KeyStore> caKeyStore = new AtomicReference<>(caKeyStore("CN=old"));
+        final CertificateAuthority ca = new CertificateAuthority(() -> countingWrapper(caKeyStore.get()), "ca");
+        ca.createCertificate("CN=first", ALGORITHM, keyPair().getPublic(), NOT_BEFORE, NOT_AFTER, asList());
+
+        caKeyStore.set(caKeyStore("CN=new"));
+        final X509Certificate cert = ca.createCertificate(
+                "CN=second",
+                ALGORITHM,
+                keyPair().getPublic(),
+                NOT_BEFORE,
+                NOT_AFTER,
+                asList()
+        );
+
+        assertEquals(2, decodes.get());
+        assertEquals("CN=new", cert.getIssuerX500Principal().getName());
+        cert.verify(caKeyStore.get().getCertificate("ca").getPublicKey());
+    }
+
+    @Test
+    public void signs_with_current_key_after_switching_back_and_forth() throws Exception {
+        final KeyStore first = caKeyStore("CN=first");
+        final KeyStore second = caKeyStore("CN=second");
+        final AtomicReference<KeyStore> caKeyStore = new AtomicReference<>();
+        final CertificateAuthority ca = new CertificateAuthority(() -> countingWrapper(caKeyStore.get()), "ca");
+
+        for (final KeyStore current : asList(first, second, first)) {
+            caKeyStore.set(current);
+            final X509Certificate cert = ca.createCertificate(
+                    "CN=leaf",
+                    ALGORITHM,
+                    keyPair().getPublic(),
+                    NOT_BEFORE,
+                    NOT_AFTER,
+                    asList()
+            );
+
+            cert.verify(current.getCertificate("ca").getPublicKey());
+        }
+    }
+
+    @Test
+    public void issues_key_stores_in_order_of_dns() throws Exception {
+        final KeyStore caKeyStore = caKeyStore("CN=ca");
+        final CertificateAuthority ca = new CertificateAuthority(() -> new KeyStoreWrapper(caKeyStore, PASSWORD), "ca");
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<String> dns = asList("CN=a", "CN=b", "CN=c", "CN=d", "CN=e", "CN=f");
+            final List<KeyStore> keyStores = ca.issue(
+                    dns,
+                    ALGORITHM,
+                    PASSWORD,
+                    NOT_BEFORE,
+                    NOT_AFTER,
+                    "jks",
+                    CertificateAuthorityTest::keyPair,
+                    executor
+            );
+
+            assertEquals(dns.size(), keyStores.size());
+            for (int i = 0; i < dns.size(); i++) {
+                final X509Certificate cert = (X509Certificate) keyStores.get(i).getCertificate("key");
+                assertEquals(dns.get(i), cert.getSubjectX500Principal().getName());
+                cert.verify(caKeyStore.getCertificate("ca").getPublicKey());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void propagates_issuing_failures() {
+        final KeyStore caKeyStore = caKeyStore("CN=ca");
+        final CertificateAuthority ca = new CertificateAuthority(() -> new KeyStoreWrapper(caKeyStore, PASSWORD), "ca");
+        ca.issue(asList("CN=a", "CN=b"), ALGORITHM, PASSWORD, NOT_BEFORE, NOT_AFTER, "jks", () -> {
+            throw new IllegalStateException("No keys left");
+        });
+    }
+
+    private KeyStoreWrapper countingWrapper(final KeyStore keyStore) {
+        return new KeyStoreWrapper(keyStore, PASSWORD) {
+            @Override
+            public char[] getKeyPassword() {
+                // Only needed to decode the CA key
+                decodes.incrementAndGet();
+                return super.getKeyPassword();
+            }
+        };
+    }
+
+    private static KeyStore caKeyStore(final String dn) {
+        final KeyPair keyPair = keyPair();
+        final X509Certificate cert = Helpers.selfSignedCert(dn, keyPair, NOT_BEFORE, NOT_AFTER, ALGORITHM, true);
+        return Helpers.createKeyStore(
+                it -> it.setKeyEntry("ca", keyPair.getPrivate(), PASSWORD, new Certificate[]{cert}),
+                "jks"
+        );
+    }
+
+    private static KeyStore reload(final KeyStore keyStore) {
+        return Helpers.createKeyStore(
+                it -> it.load(new ByteArrayInputStream(Helpers.serialize(keyStore, PASSWORD)), PASSWORD),
+                "jks"
+        );
+    }
+
+    private static KeyPair keyPair() {
+        return Helpers.keyPair(KeyType.EC_P256);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.ca.selfsign;
+
+import com.dajudge.proxybase.ca.Helpers;
+import com.dajudge.proxybase.ca.KeyType;
+import com.dajudge.proxybase.certs.KeyStoreWrapper;
+import org.junit.After;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.dajudge.proxybase.ca.Helpers.now;
+import static com.dajudge.proxybase.ca.Helpers.plus;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CertificateMinterTest {
+    private static final char[] PASSWORD = "changeit".toCharArray();
+    private static final String ALGORITHM = KeyType.EC_P256.getSignatureAlgorithm();
+    private static final long VALIDITY_MSECS = Duration.ofDays(1).toMillis();
+    // Short enough for the renewal check to run every second
+    private static final long RENEW_BEFORE_MSECS = 2000;
+    private static final KeyPair KEY_PAIR = Helpers.keyPair(KeyType.EC_P256);
+
+    private final AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+    private final AtomicInteger keyPairs = new AtomicInteger();
+    private final CertificateAuthority ca = certificateAuthority();
+    private CertificateMinter minter;
+
+    @After
+    public void teardown() {
+        if (minter != null) {
+            minter.close();
+        }
+    }
+
+    @Test
+    public void mints_certificate_with_hostname_in_subject_and_san() throws Exception {
+        minter = minter(16, emptyList());
+
+        final X509Certificate cert = certificate(minter.mint("Www.Example.com").join());
+
+        assertEquals("CN=www.example.com", cert.getSubjectX500Principal().getName());
+        assertEquals(1, cert.getSubjectAlternativeNames().size());
+        assertEquals(asList(2, "www.example.com"), cert.getSubjectAlternativeNames().iterator().next());
+        cert.verify(KEY_PAIR.getPublic());
+    }
+
+    @Test
+    public void caches_minted_certificates() {
+        minter = minter(16, emptyList());
+
+        final KeyStoreWrapper first = minter.mint("example.com").join();
+
+        assertSame(first, minter.mint("EXAMPLE.COM").join());
+        assertEquals(Optional.of(first), minter.getIfPresent("example.com"));
+        assertEquals(1, keyPairs.get());
+    }
+
+    @Test
+    public void evicts_least_recently_used_certificates() {
+        minter = minter(2, emptyList());
+        final KeyStoreWrapper a = minter.mint("a.example.com").join();
+        final KeyStoreWrapper b = minter.mint("b.example.com").join();
+        minter.mint("a.example.com").join();
+
+        minter.mint("c.example.com").join();
+
+        assertSame(a, minter.mint("a.example.com").join());
+        assertNotSame(b, minter.mint("b.example.com").join());
+        assertEquals(4, keyPairs.get());
+    }
+
+    @Test
+    public void reissues_expired_certificates() {
+        minter = minter(16, emptyList());
+        final KeyStoreWrapper first = minter.mint("example.com").join();
+
+        clock.addAndGet(VALIDITY_MSECS);
+
+        assertNotSame(first, minter.mint("example.com").join());
+    }
+
+    @Test
+    public void renews_certificates_ahead_of_expiry() throws InterruptedException {
+        minter = minter(16, emptyList());
+        final KeyStoreWrapper first = minter.mint("example.com").join();
+
+        clock.addAndGet(VALIDITY_MSECS - RENEW_BEFORE_MSECS);
+
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (minter.getIfPresent("example.com").orElse(null) == first) {
+            assertTrue("Certificate was not renewed", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+        assertEquals(2, keyPairs.get());
+    }
+
+    @Test
+    public void rejects_invalid_hostnames() {
+        minter = minter(16, emptyList());
+
+        assertRejected("evil.example.com,O=Evil");
+        assertRejected("-leading.example.com");
+        assertRejected("trailing-.example.com");
+        assertRejected("empty..example.com");
+        assertRejected("example.com.");
+        assertRejected("*.example.com");
+        assertRejected(label(64) + ".example.com");
+        assertRejected(label(63) + "." + label(63) + "." + label(63) + "." + label(62));
+        assertEquals(0, keyPairs.get());
+    }
+
+    @Test
+    public void mints_only_within_allowed_domains() {
+        minter = minter(16, singletonList("Example.com"));
+
+        minter.mint("example.com").join();
+        minter.mint("www.example.com").join();
+        assertRejected("example.org");
+        assertRejected("badexample.com");
+        assertEquals(2, keyPairs.get());
+    }
+
+    @Test
+    public void accepts_hostnames_up_to_maximum_length() {
+        assertTrue(CertificateMinter.isValidHostname(label(63) + "." + label(63) + "." + label(63) + "." + label(61)));
+        assertTrue(CertificateMinter.isValidHostname("xn--bcher-kva.example"));
+        assertFalse(CertificateMinter.isValidHostname(""));
+    }
+
+    private void assertRejected(final String hostname) {
+        assertEquals(Optional.empty(), minter.getIfPresent(hostname));
+        try {
+            minter.mint(hostname).join();
+            fail("Minted certificate for " + hostname);
+        } catch (final CompletionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    private CertificateMinter minter(final int maxEntries, final List<String> allowedDomains) {
+        return new CertificateMinter(
+                ca,
+                new CertificateMinterConfig(
+                        maxEntries,
+                        VALIDITY_MSECS,
+                        RENEW_BEFORE_MSECS,
+                        false,
+                        ALGORITHM,
+                        "jks",
+                        PASSWORD,
+                        1,
+                        allowedDomains
+                ),
+                clock::get,
+                () -> {
+                    keyPairs.incrementAndGet();
+                    return KEY_PAIR;
+                }
+        );
+    }
+
+    private static X509Certificate certificate(final KeyStoreWrapper keyStore) throws Exception {
+        return (X509Certificate) keyStore.getKeyStore().getCertificate("key");
+    }
+
+    private static String label(final int length) {
+        final StringBuilder label = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            label.append('a');
+        }
+        return label.toString();
+    }
+
+    private static CertificateAuthority certificateAuthority() {
+        final Date notBefore = now(System::currentTimeMillis);
+        final X509Certificate cert = Helpers.selfSignedCert(
+                "CN=ca",
+                KEY_PAIR,
+                notBefore,
+                plus(notBefore, Duration.ofDays(30)),
+                ALGORITHM,
+                true
+        );
+        final KeyStore keyStore = Helpers.createKeyStore(
+                it -> it.setKeyEntry("ca", KEY_PAIR.getPrivate(), PASSWORD, new Certificate[]{cert}),
+                "jks"
+        );
+        return new CertificateAuthority(() -> new KeyStoreWrapper(keyStore, PASSWORD), "ca");
+    }
+}
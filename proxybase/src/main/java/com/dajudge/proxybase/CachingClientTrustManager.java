@@ -0,0 +1,61 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import javax.net.ssl.X509TrustManager;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import static java.util.Arrays.stream;
+
+class CachingClientTrustManager implements X509TrustManager {
+    private final X509TrustManager[] nextManagers;
+    private final VerifiedCertificateCache verifiedCertificates;
+
+    CachingClientTrustManager(
+            final X509TrustManager[] nextManagers,
+            final VerifiedCertificateCache verifiedCertificates
+    ) {
+        this.nextManagers = nextManagers;
+        this.verifiedCertificates = verifiedCertificates;
+    }
+
+    @Override
+    public void checkClientTrusted(final X509Certificate[] chain, final String authType) throws CertificateException {
+        final String fingerprint = VerifiedCertificateCache.fingerprint(chain, authType);
+        if (verifiedCertificates.isVerified(fingerprint)) {
+            return;
+        }
+        for (final X509TrustManager nextManager : nextManagers) {
+            nextManager.checkClientTrusted(chain, authType);
+        }
+        verifiedCertificates.verified(fingerprint, chain);
+    }
+
+    @Override
+    public void checkServerTrusted(final X509Certificate[] chain, final String authType) throws CertificateException {
+        throw new CertificateException("Cannot check server certificate");
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+        return stream(nextManagers)
+                .flatMap(it -> stream(it.getAcceptedIssuers()))
+                .toArray(X509Certificate[]::new);
+    }
+}
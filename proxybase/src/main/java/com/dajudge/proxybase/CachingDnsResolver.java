@@ -0,0 +1,373 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.config.DnsResolverConfig;
+import com.dajudge.proxybase.metrics.Metrics;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.resolver.AddressResolver;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.InetNameResolver;
+import io.netty.resolver.dns.DnsCache;
+import io.netty.resolver.dns.DnsCacheEntry;
+import io.netty.resolver.dns.DnsNameResolver;
+import io.netty.resolver.dns.DnsNameResolverBuilder;
+import io.netty.resolver.dns.SequentialDnsServerAddressStreamProvider;
+import io.netty.util.NetUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import static com.dajudge.proxybase.DownstreamChannelFactory.DOWNSTREAM_DNS_CACHE_HITS;
+import static com.dajudge.proxybase.DownstreamChannelFactory.DOWNSTREAM_DNS_CACHE_MISSES;
+import static com.dajudge.proxybase.DownstreamChannelFactory.DOWNSTREAM_DNS_FAILURES;
+import static com.dajudge.proxybase.DownstreamChannelFactory.DOWNSTREAM_DNS_REFRESHES;
+import static com.dajudge.proxybase.DownstreamChannelFactory.DOWNSTREAM_DNS_RESOLVE_TIME;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Resolves host names asynchronously with Netty's DNS resolver and caches the results according to the TTL of
+ * the DNS records, failures according to the configured negative TTL. Names which are in use are resolved again
+ * in the background before they expire, so connections only wait for DNS on the first use of a name. Queries and
+ * the cache maintenance run on a single event loop; cache hits are served on the calling thread.
+ */
+class CachingDnsResolver implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(CachingDnsResolver.class);
+    private static final long REFRESH_CHECK_INTERVAL_MSECS = 1000;
+
+    private final EventLoop eventLoop;
+    private final DnsResolverConfig config;
+    private final Metrics metrics;
+    private final Supplier<Long> clock;
+    private final TtlRecorder ttls = new TtlRecorder();
+    private final DnsNameResolver resolver;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    // Only accessed on the event loop
+    private final Map<String, Promise<List<InetAddress>>> inFlight = new HashMap<>();
+    private final ScheduledFuture<?> refresher;
+    private final AddressResolverGroup<InetSocketAddress> resolverGroup = new CachedResolverGroup();
+
+    CachingDnsResolver(
+            final EventLoop eventLoop,
+            final Transport transport,
+            final DnsResolverConfig config,
+            final Metrics metrics,
+            final Supplier<Long> clock
+    ) {
+        this(eventLoop, transport, config, metrics, clock, REFRESH_CHECK_INTERVAL_MSECS);
+    }
+
+    CachingDnsResolver(
+            final EventLoop eventLoop,
+            final Transport transport,
+            final DnsResolverConfig config,
+            final Metrics metrics,
+            final Supplier<Long> clock,
+            final long refreshCheckIntervalMsecs
+    ) {
+        this.eventLoop = eventLoop;
+        this.config = config;
+        this.metrics = metrics;
+        this.clock = clock;
+        final DnsNameResolverBuilder builder = new DnsNameResolverBuilder(eventLoop)
+                .channelType(transport.datagramChannelClass())
+                .resolveCache(ttls)
+                .queryTimeoutMillis(config.getQueryTimeoutMsecs());
+        if (!config.getNameServers().isEmpty()) {
+            builder.nameServerProvider(new SequentialDnsServerAddressStreamProvider(config.getNameServers()));
+        }
+        this.resolver = builder.build();
+        this.refresher = eventLoop.scheduleWithFixedDelay(
+                this::refresh,
+                refreshCheckIntervalMsecs,
+                refreshCheckIntervalMsecs,
+                MILLISECONDS
+        );
+    }
+
+    /**
+     * @return the resolvers to hand to a {@link io.netty.bootstrap.Bootstrap} or to use directly.
+     */
+    AddressResolverGroup<InetSocketAddress> getResolverGroup() {
+        return resolverGroup;
+    }
+
+    void resolveAll(final String host, final Promise<List<InetAddress>> promise) {
+        final byte[] literal = NetUtil.createByteArrayFromIpAddressString(host);
+        if (literal != null) {
+            try {
+                promise.trySuccess(Collections.singletonList(InetAddress.getByAddress(host, literal)));
+            } catch (final UnknownHostException e) {
+                promise.tryFailure(e);
+            }
+            return;
+        }
+        final Entry entry = cache.get(host);
+        final long now = clock.get();
+        if (entry != null && now < entry.expiresAt) {
+            metrics.count(DOWNSTREAM_DNS_CACHE_HITS, 1);
+            entry.lastUsed = now;
+            entry.complete(promise);
+            return;
+        }
+        metrics.count(DOWNSTREAM_DNS_CACHE_MISSES, 1);
+        if (eventLoop.inEventLoop()) {
+            query(host, promise);
+        } else {
+            eventLoop.execute(() -> query(host, promise));
+        }
+    }
+
+    private void query(final String host, final Promise<List<InetAddress>> promise) {
+        final Future<List<InetAddress>> result = query(host);
+        result.addListener(future -> {
+            if (result.isSuccess()) {
+                promise.trySuccess(result.getNow());
+            } else {
+                promise.tryFailure(result.cause());
+            }
+        });
+    }
+
+    private Future<List<InetAddress>> query(final String host) {
+        final Promise<List<InetAddress>> pending = inFlight.get(host);
+        if (pending != null) {
+            return pending;
+        }
+        final Promise<List<InetAddress>> promise = eventLoop.newPromise();
+        inFlight.put(host, promise);
+        final long start = System.nanoTime();
+        final Future<List<InetAddress>> resolved = resolver.resolveAll(host);
+        resolved.addListener(future -> {
+            inFlight.remove(host);
+            metrics.record(DOWNSTREAM_DNS_RESOLVE_TIME, System.nanoTime() - start);
+            final Long recordedTtlSecs = ttls.take(host, inFlight.keySet());
+            final long now = clock.get();
+            if (resolved.isSuccess()) {
+                final long ttlSecs = recordedTtlSecs == null
+                        ? config.getMinTtlSecs()
+                        : Math.max(config.getMinTtlSecs(), Math.min(config.getMaxTtlSecs(), recordedTtlSecs));
+                cache.put(host, new Entry(resolved.getNow(), null, now, now + SECONDS.toMillis(ttlSecs)));
+                promise.setSuccess(resolved.getNow());
+                return;
+            }
+            LOG.debug("Failed to resolve {}", host, resolved.cause());
+            metrics.count(DOWNSTREAM_DNS_FAILURES, 1);
+            final Entry previous = cache.get(host);
+            final boolean previousValid = previous != null && previous.cause == null && now < previous.expiresAt;
+            // A failed refresh doesn't replace an address which is still valid
+            if (!previousValid && config.getNegativeTtlSecs() > 0) {
+                final long expiresAt = now + SECONDS.toMillis(config.getNegativeTtlSecs());
+                cache.put(host, new Entry(null, resolved.cause(), now, expiresAt));
+            }
+            promise.setFailure(resolved.cause());
+        });
+        return promise;
+    }
+
+    // Only called on the event loop
+    void refresh() {
+        final long now = clock.get();
+        cache.entrySet().removeIf(e -> now >= e.getValue().expiresAt);
+        cache.forEach((host, entry) -> {
+            final long ttl = entry.expiresAt - entry.created;
+            final long refreshAt = entry.expiresAt - Math.min(config.getRefreshAheadMsecs(), ttl / 2);
+            // Names which haven't been used since they were cached just expire
+            if (entry.cause == null && now >= refreshAt && entry.lastUsed > entry.created
+                    && !inFlight.containsKey(host)) {
+                metrics.count(DOWNSTREAM_DNS_REFRESHES, 1);
+                query(host);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        refresher.cancel(false);
+        resolverGroup.close();
+        resolver.close();
+    }
+
+    private class CachedResolverGroup extends AddressResolverGroup<InetSocketAddress> {
+        @Override
+        protected AddressResolver<InetSocketAddress> newResolver(final EventExecutor executor) {
+            return new CachedNameResolver(executor).asAddressResolver();
+        }
+    }
+
+    private class CachedNameResolver extends InetNameResolver {
+        private CachedNameResolver(final EventExecutor executor) {
+            super(executor);
+        }
+
+        @Override
+        protected void doResolve(final String inetHost, final Promise<InetAddress> promise) {
+            final Promise<List<InetAddress>> all = executor().newPromise();
+            all.addListener(future -> {
+                if (all.isSuccess()) {
+                    promise.trySuccess(all.getNow().get(0));
+                } else {
+                    promise.tryFailure(all.cause());
+                }
+            });
+            CachingDnsResolver.this.resolveAll(inetHost, all);
+        }
+
+        @Override
+        protected void doResolveAll(final String inetHost, final Promise<List<InetAddress>> promise) {
+            // Unqualified, this would call the inherited resolveAll(String, Promise) and recurse
+            CachingDnsResolver.this.resolveAll(inetHost, promise);
+        }
+    }
+
+    private static class Entry {
+        private final List<InetAddress> addresses;
+        private final Throwable cause;
+        private final long created;
+        private final long expiresAt;
+        private volatile long lastUsed;
+
+        private Entry(
+                final List<InetAddress> addresses,
+                final Throwable cause,
+                final long created,
+                final long expiresAt
+        ) {
+            this.addresses = addresses;
+            this.cause = cause;
+            this.created = created;
+            this.expiresAt = expiresAt;
+            this.lastUsed = created;
+        }
+
+        private void complete(final Promise<List<InetAddress>> promise) {
+            if (cause == null) {
+                promise.trySuccess(addresses);
+            } else {
+                promise.tryFailure(cause);
+            }
+        }
+    }
+
+    /**
+     * Netty's resolver reports the TTL of each record to its cache. This one only remembers the lowest TTL per
+     * name until the query has completed and never serves anything, so the caching is left to the enclosing class.
+     */
+    static class TtlRecorder implements DnsCache {
+        private final Map<String, Long> ttls = new ConcurrentHashMap<>();
+
+        /**
+         * Removes the TTLs recorded for a query and returns the lowest of them. The resolver records the name it
+         * actually found, i.e. the fully qualified name or the name expanded with a search domain. Names which
+         * belong to a longer query still in flight are left to that query.
+         */
+        Long take(final String query, final Set<String> otherQueries) {
+            Long min = null;
+            final Iterator<Map.Entry<String, Long>> it = ttls.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<String, Long> entry = it.next();
+                final String name = entry.getKey();
+                if (recordedFor(query, name) && otherQueries.stream()
+                        .noneMatch(other -> other.length() > query.length() && recordedFor(other, name))) {
+                    min = min == null ? entry.getValue() : Math.min(min, entry.getValue());
+                    it.remove();
+                }
+            }
+            return min;
+        }
+
+        private static boolean recordedFor(final String query, final String name) {
+            return name.regionMatches(true, 0, query, 0, query.length())
+                    && (name.length() == query.length() || name.charAt(query.length()) == '.');
+        }
+
+        @Override
+        public void clear() {
+            ttls.clear();
+        }
+
+        @Override
+        public boolean clear(final String hostname) {
+            return ttls.remove(hostname) != null;
+        }
+
+        @Override
+        public List<? extends DnsCacheEntry> get(final String hostname, final DnsRecord[] additionals) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public DnsCacheEntry cache(
+                final String hostname,
+                final DnsRecord[] additionals,
+                final InetAddress address,
+                final long originalTtl,
+                final EventLoop loop
+        ) {
+            ttls.merge(hostname, originalTtl, Math::min);
+            return new RecordedEntry(address, null);
+        }
+
+        @Override
+        public DnsCacheEntry cache(
+                final String hostname,
+                final DnsRecord[] additionals,
+                final Throwable cause,
+                final EventLoop loop
+        ) {
+            return new RecordedEntry(null, cause);
+        }
+    }
+
+    private static class RecordedEntry implements DnsCacheEntry {
+        private final InetAddress address;
+        private final Throwable cause;
+
+        private RecordedEntry(final InetAddress address, final Throwable cause) {
+            this.address = address;
+            this.cause = cause;
+        }
+
+        @Override
+        public InetAddress address() {
+            return address;
+        }
+
+        @Override
+        public Throwable cause() {
+            return cause;
+        }
+    }
+}
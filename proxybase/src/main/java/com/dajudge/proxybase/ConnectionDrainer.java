@@ -0,0 +1,227 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.metrics.Metrics;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.dajudge.proxybase.ProxyApplication.DRAIN_CLOSED_FORCED;
+import static com.dajudge.proxybase.ProxyApplication.DRAIN_CLOSED_IDLE;
+import static com.dajudge.proxybase.ProxyApplication.DRAIN_OPEN_CONNECTIONS;
+import static com.dajudge.proxybase.ProxyApplication.DRAIN_TIME;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Tracks the accepted upstream connections, so they can be drained on shutdown: connections which have been
+ * quiet for a while and have no pending writes are closed in parallel, and whatever is left when the deadline
+ * expires is closed forcibly. Once a connection is proxied, its downstream leg counts towards both the activity
+ * and the pending writes of the connection.
+ */
+class ConnectionDrainer {
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionDrainer.class);
+    private static final String HANDLER_NAME = ConnectionDrainer.class.getName() + "#activity";
+    private static final long FLUSH_CHECK_INTERVAL_NANOS = MILLISECONDS.toNanos(50);
+    private static final long FORCED_CLOSE_GRACE_MSECS = 1000;
+
+    private final Map<Channel, Connection> connections = new ConcurrentHashMap<>();
+    private final Metrics metrics;
+
+    ConnectionDrainer(final Metrics metrics) {
+        this.metrics = metrics;
+        metrics.gauge(DRAIN_OPEN_CONNECTIONS, connections::size);
+    }
+
+    void track(final Channel channel) {
+        final Connection connection = new Connection();
+        channel.pipeline().addFirst(HANDLER_NAME, new ActivityHandler(connection));
+        connections.put(channel, connection);
+        channel.closeFuture().addListener(future -> connections.remove(channel));
+    }
+
+    /**
+     * Attaches the downstream leg to a tracked upstream connection, so the connection is not considered idle
+     * while the downstream channel still sees traffic or has pending writes.
+     */
+    void trackDownstream(final Channel upstreamChannel, final Channel downstreamChannel) {
+        final Connection connection = connections.get(upstreamChannel);
+        if (connection == null) {
+            // Not tracked or already closed
+            return;
+        }
+        downstreamChannel.pipeline().addFirst(HANDLER_NAME, new ActivityHandler(connection));
+        connection.downstreamChannel = downstreamChannel;
+    }
+
+    /**
+     * Attaches a downstream channel shared with other upstream connections, e.g. by multiplexing, to a tracked
+     * upstream connection. Only its pending writes count towards the connection; the traffic of the connection is
+     * seen on the upstream leg anyway.
+     */
+    void trackSharedDownstream(final Channel upstreamChannel, final Channel downstreamChannel) {
+        final Connection connection = connections.get(upstreamChannel);
+        if (connection != null) {
+            connection.downstreamChannel = downstreamChannel;
+        }
+    }
+
+    /**
+     * Blocks until all tracked connections are closed or the deadline expired. Returns immediately if there are no
+     * open connections. The connections are checked for idleness on their event loops.
+     *
+     * @param quietPeriodMsecs how long a connection must not have seen any traffic to be considered idle.
+     * @param deadlineMsecs    the time after which all remaining connections are closed forcibly.
+     */
+    void drain(final long quietPeriodMsecs, final long deadlineMsecs) {
+        final long start = System.nanoTime();
+        final long deadline = start + MILLISECONDS.toNanos(deadlineMsecs);
+        final long quietPeriod = MILLISECONDS.toNanos(quietPeriodMsecs);
+        final List<Channel> channels = new ArrayList<>(connections.keySet());
+        LOG.debug("Draining {} connections", channels.size());
+        try {
+            connections.forEach((channel, connection) ->
+                    channel.eventLoop().execute(() -> closeWhenIdle(channel, connection, quietPeriod)));
+            for (final Channel channel : channels) {
+                final long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0 || !channel.closeFuture().await(remainingNanos, NANOSECONDS)) {
+                    break;
+                }
+            }
+            forceClose();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            forceClose();
+        } finally {
+            metrics.record(DRAIN_TIME, System.nanoTime() - start);
+        }
+    }
+
+    private void closeWhenIdle(final Channel channel, final Connection connection, final long quietPeriod) {
+        if (!channel.isOpen()) {
+            return;
+        }
+        final long quietNanos = System.nanoTime() - connection.lastActivity;
+        if (quietNanos < quietPeriod) {
+            recheck(channel, connection, quietPeriod, quietPeriod - quietNanos);
+        } else if (!isFlushed(channel)) {
+            recheck(channel, connection, quietPeriod, FLUSH_CHECK_INTERVAL_NANOS);
+        } else {
+            final Channel downstreamChannel = connection.downstreamChannel;
+            if (downstreamChannel == null) {
+                closeIdle(channel);
+            } else if (downstreamChannel.eventLoop().inEventLoop()) {
+                closeWhenFlushed(channel, connection, quietPeriod, downstreamChannel);
+            } else {
+                downstreamChannel.eventLoop().execute(() ->
+                        closeWhenFlushed(channel, connection, quietPeriod, downstreamChannel));
+            }
+        }
+    }
+
+    private void closeWhenFlushed(
+            final Channel channel,
+            final Connection connection,
+            final long quietPeriod,
+            final Channel downstreamChannel
+    ) {
+        if (isFlushed(downstreamChannel)) {
+            closeIdle(channel);
+        } else {
+            recheck(channel, connection, quietPeriod, FLUSH_CHECK_INTERVAL_NANOS);
+        }
+    }
+
+    private void recheck(
+            final Channel channel,
+            final Connection connection,
+            final long quietPeriod,
+            final long delayNanos
+    ) {
+        channel.eventLoop().schedule(() -> closeWhenIdle(channel, connection, quietPeriod), delayNanos, NANOSECONDS);
+    }
+
+    private void closeIdle(final Channel channel) {
+        if (channel.isOpen()) {
+            metrics.count(DRAIN_CLOSED_IDLE, 1);
+            channel.close();
+        }
+    }
+
+    /**
+     * Must be called on the event loop of the channel.
+     */
+    private static boolean isFlushed(final Channel channel) {
+        final ChannelOutboundBuffer outboundBuffer = channel.unsafe().outboundBuffer();
+        return outboundBuffer == null || outboundBuffer.totalPendingWriteBytes() == 0;
+    }
+
+    private void forceClose() {
+        // Closed channels may not have been removed yet
+        final List<Channel> remaining = connections.keySet().stream().filter(Channel::isOpen).collect(toList());
+        if (remaining.isEmpty()) {
+            return;
+        }
+        LOG.warn("Forcibly closing {} connections after drain deadline", remaining.size());
+        metrics.count(DRAIN_CLOSED_FORCED, remaining.size());
+        remaining.forEach(Channel::close);
+        final long deadline = System.nanoTime() + MILLISECONDS.toNanos(FORCED_CLOSE_GRACE_MSECS);
+        for (final Channel channel : remaining) {
+            final long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0 || !channel.closeFuture().awaitUninterruptibly(remainingNanos, NANOSECONDS)) {
+                break;
+            }
+        }
+    }
+
+    private static class Connection {
+        private volatile long lastActivity = System.nanoTime();
+        private volatile Channel downstreamChannel;
+    }
+
+    private static class ActivityHandler extends ChannelDuplexHandler {
+        private final Connection connection;
+
+        private ActivityHandler(final Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+            connection.lastActivity = System.nanoTime();
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) {
+            connection.lastActivity = System.nanoTime();
+            ctx.write(msg, promise);
+        }
+    }
+}
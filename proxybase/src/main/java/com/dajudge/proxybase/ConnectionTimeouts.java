@@ -0,0 +1,188 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.config.ConnectionTimeoutConfig;
+import com.dajudge.proxybase.metrics.Metrics;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.dajudge.proxybase.ProxyApplication.LOGGING_CONTEXT_HANDLER;
+import static com.dajudge.proxybase.ProxyChannelFactory.CONNECTION_TIMEOUT_IDLE;
+import static com.dajudge.proxybase.ProxyChannelFactory.CONNECTION_TIMEOUT_READ;
+import static com.dajudge.proxybase.ProxyChannelFactory.CONNECTION_TIMEOUT_WRITE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Closes proxy channels which exceed their idle, read or write timeout. All channels share a single
+ * {@link HashedWheelTimer}, so the timeouts cost one wheel slot per channel instead of scheduled tasks on the
+ * event loops, at the price of a precision of one tick. Each channel's timeout is only re-armed when it fires,
+ * not on every read or write.
+ */
+class ConnectionTimeouts implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionTimeouts.class);
+    private static final String HANDLER_NAME = ConnectionTimeouts.class.getName() + "#timeouts";
+    private static final long TICK_MSECS = 100;
+    private static final int TICKS_PER_WHEEL = 512;
+
+    private final long idleTimeoutNanos;
+    private final long readTimeoutNanos;
+    private final long writeTimeoutNanos;
+    private final boolean enabled;
+    private final Metrics metrics;
+    private final HashedWheelTimer timer;
+
+    ConnectionTimeouts(final ConnectionTimeoutConfig config, final Metrics metrics) {
+        this.idleTimeoutNanos = MILLISECONDS.toNanos(config.getIdleTimeoutMsecs());
+        this.readTimeoutNanos = MILLISECONDS.toNanos(config.getReadTimeoutMsecs());
+        this.writeTimeoutNanos = MILLISECONDS.toNanos(config.getWriteTimeoutMsecs());
+        this.enabled = config.isEnabled();
+        this.metrics = metrics;
+        this.timer = enabled ? new HashedWheelTimer(
+                new DefaultThreadFactory("proxybase-timeouts", true),
+                TICK_MSECS,
+                MILLISECONDS,
+                TICKS_PER_WHEEL
+        ) : null;
+    }
+
+    void apply(final Channel channel) {
+        if (enabled) {
+            channel.pipeline().addAfter(LOGGING_CONTEXT_HANDLER, HANDLER_NAME, new TimeoutHandler());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (timer != null) {
+            timer.stop();
+        }
+    }
+
+    private class TimeoutHandler extends ChannelDuplexHandler implements TimerTask {
+        private volatile long lastRead = System.nanoTime();
+        private volatile long lastWriteProgress = lastRead;
+        // Only modified on the event loop
+        private volatile int pendingWrites;
+        private Channel channel;
+        private Timeout timeout;
+        private boolean cancelled;
+
+        @Override
+        public void handlerAdded(final ChannelHandlerContext ctx) {
+            channel = ctx.channel();
+            schedule(Math.min(Math.min(positive(idleTimeoutNanos), positive(readTimeoutNanos)),
+                    positive(writeTimeoutNanos)));
+        }
+
+        @Override
+        public void handlerRemoved(final ChannelHandlerContext ctx) {
+            cancel();
+        }
+
+        @Override
+        public void channelInactive(final ChannelHandlerContext ctx) {
+            cancel();
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+            lastRead = System.nanoTime();
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) {
+            if (writeTimeoutNanos <= 0) {
+                lastWriteProgress = System.nanoTime();
+                ctx.write(msg, promise);
+                return;
+            }
+            if (pendingWrites++ == 0) {
+                lastWriteProgress = System.nanoTime();
+            }
+            final ChannelPromise tracked = promise.unvoid();
+            tracked.addListener(future -> {
+                pendingWrites--;
+                lastWriteProgress = System.nanoTime();
+            });
+            ctx.write(msg, tracked);
+        }
+
+        @Override
+        public void run(final Timeout expired) {
+            if (expired.isCancelled() || !channel.isOpen()) {
+                return;
+            }
+            final long now = System.nanoTime();
+            final long sinceRead = now - lastRead;
+            final long sinceWriteProgress = now - lastWriteProgress;
+            final long sinceActivity = Math.min(sinceRead, sinceWriteProgress);
+            if (readTimeoutNanos > 0 && sinceRead >= readTimeoutNanos) {
+                expire(CONNECTION_TIMEOUT_READ, "read");
+            } else if (writeTimeoutNanos > 0 && pendingWrites > 0 && sinceWriteProgress >= writeTimeoutNanos) {
+                expire(CONNECTION_TIMEOUT_WRITE, "write");
+            } else if (idleTimeoutNanos > 0 && sinceActivity >= idleTimeoutNanos) {
+                expire(CONNECTION_TIMEOUT_IDLE, "idle");
+            } else {
+                // Check again when the earliest of the timeouts could expire
+                final long writeRemaining = pendingWrites > 0
+                        ? writeTimeoutNanos - sinceWriteProgress
+                        : writeTimeoutNanos;
+                schedule(Math.min(Math.min(
+                        readTimeoutNanos > 0 ? readTimeoutNanos - sinceRead : Long.MAX_VALUE,
+                        writeTimeoutNanos > 0 ? writeRemaining : Long.MAX_VALUE),
+                        idleTimeoutNanos > 0 ? idleTimeoutNanos - sinceActivity : Long.MAX_VALUE
+                ));
+            }
+        }
+
+        private void expire(final String metric, final String kind) {
+            LOG.debug("Closing channel to {} after {} timeout", channel.remoteAddress(), kind);
+            metrics.count(metric, 1);
+            channel.close();
+        }
+
+        private synchronized void schedule(final long delayNanos) {
+            if (!cancelled && channel.isOpen()) {
+                timeout = timer.newTimeout(this, Math.max(0, delayNanos), NANOSECONDS);
+            }
+        }
+
+        private synchronized void cancel() {
+            cancelled = true;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+
+        private long positive(final long nanos) {
+            return nanos > 0 ? nanos : Long.MAX_VALUE;
+        }
+    }
+}
@@ -17,61 +17,174 @@
 
 package com.dajudge.proxybase;
 
+import com.dajudge.proxybase.config.DownstreamConnectConfig;
 import com.dajudge.proxybase.config.Endpoint;
+import com.dajudge.proxybase.metrics.Metrics;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.DefaultAddressResolverGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
+import static com.dajudge.proxybase.metrics.Metrics.NULL_METRICS;
+import static io.netty.channel.ChannelOption.AUTO_READ;
+import static io.netty.channel.ChannelOption.CONNECT_TIMEOUT_MILLIS;
 import static io.netty.channel.ChannelOption.SO_KEEPALIVE;
 
-public class DownstreamChannelFactory {
+public class DownstreamChannelFactory implements AutoCloseable {
+    public static final String DOWNSTREAM_CONNECT_TIME = "downstream.connect.nanos";
+    public static final String DOWNSTREAM_CONNECT_RETRIES = "downstream.connect.retries";
+    public static final String DOWNSTREAM_DNS_RESOLVE_TIME = "downstream.dns.resolve.nanos";
+    public static final String DOWNSTREAM_DNS_CACHE_HITS = "downstream.dns.cache.hits";
+    public static final String DOWNSTREAM_DNS_CACHE_MISSES = "downstream.dns.cache.misses";
+    public static final String DOWNSTREAM_DNS_FAILURES = "downstream.dns.failures";
+    public static final String DOWNSTREAM_DNS_REFRESHES = "downstream.dns.refreshes";
     private static final Logger LOG = LoggerFactory.getLogger(DownstreamChannelFactory.class);
-    private final NioEventLoopGroup workerGroup;
+    private static final ChannelHandler NO_HANDLER = new ChannelInitializer<Channel>() {
+        @Override
+        protected void initChannel(final Channel ch) {
+        }
+    };
+    private final EventLoopGroup workerGroup;
+    private final Transport transport;
+    private final DownstreamConnectConfig config;
+    private final CachingDnsResolver dnsResolver;
+    private final AddressResolverGroup<InetSocketAddress> resolverGroup;
+    private final Metrics metrics;
 
     public DownstreamChannelFactory(final NioEventLoopGroup workerGroup) {
+        this(workerGroup, Transport.NIO, DownstreamConnectConfig.defaults(), NULL_METRICS);
+    }
+
+    DownstreamChannelFactory(
+            final EventLoopGroup workerGroup,
+            final Transport transport,
+            final DownstreamConnectConfig config,
+            final Metrics metrics
+    ) {
         this.workerGroup = workerGroup;
+        this.transport = transport;
+        this.config = config;
+        if (config.getDnsResolver() != null) {
+            this.dnsResolver = new CachingDnsResolver(
+                    workerGroup.next(),
+                    transport,
+                    config.getDnsResolver(),
+                    metrics,
+                    System::currentTimeMillis
+            );
+            this.resolverGroup = dnsResolver.getResolverGroup();
+        } else {
+            this.dnsResolver = null;
+            this.resolverGroup = DefaultAddressResolverGroup.INSTANCE;
+        }
+        this.metrics = metrics;
     }
 
+    /**
+     * Connects a downstream channel and waits for it to be established, so it must not be called on an event
+     * loop.
+     */
     public Channel create(
             final Endpoint endpoint,
             final Consumer<SocketChannel> initializer
     ) {
         try {
-            LOG.debug("Creating downstream channel for {}:{}", endpoint.getHost(), endpoint.getPort());
-            final Channel channel = new Bootstrap()
-                    .group(workerGroup)
-                    .channel(NioSocketChannel.class)
-                    .option(SO_KEEPALIVE, true)
-                    .handler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        protected void initChannel(final SocketChannel ch) {
-                            initializer.accept(ch);
-                        }
-                    })
-                    .connect(endpoint.getHost(), endpoint.getPort())
-                    .sync()
-                    .channel();
-            channel.closeFuture().addListener(future -> {
-                if (future.isSuccess()) {
-                    LOG.debug("Closed downstream channel for {}:{}", endpoint.getHost(), endpoint.getPort());
-                } else {
-                    LOG.error("Failed to close downstream channel for {}:{}",
-                            endpoint.getHost(),
-                            endpoint.getPort(),
-                            future.cause());
-                }
-            });
+            final Channel channel = connect(endpoint, initializer, true).sync().getNow();
             LOG.trace("Downstream channel established: {}", endpoint);
             return channel;
         } catch (final InterruptedException e) {
             throw new RuntimeException("Failed to establish downstream channel: " + endpoint, e);
         }
     }
+
+    Future<Channel> connect(
+            final Endpoint endpoint,
+            final Consumer<SocketChannel> initializer,
+            final boolean autoRead
+    ) {
+        return connect(endpoint, initializer, autoRead, config.getConnectTimeoutMsecs());
+    }
+
+    /**
+     * Connects a downstream channel without waiting for the connection to be established. The initializer is
+     * only applied to the channel which wins the race between the addresses of the endpoint, right before the
+     * returned future completes.
+     *
+     * @param autoRead            whether the channel should start reading right away.
+     * @param connectTimeoutMsecs the timeout of each connection attempt.
+     */
+    Future<Channel> connect(
+            final Endpoint endpoint,
+            final Consumer<SocketChannel> initializer,
+            final boolean autoRead,
+            final int connectTimeoutMsecs
+    ) {
+        LOG.debug("Creating downstream channel for {}:{}", endpoint.getHost(), endpoint.getPort());
+        final EventLoop eventLoop = workerGroup.next();
+        final Bootstrap bootstrap = new Bootstrap()
+                .group(eventLoop)
+                .channel(transport.channelClass())
+                .option(SO_KEEPALIVE, true)
+                .option(AUTO_READ, false)
+                .option(CONNECT_TIMEOUT_MILLIS, connectTimeoutMsecs)
+                .handler(NO_HANDLER);
+        final Future<Channel> connected = new DownstreamConnect(
+                endpoint,
+                eventLoop,
+                bootstrap,
+                resolverGroup.getResolver(eventLoop),
+                config,
+                metrics
+        ).start();
+        final Promise<Channel> initialized = eventLoop.newPromise();
+        connected.addListener(future -> {
+            if (!connected.isSuccess()) {
+                initialized.setFailure(connected.cause());
+                return;
+            }
+            final Channel channel = connected.getNow();
+            channel.closeFuture().addListener(closed -> LOG.debug(
+                    "Closed downstream channel for {}:{}",
+                    endpoint.getHost(),
+                    endpoint.getPort()
+            ));
+            try {
+                initializer.accept((SocketChannel) channel);
+            } catch (final RuntimeException e) {
+                channel.close();
+                initialized.setFailure(e);
+                return;
+            }
+            // The channel became active before its handlers were added
+            channel.pipeline().fireChannelActive();
+            channel.config().setAutoRead(autoRead);
+            initialized.setSuccess(channel);
+        });
+        return initialized;
+    }
+
+    void schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        workerGroup.schedule(task, delay, unit);
+    }
+
+    @Override
+    public void close() {
+        if (dnsResolver != null) {
+            dnsResolver.close();
+        }
+    }
 }
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.config.DownstreamPoolConfig;
+import com.dajudge.proxybase.config.Endpoint;
+import com.dajudge.proxybase.metrics.Metrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static com.dajudge.proxybase.ProxyChannelFactory.DOWNSTREAM_POOL_CONNECT_FAILURES;
+import static com.dajudge.proxybase.ProxyChannelFactory.DOWNSTREAM_POOL_EVICTIONS;
+import static com.dajudge.proxybase.ProxyChannelFactory.DOWNSTREAM_POOL_HITS;
+import static com.dajudge.proxybase.ProxyChannelFactory.DOWNSTREAM_POOL_MISSES;
+import static com.dajudge.proxybase.ProxyChannelFactory.DOWNSTREAM_POOL_TIME_TO_READY;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Keeps a number of connected (and, if the warm-up adds an {@link SslHandler}, handshaken) downstream channels
+ * for an endpoint, so new upstream connections don't have to wait for the downstream connection to be
+ * established. Pooled channels keep reading, so a close by the downstream server is noticed right away, but
+ * anything they receive is held back until they're handed out. The pool is refilled asynchronously whenever a
+ * channel is handed out, closed by the downstream server or evicted after the maximum idle time.
+ */
+class DownstreamChannelPool implements AutoCloseable {
+    private static final String HOLDING_HANDLER = DownstreamChannelPool.class.getName() + "#holding";
+    private static final Logger LOG = LoggerFactory.getLogger(DownstreamChannelPool.class);
+    private static final long RETRY_DELAY_SECS = 1;
+    private static final int MAX_HELD_BYTES = 64 * 1024;
+
+    private final Endpoint endpoint;
+    private final DownstreamPoolConfig config;
+    private final DownstreamChannelFactory channelFactory;
+    private final Consumer<Channel> warmup;
+    private final Metrics metrics;
+    private final Deque<PooledChannel> ready = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger connecting = new AtomicInteger();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    DownstreamChannelPool(
+            final Endpoint endpoint,
+            final DownstreamPoolConfig config,
+            final DownstreamChannelFactory channelFactory,
+            final Consumer<Channel> warmup,
+            final Metrics metrics
+    ) {
+        this.endpoint = endpoint;
+        this.config = config;
+        this.channelFactory = channelFactory;
+        this.warmup = warmup;
+        this.metrics = metrics;
+        fill();
+    }
+
+    /**
+     * @return a ready channel, or {@code null} if the pool is empty. The channel's pipeline must be set up on its
+     * event loop and {@link #activate(Channel)} must be called afterwards to start relaying.
+     */
+    SocketChannel acquire() {
+        try {
+            final long minCreated = System.nanoTime() - MILLISECONDS.toNanos(config.getMaxIdleMsecs());
+            PooledChannel candidate;
+            while ((candidate = ready.pollFirst()) != null) {
+                if (candidate.channel.isActive() && candidate.created >= minCreated) {
+                    metrics.count(DOWNSTREAM_POOL_HITS, 1);
+                    return candidate.channel;
+                }
+                candidate.channel.close();
+            }
+            metrics.count(DOWNSTREAM_POOL_MISSES, 1);
+            return null;
+        } finally {
+            fill();
+        }
+    }
+
+    void warmup(final Channel channel) {
+        warmup.accept(channel);
+    }
+
+    /**
+     * Brings the handlers added on hand-out up to date with the channel, like they would have been if they had been
+     * added before connecting: they see {@code channelActive}, the completed SSL handshake (if the warm-up added an
+     * {@link SslHandler}) and anything received while the channel was pooled. Then starts reading.
+     */
+    static void activate(final Channel channel) {
+        if (!channel.eventLoop().inEventLoop()) {
+            channel.eventLoop().execute(() -> activate(channel));
+            return;
+        }
+        final ChannelHandlerContext holdingContext = channel.pipeline().context(HOLDING_HANDLER);
+        if (holdingContext == null) {
+            // Closed in the meantime
+            return;
+        }
+        holdingContext.fireChannelActive();
+        if (channel.pipeline().get(SslHandler.class) != null) {
+            // Pooled channels are only handed out after a successful handshake
+            holdingContext.fireUserEventTriggered(SslHandshakeCompletionEvent.SUCCESS);
+        }
+        channel.pipeline().remove(HOLDING_HANDLER);
+        channel.config().setAutoRead(true);
+    }
+
+    private void fill() {
+        while (!closed.get()) {
+            final int current = connecting.get();
+            if (current + ready.size() >= config.getSize()) {
+                return;
+            }
+            if (connecting.compareAndSet(current, current + 1)) {
+                connect();
+            }
+        }
+    }
+
+    private void connect() {
+        final long start = System.nanoTime();
+        final Future<Channel> connectFuture = channelFactory.connect(endpoint, ch -> {
+            warmup.accept(ch);
+            ch.pipeline().addLast(HOLDING_HANDLER, new HoldingHandler());
+        }, false);
+        connectFuture.addListener(connected -> {
+            if (!connected.isSuccess()) {
+                onFailure(connected.cause());
+                return;
+            }
+            final SocketChannel channel = (SocketChannel) connectFuture.getNow();
+            final SslHandler sslHandler = channel.pipeline().get(SslHandler.class);
+            if (sslHandler == null) {
+                onReady(channel, start);
+            } else {
+                // The handshake needs to read even though auto read is off
+                channel.read();
+                sslHandler.handshakeFuture().addListener(handshake -> {
+                    if (handshake.isSuccess()) {
+                        onReady(channel, start);
+                    } else {
+                        channel.close();
+                        onFailure(handshake.cause());
+                    }
+                });
+            }
+        });
+    }
+
+    private void onReady(final SocketChannel channel, final long start) {
+        final PooledChannel pooled = new PooledChannel(channel);
+        ready.addLast(pooled);
+        channel.closeFuture().addListener(future -> {
+            if (ready.remove(pooled)) {
+                LOG.debug("Pooled downstream channel to {} was closed", endpoint);
+                fill();
+            }
+        });
+        channel.eventLoop().schedule(() -> evict(pooled), config.getMaxIdleMsecs(), MILLISECONDS);
+        channel.config().setAutoRead(true);
+        connecting.decrementAndGet();
+        metrics.record(DOWNSTREAM_POOL_TIME_TO_READY, System.nanoTime() - start);
+        if (closed.get()) {
+            channel.close();
+        }
+    }
+
+    private void evict(final PooledChannel pooled) {
+        if (ready.remove(pooled)) {
+            metrics.count(DOWNSTREAM_POOL_EVICTIONS, 1);
+            pooled.channel.close();
+            fill();
+        }
+    }
+
+    private void onFailure(final Throwable cause) {
+        LOG.warn("Failed to pre-connect downstream channel to {}", endpoint, cause);
+        metrics.count(DOWNSTREAM_POOL_CONNECT_FAILURES, 1);
+        // Don't retry in a tight loop while the endpoint is unreachable
+        channelFactory.schedule(() -> {
+            connecting.decrementAndGet();
+            fill();
+        }, RETRY_DELAY_SECS, SECONDS);
+    }
+
+    @Override
+    public void close() {
+        closed.set(true);
+        PooledChannel pooled;
+        while ((pooled = ready.pollFirst()) != null) {
+            pooled.channel.close();
+        }
+    }
+
+    /**
+     * Holds back inbound messages received while the channel is pooled, e.g. a server greeting, until the
+     * handlers added on hand-out are in place. A channel which receives more than a greeting is closed.
+     */
+    private static class HoldingHandler extends ChannelInboundHandlerAdapter {
+        private final Queue<Object> held = new ArrayDeque<>();
+        private int heldBytes;
+
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+            held.add(msg);
+            if (msg instanceof ByteBuf) {
+                heldBytes += ((ByteBuf) msg).readableBytes();
+            }
+            if (heldBytes > MAX_HELD_BYTES) {
+                LOG.warn("Closing pooled downstream channel which received more than {} bytes", MAX_HELD_BYTES);
+                ctx.close();
+            }
+        }
+
+        @Override
+        public void handlerRemoved(final ChannelHandlerContext ctx) {
+            final boolean fire = ctx.channel().isActive() && !held.isEmpty();
+            Object msg;
+            while ((msg = held.poll()) != null) {
+                if (fire) {
+                    ctx.fireChannelRead(msg);
+                } else {
+                    ReferenceCountUtil.release(msg);
+                }
+            }
+            if (fire) {
+                ctx.fireChannelReadComplete();
+            }
+        }
+    }
+
+    private static class PooledChannel {
+        private final SocketChannel channel;
+        private final long created = System.nanoTime();
+
+        private PooledChannel(final SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.config.DownstreamConnectConfig;
+import com.dajudge.proxybase.config.Endpoint;
+import com.dajudge.proxybase.metrics.Metrics;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.EventLoop;
+import io.netty.resolver.AddressResolver;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.dajudge.proxybase.DownstreamChannelFactory.DOWNSTREAM_CONNECT_RETRIES;
+import static com.dajudge.proxybase.DownstreamChannelFactory.DOWNSTREAM_CONNECT_TIME;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Connects to one of the addresses of an endpoint, racing the addresses as described in RFC 8305 ("Happy
+ * Eyeballs v2"): the addresses are interleaved by family and a new attempt is started whenever the previous one
+ * failed or didn't succeed within the attempt delay. The first established connection wins, the others are
+ * closed. If all addresses fail, the endpoint is resolved again and retried with a jittered exponential backoff.
+ * All state is confined to the event loop of the connection.
+ */
+class DownstreamConnect {
+    private static final Logger LOG = LoggerFactory.getLogger(DownstreamConnect.class);
+
+    private final Endpoint endpoint;
+    private final EventLoop eventLoop;
+    private final Bootstrap bootstrap;
+    private final AddressResolver<InetSocketAddress> resolver;
+    private final DownstreamConnectConfig config;
+    private final Metrics metrics;
+    private final Promise<Channel> promise;
+    private final long start = System.nanoTime();
+    private final List<ChannelFuture> pending = new ArrayList<>();
+    private List<InetSocketAddress> addresses;
+    private int nextAddress;
+    private int retries;
+    private ScheduledFuture<?> attemptTimer;
+
+    DownstreamConnect(
+            final Endpoint endpoint,
+            final EventLoop eventLoop,
+            final Bootstrap bootstrap,
+            final AddressResolver<InetSocketAddress> resolver,
+            final DownstreamConnectConfig config,
+            final Metrics metrics
+    ) {
+        this.endpoint = endpoint;
+        this.eventLoop = eventLoop;
+        this.bootstrap = bootstrap;
+        this.resolver = resolver;
+        this.config = config;
+        this.metrics = metrics;
+        this.promise = eventLoop.newPromise();
+    }
+
+    /**
+     * @return a future completed with the connected channel.
+     */
+    Future<Channel> start() {
+        eventLoop.execute(this::resolve);
+        return promise;
+    }
+
+    private void resolve() {
+        final Future<List<InetSocketAddress>> resolved = resolver.resolveAll(
+                InetSocketAddress.createUnresolved(endpoint.getHost(), endpoint.getPort())
+        );
+        resolved.addListener(future -> {
+            if (!resolved.isSuccess()) {
+                allAttemptsFailed(resolved.cause());
+            } else if (resolved.getNow().isEmpty()) {
+                allAttemptsFailed(new UnknownHostException(endpoint.getHost()));
+            } else {
+                addresses = interleaveFamilies(resolved.getNow());
+                nextAddress = 0;
+                startNextAttempt();
+            }
+        });
+    }
+
+    private void startNextAttempt() {
+        cancelAttemptTimer();
+        if (promise.isDone() || nextAddress >= addresses.size()) {
+            return;
+        }
+        final InetSocketAddress address = addresses.get(nextAddress++);
+        LOG.trace("Connecting to {} at {}", endpoint, address);
+        final ChannelFuture attempt = bootstrap.connect(address);
+        pending.add(attempt);
+        attempt.addListener(future -> onAttemptDone(attempt, address));
+        if (nextAddress < addresses.size() && !attempt.isDone()) {
+            attemptTimer = eventLoop.schedule(this::startNextAttempt, config.getAttemptDelayMsecs(), MILLISECONDS);
+        }
+    }
+
+    private void onAttemptDone(final ChannelFuture attempt, final InetSocketAddress address) {
+        pending.remove(attempt);
+        if (promise.isDone()) {
+            attempt.channel().close();
+            return;
+        }
+        if (attempt.isSuccess()) {
+            cancelAttemptTimer();
+            final List<ChannelFuture> losers = new ArrayList<>(pending);
+            pending.clear();
+            losers.forEach(loser -> loser.channel().close());
+            metrics.record(DOWNSTREAM_CONNECT_TIME, System.nanoTime() - start);
+            promise.setSuccess(attempt.channel());
+            return;
+        }
+        // The channel has no remote address if the connect failed
+        LOG.debug("Failed to connect to {} at {}", endpoint, address, attempt.cause());
+        attempt.channel().close();
+        if (nextAddress < addresses.size()) {
+            // Don't wait for the attempt delay once the current attempt failed
+            startNextAttempt();
+        } else if (pending.isEmpty()) {
+            allAttemptsFailed(attempt.cause());
+        }
+    }
+
+    private void allAttemptsFailed(final Throwable cause) {
+        if (retries >= config.getMaxRetries()) {
+            promise.tryFailure(cause);
+            return;
+        }
+        final long delay = backoff(retries++);
+        LOG.debug("Retrying to connect to {} in {}ms", endpoint, delay, cause);
+        metrics.count(DOWNSTREAM_CONNECT_RETRIES, 1);
+        eventLoop.schedule(this::resolve, delay, MILLISECONDS);
+    }
+
+    private long backoff(final int retry) {
+        final long exponential = config.getRetryBackoffMsecs() << Math.min(retry, 30);
+        final long delay = Math.min(config.getMaxRetryBackoffMsecs(), Math.max(0, exponential));
+        // Jitter, so clients failing at the same time don't all retry at the same time
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private void cancelAttemptTimer() {
+        if (attemptTimer != null) {
+            attemptTimer.cancel(false);
+            attemptTimer = null;
+        }
+    }
+
+    /**
+     * Alternates between address families, starting with the family of the first address, so the ordering of the
+     * system's resolver (RFC 6724) decides which family is preferred.
+     */
+    static List<InetSocketAddress> interleaveFamilies(final List<InetSocketAddress> addresses) {
+        final boolean preferV6 = isV6(addresses.get(0));
+        final List<InetSocketAddress> preferred = new ArrayList<>();
+        final List<InetSocketAddress> other = new ArrayList<>();
+        for (final InetSocketAddress address : addresses) {
+            (isV6(address) == preferV6 ? preferred : other).add(address);
+        }
+        final List<InetSocketAddress> result = new ArrayList<>(addresses.size());
+        for (int i = 0; i < Math.max(preferred.size(), other.size()); i++) {
+            if (i < preferred.size()) {
+                result.add(preferred.get(i));
+            }
+            if (i < other.size()) {
+                result.add(other.get(i));
+            }
+        }
+        return result;
+    }
+
+    private static boolean isV6(final InetSocketAddress address) {
+        return address.getAddress() instanceof Inet6Address;
+    }
+}
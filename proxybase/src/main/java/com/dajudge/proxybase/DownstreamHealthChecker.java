@@ -0,0 +1,179 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.config.Endpoint;
+import com.dajudge.proxybase.config.HealthCheckConfig;
+import com.dajudge.proxybase.metrics.Metrics;
+import io.netty.channel.Channel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * Probes a set of downstream endpoints periodically and ejects endpoints after a number of consecutive failures,
+ * counting both failed probes and failed proxied connections. An ejected endpoint is not used for new
+ * connections until the ejection period is over; a successful probe or connection afterwards closes the circuit
+ * again, another failure re-ejects it right away.
+ */
+public class DownstreamHealthChecker implements AutoCloseable {
+    public static final String DOWNSTREAM_HEALTH_PROBES_FAILED = "downstream.health.probes.failed";
+    public static final String DOWNSTREAM_HEALTH_EJECTIONS = "downstream.health.ejections";
+    public static final String DOWNSTREAM_HEALTH_REJECTED = "downstream.health.rejected";
+    public static final String DOWNSTREAM_HEALTH_EJECTED = "downstream.health.ejected";
+    private static final Logger LOG = LoggerFactory.getLogger(DownstreamHealthChecker.class);
+
+    private final Map<Endpoint, Health> health;
+    private final HealthCheckConfig config;
+    private final DownstreamChannelFactory channelFactory;
+    private final Consumer<Channel> probeInitializer;
+    private final Metrics metrics;
+    private final Supplier<Long> clock;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    DownstreamHealthChecker(
+            final Collection<Endpoint> endpoints,
+            final HealthCheckConfig config,
+            final DownstreamChannelFactory channelFactory,
+            final Consumer<Channel> probeInitializer,
+            final Metrics metrics,
+            final Supplier<Long> clock
+    ) {
+        this.health = endpoints.stream().distinct().collect(toMap(identity(), ep -> new Health()));
+        this.config = config;
+        this.channelFactory = channelFactory;
+        this.probeInitializer = probeInitializer;
+        this.metrics = metrics;
+        this.clock = clock;
+        metrics.gauge(DOWNSTREAM_HEALTH_EJECTED, () -> health.keySet().stream()
+                .filter(ep -> !isAvailable(ep))
+                .count());
+        health.keySet().forEach(this::scheduleProbe);
+    }
+
+    /**
+     * @return {@code false} while the endpoint is ejected, {@code true} otherwise, also for endpoints which are
+     * not checked by this instance.
+     */
+    public boolean isAvailable(final Endpoint endpoint) {
+        final Health endpointHealth = health.get(endpoint);
+        return endpointHealth == null || clock.get() >= endpointHealth.ejectedUntil;
+    }
+
+    void reportSuccess(final Endpoint endpoint) {
+        final Health endpointHealth = health.get(endpoint);
+        if (endpointHealth != null) {
+            endpointHealth.consecutiveFailures.set(0);
+        }
+    }
+
+    void reportFailure(final Endpoint endpoint) {
+        final Health endpointHealth = health.get(endpoint);
+        if (endpointHealth == null) {
+            return;
+        }
+        final int failures = endpointHealth.consecutiveFailures.incrementAndGet();
+        final long now = clock.get();
+        // Only the failure that reaches the threshold ejects, concurrent ones just add to the count
+        if (failures == config.getFailureThreshold()
+                || (failures > config.getFailureThreshold() && now >= endpointHealth.ejectedUntil)) {
+            endpointHealth.ejectedUntil = now + config.getEjectionMsecs();
+            metrics.count(DOWNSTREAM_HEALTH_EJECTIONS, 1);
+            LOG.warn("Ejecting downstream endpoint {} for {}ms after {} consecutive failures",
+                    endpoint, config.getEjectionMsecs(), failures);
+        }
+    }
+
+    void reportRejected() {
+        metrics.count(DOWNSTREAM_HEALTH_REJECTED, 1);
+    }
+
+    private void scheduleProbe(final Endpoint endpoint) {
+        if (!closed.get()) {
+            channelFactory.schedule(() -> probe(endpoint), config.getIntervalMsecs(), MILLISECONDS);
+        }
+    }
+
+    private void probe(final Endpoint endpoint) {
+        if (closed.get()) {
+            return;
+        }
+        final Future<Channel> connectFuture = channelFactory.connect(endpoint, ch -> {
+            probeInitializer.accept(ch);
+            final SslHandler sslHandler = ch.pipeline().get(SslHandler.class);
+            if (sslHandler != null) {
+                sslHandler.setHandshakeTimeoutMillis(config.getTimeoutMsecs());
+            }
+        }, true, config.getTimeoutMsecs());
+        connectFuture.addListener(connected -> {
+            if (!connected.isSuccess()) {
+                onProbeFailed(endpoint, connected.cause());
+                return;
+            }
+            final Channel channel = connectFuture.getNow();
+            final SslHandler sslHandler = channel.pipeline().get(SslHandler.class);
+            if (sslHandler == null) {
+                onProbeSucceeded(endpoint, channel);
+                return;
+            }
+            sslHandler.handshakeFuture().addListener(handshake -> {
+                if (handshake.isSuccess()) {
+                    onProbeSucceeded(endpoint, channel);
+                } else {
+                    channel.close();
+                    onProbeFailed(endpoint, handshake.cause());
+                }
+            });
+        });
+    }
+
+    private void onProbeSucceeded(final Endpoint endpoint, final Channel channel) {
+        channel.close();
+        reportSuccess(endpoint);
+        scheduleProbe(endpoint);
+    }
+
+    private void onProbeFailed(final Endpoint endpoint, final Throwable cause) {
+        LOG.debug("Health probe of downstream endpoint {} failed", endpoint, cause);
+        metrics.count(DOWNSTREAM_HEALTH_PROBES_FAILED, 1);
+        reportFailure(endpoint);
+        scheduleProbe(endpoint);
+    }
+
+    @Override
+    public void close() {
+        closed.set(true);
+    }
+
+    private static class Health {
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile long ejectedUntil;
+    }
+}
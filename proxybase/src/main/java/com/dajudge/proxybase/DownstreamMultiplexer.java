@@ -0,0 +1,301 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.config.Endpoint;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static com.dajudge.proxybase.ProxyApplication.LOGGING_CONTEXT_HANDLER;
+
+/**
+ * Funnels the requests of many upstream connections into a fixed number of downstream channels to one endpoint.
+ * Each upstream connection is pinned to one downstream channel, so its responses keep the order of its requests.
+ * Correlation IDs are rewritten to be unique per downstream channel and mapped back on the way up.
+ * <p>
+ * Writability is propagated in both directions: the upstream connections of a downstream channel stop reading
+ * while it is not writable, and the downstream channel stops reading while one of its upstream connections is
+ * not writable. A slow client therefore holds back the responses of the clients it shares its downstream
+ * channel with, instead of buffering them without bounds.
+ */
+class DownstreamMultiplexer<T extends AbstractChunkedMessage> implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(DownstreamMultiplexer.class);
+
+    private final Endpoint endpoint;
+    private final DownstreamChannelFactory channelFactory;
+    private final MultiplexingCodec<T> codec;
+    private final Consumer<Channel> downstreamInitializer;
+    private final Consumer<Future<Channel>> connectListener;
+    private final Session[] sessions;
+    private final AtomicInteger nextSlot = new AtomicInteger();
+    private boolean closed;
+
+    DownstreamMultiplexer(
+            final Endpoint endpoint,
+            final DownstreamChannelFactory channelFactory,
+            final MultiplexingCodec<T> codec,
+            final Consumer<Channel> downstreamInitializer,
+            final int downstreamConnections,
+            final Consumer<Future<Channel>> connectListener
+    ) {
+        this.endpoint = endpoint;
+        this.channelFactory = channelFactory;
+        this.codec = codec;
+        this.downstreamInitializer = downstreamInitializer;
+        this.connectListener = connectListener;
+        this.sessions = new Session[downstreamConnections];
+    }
+
+    /**
+     * Pins the upstream channel to a downstream channel. The upstream channel does not read until the downstream
+     * channel is connected, so this does not block and can be called on the event loop of the upstream channel.
+     *
+     * @param upstreamInitializer sets up the pipeline of the upstream channel in front of the multiplexing handler.
+     * @return the downstream channel the upstream channel is pinned to, once it's connected.
+     */
+    Future<Channel> attach(final Channel upstreamChannel, final Consumer<Channel> upstreamInitializer) {
+        final Session session = nextSession();
+        upstreamChannel.config().setAutoRead(false);
+        upstreamChannel.pipeline().addFirst(
+                LOGGING_CONTEXT_HANDLER,
+                new LoggingContextHandler(UUID.randomUUID().toString(), "upstream")
+        );
+        upstreamInitializer.accept(upstreamChannel);
+        upstreamChannel.pipeline().addLast(new UpstreamHandler(session));
+        session.attach(upstreamChannel);
+        return session.ready;
+    }
+
+    private Session nextSession() {
+        final Session session;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Multiplexer for " + endpoint + " is closed");
+            }
+            final int slot = Math.floorMod(nextSlot.getAndIncrement(), sessions.length);
+            if (sessions[slot] != null && sessions[slot].isUsable()) {
+                return sessions[slot];
+            }
+            session = new Session();
+            sessions[slot] = session;
+        }
+        connect(session);
+        return session;
+    }
+
+    private void connect(final Session session) {
+        channelFactory.connect(endpoint, ch -> {
+            ch.pipeline().addFirst(
+                    LOGGING_CONTEXT_HANDLER,
+                    new LoggingContextHandler(UUID.randomUUID().toString(), "downstream")
+            );
+            downstreamInitializer.accept(ch);
+            ch.pipeline().addLast(new DownstreamHandler(session));
+        }, true).addListener((Future<Channel> future) -> {
+            connectListener.accept(future);
+            if (future.isSuccess()) {
+                session.connected(future.getNow());
+            } else {
+                LOG.warn("Failed to connect multiplexed downstream channel to {}", endpoint, future.cause());
+                session.failed(future.cause());
+            }
+        });
+    }
+
+    /**
+     * @return the number of requests which have been sent downstream and are waiting for a response.
+     */
+    synchronized int getPendingRequests() {
+        int pendingRequests = 0;
+        for (final Session session : sessions) {
+            if (session != null) {
+                pendingRequests += session.pendingRequests.size();
+            }
+        }
+        return pendingRequests;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (final Session session : sessions) {
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    private class UpstreamHandler extends AbstractChunkedMessageStreamInboundHandler<T> {
+        private final Session session;
+
+        private UpstreamHandler(final Session session) {
+            this.session = session;
+        }
+
+        @Override
+        protected void onMessageComplete(final ChannelHandlerContext ctx, final T message) {
+            if (codec.expectsResponse(message)) {
+                final int correlationId = session.register(ctx.channel(), codec.getCorrelationId(message));
+                codec.setCorrelationId(message, correlationId);
+            }
+            session.channel.writeAndFlush(message.all());
+        }
+
+        @Override
+        public void channelWritabilityChanged(final ChannelHandlerContext ctx) throws Exception {
+            session.updateDownstreamAutoRead();
+            super.channelWritabilityChanged(ctx);
+        }
+
+        @Override
+        protected T createNewMessage() {
+            return codec.createRequestMessage();
+        }
+    }
+
+    private class DownstreamHandler extends AbstractChunkedMessageStreamInboundHandler<T> {
+        private final Session session;
+
+        private DownstreamHandler(final Session session) {
+            this.session = session;
+        }
+
+        @Override
+        protected void onMessageComplete(final ChannelHandlerContext ctx, final T message) {
+            final PendingRequest request = session.complete(codec.getCorrelationId(message));
+            if (request == null) {
+                LOG.warn("Dropping response without matching request from {}", endpoint);
+                message.release();
+                return;
+            }
+            codec.setCorrelationId(message, request.originalCorrelationId);
+            request.upstreamChannel.writeAndFlush(message.all());
+        }
+
+        @Override
+        public void channelWritabilityChanged(final ChannelHandlerContext ctx) throws Exception {
+            final boolean writable = ctx.channel().isWritable();
+            session.upstreamChannels.forEach(upstreamChannel -> upstreamChannel.config().setAutoRead(writable));
+            super.channelWritabilityChanged(ctx);
+        }
+
+        @Override
+        protected T createNewMessage() {
+            return codec.createResponseMessage();
+        }
+    }
+
+    private static class Session {
+        private final Promise<Channel> ready = ImmediateEventExecutor.INSTANCE.newPromise();
+        private final AtomicInteger nextCorrelationId = new AtomicInteger();
+        private final Map<Integer, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+        private final Set<Channel> upstreamChannels = ConcurrentHashMap.newKeySet();
+        private volatile Channel channel;
+
+        private boolean isUsable() {
+            return !ready.isDone() || (ready.isSuccess() && channel.isActive());
+        }
+
+        private void connected(final Channel channel) {
+            this.channel = channel;
+            channel.closeFuture().addListener(future -> closeUpstreams());
+            ready.setSuccess(channel);
+        }
+
+        private void failed(final Throwable cause) {
+            ready.setFailure(cause);
+            closeUpstreams();
+        }
+
+        private void attach(final Channel upstreamChannel) {
+            upstreamChannels.add(upstreamChannel);
+            upstreamChannel.closeFuture().addListener(future -> {
+                upstreamChannels.remove(upstreamChannel);
+                pendingRequests.values().removeIf(it -> it.upstreamChannel == upstreamChannel);
+                updateDownstreamAutoRead();
+            });
+            ready.addListener(future -> {
+                if (!future.isSuccess() || !channel.isActive()) {
+                    // The downstream channel might have gone away in the meantime
+                    upstreamChannel.close();
+                    return;
+                }
+                // Serialized with the writability changes of the downstream channel
+                channel.eventLoop().execute(() -> upstreamChannel.config().setAutoRead(channel.isWritable()));
+            });
+        }
+
+        private void updateDownstreamAutoRead() {
+            final Channel downstreamChannel = channel;
+            if (downstreamChannel == null) {
+                return;
+            }
+            downstreamChannel.eventLoop().execute(() -> downstreamChannel.config().setAutoRead(
+                    upstreamChannels.stream().allMatch(it -> !it.isActive() || it.isWritable())
+            ));
+        }
+
+        private int register(final Channel upstreamChannel, final int originalCorrelationId) {
+            final PendingRequest request = new PendingRequest(upstreamChannel, originalCorrelationId);
+            while (true) {
+                final int correlationId = nextCorrelationId.getAndIncrement() & Integer.MAX_VALUE;
+                if (pendingRequests.putIfAbsent(correlationId, request) == null) {
+                    return correlationId;
+                }
+            }
+        }
+
+        private PendingRequest complete(final int correlationId) {
+            return pendingRequests.remove(correlationId);
+        }
+
+        private void close() {
+            ready.addListener(future -> {
+                if (future.isSuccess()) {
+                    channel.close();
+                }
+            });
+        }
+
+        private void closeUpstreams() {
+            upstreamChannels.forEach(Channel::close);
+        }
+    }
+
+    private static class PendingRequest {
+        private final Channel upstreamChannel;
+        private final int originalCorrelationId;
+
+        private PendingRequest(final Channel upstreamChannel, final int originalCorrelationId) {
+            this.upstreamChannel = upstreamChannel;
+            this.originalCorrelationId = originalCorrelationId;
+        }
+    }
+}
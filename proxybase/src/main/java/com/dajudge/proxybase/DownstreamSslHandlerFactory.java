@@ -21,20 +21,25 @@ import com.dajudge.proxybase.certs.Filesystem;
 import com.dajudge.proxybase.certs.KeyStoreManager;
 import com.dajudge.proxybase.config.DownstreamSslConfig;
 import com.dajudge.proxybase.config.Endpoint;
+import com.dajudge.proxybase.metrics.Metrics;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
 import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.ImmediateExecutor;
 
 import javax.net.ssl.SSLException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Optional;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
 import static com.dajudge.proxybase.HostnameCheck.NULL_VERIFIER;
 import static com.dajudge.proxybase.SslUtils.createClientSslContext;
 import static com.dajudge.proxybase.certs.ReloadingKeyStoreManager.createReloader;
+import static com.dajudge.proxybase.metrics.Metrics.NULL_METRICS;
 
 public class DownstreamSslHandlerFactory {
     public static Function<Channel, ChannelHandler> createDownstreamSslHandler(
@@ -42,15 +47,37 @@ public class DownstreamSslHandlerFactory {
             final Endpoint downstreamEndpoint,
             final Supplier<Long> clock,
             final Filesystem filesystem
+    ) {
+        return createDownstreamSslHandler(
+                config,
+                downstreamEndpoint,
+                clock,
+                filesystem,
+                NULL_METRICS,
+                ImmediateExecutor.INSTANCE
+        );
+    }
+
+    public static Function<Channel, ChannelHandler> createDownstreamSslHandler(
+            final DownstreamSslConfig config,
+            final Endpoint downstreamEndpoint,
+            final Supplier<Long> clock,
+            final Filesystem filesystem,
+            final Metrics metrics,
+            final Executor handshakeExecutor
     ) {
         final HostnameCheck hostnameCheck = config.isHostnameVerificationEnabled()
-                ? new HttpClientHostnameCheck(downstreamEndpoint.getHost())
+                ? new Rfc6125HostnameCheck(downstreamEndpoint.getHost())
                 : NULL_VERIFIER;
         return createDownstreamSslHandler(
                 hostnameCheck,
                 createReloader(config.getTrustStore(), clock, filesystem),
                 createReloader(config.getKeyStore(), clock, filesystem),
-                downstreamEndpoint
+                downstreamEndpoint,
+                config.getSessionCacheSize(),
+                config.getSessionTimeoutSecs(),
+                metrics,
+                handshakeExecutor
         );
     }
 
@@ -59,10 +86,45 @@ public class DownstreamSslHandlerFactory {
             final Optional<? extends KeyStoreManager> trustStoreManager,
             final Optional<? extends KeyStoreManager> keyStoreManager,
             final Endpoint peerEndpoint
+    ) {
+        return createDownstreamSslHandler(
+                hostnameCheck,
+                trustStoreManager,
+                keyStoreManager,
+                peerEndpoint,
+                0,
+                0,
+                NULL_METRICS,
+                ImmediateExecutor.INSTANCE
+        );
+    }
+
+    public static Function<Channel, ChannelHandler> createDownstreamSslHandler(
+            final HostnameCheck hostnameCheck,
+            final Optional<? extends KeyStoreManager> trustStoreManager,
+            final Optional<? extends KeyStoreManager> keyStoreManager,
+            final Endpoint peerEndpoint,
+            final long sessionCacheSize,
+            final long sessionTimeoutSecs,
+            final Metrics metrics,
+            final Executor handshakeExecutor
     ) {
         try {
-            final SslContext context = createClientSslContext(hostnameCheck, trustStoreManager, keyStoreManager);
-            return ch -> context.newHandler(ch.alloc(), peerEndpoint.getHost(), peerEndpoint.getPort());
+            // One context per endpoint, so its client session cache allows resuming sessions on reconnects
+            final SslContext context = createClientSslContext(
+                    hostnameCheck,
+                    trustStoreManager,
+                    keyStoreManager,
+                    sessionCacheSize,
+                    sessionTimeoutSecs,
+                    metrics
+            );
+            final SslSessionMetrics sessionMetrics = new SslSessionMetrics("downstream", metrics);
+            return ch -> sessionMetrics.track(new SslHandler(
+                    context.newEngine(ch.alloc(), peerEndpoint.getHost(), peerEndpoint.getPort()),
+                    false,
+                    HandshakeExecutor.closeOnRejection(handshakeExecutor, ch)
+            ));
         } catch (final NoSuchAlgorithmException | KeyManagementException | SSLException e) {
             throw new RuntimeException("Failed to initialize downstream SSL handler", e);
         }
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.config.Endpoint;
+import com.dajudge.proxybase.config.LoadBalancing;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * A set of interchangeable downstream endpoints and the strategy to balance connections across them. The
+ * endpoints are fixed at construction time, so selection doesn't need any locking. Endpoints which are currently
+ * unavailable, e.g. ejected by a {@link DownstreamHealthChecker}, are skipped.
+ */
+public class EndpointGroup {
+    private static final int VIRTUAL_NODES_PER_ENDPOINT = 100;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final List<Member> members;
+    private final Map<Endpoint, Member> membersByEndpoint;
+    private final Function<SocketAddress, Member> selector;
+    private final Predicate<Endpoint> isAvailable;
+    private final AtomicInteger nextRoundRobin = new AtomicInteger();
+
+    public EndpointGroup(final List<Endpoint> endpoints, final LoadBalancing loadBalancing) {
+        this(endpoints, loadBalancing, endpoint -> true);
+    }
+
+    public EndpointGroup(
+            final List<Endpoint> endpoints,
+            final LoadBalancing loadBalancing,
+            final Predicate<Endpoint> isAvailable
+    ) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("Endpoint group must not be empty");
+        }
+        this.members = Collections.unmodifiableList(endpoints.stream().map(Member::new).collect(toList()));
+        this.membersByEndpoint = members.stream().collect(toMap(m -> m.endpoint, m -> m));
+        this.isAvailable = isAvailable;
+        this.selector = createSelector(loadBalancing);
+    }
+
+    private Function<SocketAddress, Member> createSelector(final LoadBalancing loadBalancing) {
+        switch (loadBalancing) {
+            case ROUND_ROBIN:
+                return client -> roundRobin();
+            case LEAST_CONNECTIONS:
+                return client -> leastConnections();
+            case POWER_OF_TWO_CHOICES:
+                return client -> powerOfTwoChoices();
+            case CONSISTENT_HASH:
+                final NavigableMap<Long, Member> ring = createRing();
+                return client -> consistentHash(ring, client);
+            default:
+                throw new IllegalArgumentException("Unsupported load balancing: " + loadBalancing);
+        }
+    }
+
+    /**
+     * Selects the endpoint for a new connection and counts the connection as open until
+     * {@link #release(Endpoint)} is called.
+     *
+     * @param clientAddress the address of the upstream client.
+     * @return the selected endpoint.
+     * @throws IllegalStateException if no endpoint of the group is available.
+     */
+    public Endpoint acquire(final SocketAddress clientAddress) {
+        final Member member = selector.apply(clientAddress);
+        if (member == null) {
+            throw new IllegalStateException("No available endpoint in group: " + getEndpoints());
+        }
+        member.openConnections.incrementAndGet();
+        member.totalConnections.increment();
+        return member.endpoint;
+    }
+
+    public void release(final Endpoint endpoint) {
+        membersByEndpoint.get(endpoint).openConnections.decrementAndGet();
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return members.stream().map(m -> m.endpoint).collect(toList());
+    }
+
+    public int getOpenConnections(final Endpoint endpoint) {
+        return membersByEndpoint.get(endpoint).openConnections.get();
+    }
+
+    public long getTotalConnections(final Endpoint endpoint) {
+        return membersByEndpoint.get(endpoint).totalConnections.sum();
+    }
+
+    private boolean isAvailable(final Member member) {
+        return isAvailable.test(member.endpoint);
+    }
+
+    private Member roundRobin() {
+        for (int i = 0; i < members.size(); i++) {
+            final Member candidate = members.get(Math.floorMod(nextRoundRobin.getAndIncrement(), members.size()));
+            if (isAvailable(candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private Member leastConnections() {
+        // Start at a random member, so ties don't all go to the first endpoint
+        final int offset = ThreadLocalRandom.current().nextInt(members.size());
+        Member best = null;
+        for (int i = 0; i < members.size(); i++) {
+            final Member candidate = members.get((offset + i) % members.size());
+            if (!isAvailable(candidate)) {
+                continue;
+            }
+            if (best == null || candidate.openConnections.get() < best.openConnections.get()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    private Member powerOfTwoChoices() {
+        if (members.size() == 1) {
+            return isAvailable(members.get(0)) ? members.get(0) : null;
+        }
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int first = random.nextInt(members.size());
+        final int second = (first + 1 + random.nextInt(members.size() - 1)) % members.size();
+        final Member a = members.get(first);
+        final Member b = members.get(second);
+        if (!isAvailable(a) || !isAvailable(b)) {
+            // Sampling among the remaining endpoints only would need a snapshot, so just fall back
+            return leastConnections();
+        }
+        return a.openConnections.get() <= b.openConnections.get() ? a : b;
+    }
+
+    private NavigableMap<Long, Member> createRing() {
+        final NavigableMap<Long, Member> ring = new TreeMap<>();
+        for (final Member member : members) {
+            for (int i = 0; i < VIRTUAL_NODES_PER_ENDPOINT; i++) {
+                ring.put(hash((member.endpoint + "#" + i).getBytes(StandardCharsets.UTF_8)), member);
+            }
+        }
+        return Collections.unmodifiableNavigableMap(ring);
+    }
+
+    private Member consistentHash(final NavigableMap<Long, Member> ring, final SocketAddress client) {
+        // Walk the ring clockwise, so only the clients of an unavailable endpoint are moved elsewhere
+        final long key = hash(clientKey(client));
+        for (final Member candidate : ring.tailMap(key, true).values()) {
+            if (isAvailable(candidate)) {
+                return candidate;
+            }
+        }
+        for (final Member candidate : ring.headMap(key, false).values()) {
+            if (isAvailable(candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] clientKey(final SocketAddress client) {
+        // Only the address counts, a client reconnecting from another port must end up at the same endpoint
+        if (client instanceof InetSocketAddress && ((InetSocketAddress) client).getAddress() != null) {
+            return ((InetSocketAddress) client).getAddress().getAddress();
+        }
+        return String.valueOf(client).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long hash(final byte[] data) {
+        long hash = FNV_OFFSET_BASIS;
+        for (final byte b : data) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        // FNV-1a spreads short inputs poorly in the high bits, so finish with a 64 bit mix
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static class Member {
+        private final Endpoint endpoint;
+        private final AtomicInteger openConnections = new AtomicInteger();
+        private final LongAdder totalConnections = new LongAdder();
+
+        private Member(final Endpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+    }
+}
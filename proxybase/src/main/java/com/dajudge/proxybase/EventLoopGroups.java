@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.config.ProxyApplicationConfig;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The event loop groups used by {@link ProxyApplication}s. Groups created by the application itself are shut
+ * down when it's closed; groups passed in from the outside can be shared by several applications and must be
+ * closed by their owner.
+ */
+public class EventLoopGroups implements AutoCloseable {
+    private final EventLoopGroup serverGroup;
+    private final EventLoopGroup upstreamGroup;
+    private final EventLoopGroup downstreamGroup;
+    private final Transport transport;
+
+    public EventLoopGroups(
+            final EventLoopGroup serverGroup,
+            final EventLoopGroup upstreamGroup,
+            final EventLoopGroup downstreamGroup
+    ) {
+        this(serverGroup, upstreamGroup, downstreamGroup, transportOf(serverGroup));
+    }
+
+    private EventLoopGroups(
+            final EventLoopGroup serverGroup,
+            final EventLoopGroup upstreamGroup,
+            final EventLoopGroup downstreamGroup,
+            final Transport transport
+    ) {
+        if (transportOf(upstreamGroup) != transport || transportOf(downstreamGroup) != transport) {
+            throw new IllegalArgumentException("All event loop groups must use the same transport");
+        }
+        this.serverGroup = serverGroup;
+        this.upstreamGroup = upstreamGroup;
+        this.downstreamGroup = downstreamGroup;
+        this.transport = transport;
+    }
+
+    public static EventLoopGroups create(final ProxyApplicationConfig config) {
+        final Transport transport = Transport.select(config.getReusePortAcceptors() > 0);
+        // Each SO_REUSEPORT acceptor gets a thread of its own
+        final int bossThreads = config.getBossThreads() == 0
+                ? 0
+                : Math.max(config.getBossThreads(), config.getReusePortAcceptors());
+        final EventLoopGroup serverGroup = createGroup(transport, config, bossThreads, "boss");
+        if (config.isSharedWorkerGroup()) {
+            final EventLoopGroup workerGroup = createGroup(transport, config, config.getUpstreamThreads(), "worker");
+            return new EventLoopGroups(serverGroup, workerGroup, workerGroup, transport);
+        }
+        return new EventLoopGroups(
+                serverGroup,
+                createGroup(transport, config, config.getUpstreamThreads(), "upstream"),
+                createGroup(transport, config, config.getDownstreamThreads(), "downstream"),
+                transport
+        );
+    }
+
+    private static EventLoopGroup createGroup(
+            final Transport transport,
+            final ProxyApplicationConfig config,
+            final int threads,
+            final String name
+    ) {
+        final ThreadFactory threadFactory;
+        if (config.getThreadNamePrefix() != null) {
+            final String poolName = config.getThreadNamePrefix() + "-" + name;
+            threadFactory = new DefaultThreadFactory(poolName, config.isDaemonThreads());
+        } else if (config.isDaemonThreads()) {
+            threadFactory = new DefaultThreadFactory(name, true);
+        } else {
+            threadFactory = null;
+        }
+        return transport.createGroup(threads, threadFactory, config.getIoRatio());
+    }
+
+    private static Transport transportOf(final EventLoopGroup group) {
+        return group instanceof EpollEventLoopGroup ? Transport.EPOLL : Transport.NIO;
+    }
+
+    EventLoopGroup getServerGroup() {
+        return serverGroup;
+    }
+
+    EventLoopGroup getUpstreamGroup() {
+        return upstreamGroup;
+    }
+
+    EventLoopGroup getDownstreamGroup() {
+        return downstreamGroup;
+    }
+
+    Transport getTransport() {
+        return transport;
+    }
+
+    @Override
+    public void close() {
+        final Set<EventLoopGroup> groups = Collections.newSetFromMap(new IdentityHashMap<>());
+        groups.add(serverGroup);
+        groups.add(upstreamGroup);
+        groups.add(downstreamGroup);
+        groups.forEach(EventLoopGroup::shutdownGracefully);
+    }
+}
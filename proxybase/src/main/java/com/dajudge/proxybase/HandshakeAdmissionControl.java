@@ -0,0 +1,243 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.metrics.Metrics;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.ssl.AbstractSniHandler;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Limits the number of proxy connections concurrently being set up, i.e. connecting downstream and performing
+ * the upstream and downstream TLS handshakes. Connections exceeding the limit are parked with auto-read disabled
+ * and admitted in FIFO order; connections waiting longer than the queue deadline are closed. A single instance
+ * can be shared between listeners to enforce a process wide limit.
+ * <p>
+ * The permit of a connection is held until both TLS handshakes completed. On SNI listeners the upstream handshake
+ * only starts once the SNI handler read the ClientHello and installed the SSL handler, which is waited for as well.
+ * <p>
+ * A queued connection is set up after its upstream channel already became active. The setup supplied by
+ * {@link ProxyChannelFactory} accounts for that and fires {@code channelActive} for the handlers added by the
+ * proxy channel initializer once the proxy channel is wired up, so initializers don't need to care whether a
+ * connection was queued.
+ */
+public class HandshakeAdmissionControl {
+    private static final Logger LOG = LoggerFactory.getLogger(HandshakeAdmissionControl.class);
+    public static final String IN_FLIGHT = "admission.in_flight";
+    public static final String QUEUED = "admission.queued";
+    public static final String ADMITTED = "admission.admitted";
+    public static final String REJECTED = "admission.rejected";
+    public static final String SHED = "admission.shed";
+    public static final String WAIT_TIME = "admission.wait.nanos";
+    private static final String HANDSHAKE_LISTENER = HandshakeAdmissionControl.class.getName() + "#handshake";
+    private final int maxConcurrentHandshakes;
+    private final int maxQueueLength;
+    private final long queueDeadlineMsecs;
+    private final Metrics metrics;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Deque<PendingConnection> queue = new ConcurrentLinkedDeque<>();
+
+    public HandshakeAdmissionControl(
+            final int maxConcurrentHandshakes,
+            final int maxQueueLength,
+            final long queueDeadlineMsecs,
+            final Metrics metrics
+    ) {
+        this.maxConcurrentHandshakes = maxConcurrentHandshakes;
+        this.maxQueueLength = maxQueueLength;
+        this.queueDeadlineMsecs = queueDeadlineMsecs;
+        this.metrics = metrics;
+        metrics.gauge(IN_FLIGHT, inFlight::get);
+        metrics.gauge(QUEUED, queued::get);
+    }
+
+    void admit(final Channel upstreamChannel, final Supplier<Future<Channel>> setup) {
+        if (queue.isEmpty() && tryAcquire()) {
+            metrics.record(WAIT_TIME, 0);
+            start(upstreamChannel, setup);
+            return;
+        }
+        if (queued.get() >= maxQueueLength) {
+            LOG.debug("Admission queue full, rejecting connection from {}", upstreamChannel.remoteAddress());
+            metrics.count(REJECTED, 1);
+            upstreamChannel.close();
+            return;
+        }
+        upstreamChannel.config().setAutoRead(false);
+        final PendingConnection pending = new PendingConnection(upstreamChannel, setup);
+        queued.incrementAndGet();
+        queue.addLast(pending);
+        pending.timeout = upstreamChannel.eventLoop().schedule(() -> {
+            if (remove(pending)) {
+                shed(pending);
+            }
+        }, queueDeadlineMsecs, MILLISECONDS);
+        upstreamChannel.closeFuture().addListener(future -> remove(pending));
+        // A permit might have been released while enqueueing
+        drain();
+    }
+
+    private void start(final Channel upstreamChannel, final Supplier<Future<Channel>> setup) {
+        metrics.count(ADMITTED, 1);
+        final AtomicBoolean released = new AtomicBoolean();
+        final Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                inFlight.decrementAndGet();
+                drain();
+            }
+        };
+        upstreamChannel.closeFuture().addListener(future -> release.run());
+        final Future<Channel> downstreamFuture;
+        try {
+            downstreamFuture = setup.get();
+        } catch (final RuntimeException e) {
+            LOG.debug("Failed to set up proxy connection from {}", upstreamChannel.remoteAddress(), e);
+            upstreamChannel.close();
+            release.run();
+            return;
+        }
+        downstreamFuture.addListener(future -> {
+            if (!downstreamFuture.isSuccess()) {
+                upstreamChannel.close();
+                release.run();
+                return;
+            }
+            onHandshakeDone(upstreamChannel, () -> onHandshakeDone(downstreamFuture.getNow(), release));
+        });
+    }
+
+    private void drain() {
+        PendingConnection pending;
+        while ((pending = queue.pollFirst()) != null) {
+            queued.decrementAndGet();
+            if (!pending.channel.isActive()) {
+                continue;
+            }
+            if (System.nanoTime() - pending.enqueuedNanos > MILLISECONDS.toNanos(queueDeadlineMsecs)) {
+                shed(pending);
+                continue;
+            }
+            if (!tryAcquire()) {
+                queued.incrementAndGet();
+                queue.addFirst(pending);
+                return;
+            }
+            admitPending(pending);
+        }
+    }
+
+    private void admitPending(final PendingConnection pending) {
+        if (pending.timeout != null) {
+            pending.timeout.cancel(false);
+        }
+        metrics.record(WAIT_TIME, System.nanoTime() - pending.enqueuedNanos);
+        // The setup turns auto read back on once the proxy channel is wired up
+        pending.channel.eventLoop().execute(() -> start(pending.channel, pending.setup));
+    }
+
+    private void shed(final PendingConnection pending) {
+        LOG.debug("Connection from {} exceeded admission deadline", pending.channel.remoteAddress());
+        metrics.count(SHED, 1);
+        pending.channel.close();
+    }
+
+    private boolean remove(final PendingConnection pending) {
+        if (queue.remove(pending)) {
+            queued.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            final int current = inFlight.get();
+            if (current >= maxConcurrentHandshakes) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private static void onHandshakeDone(final Channel channel, final Runnable callback) {
+        if (!channel.eventLoop().inEventLoop()) {
+            // Inspect the pipeline where it's modified, so a handshake can't complete in between
+            channel.eventLoop().execute(() -> onHandshakeDone(channel, callback));
+            return;
+        }
+        final SslHandler sslHandler = channel.pipeline().get(SslHandler.class);
+        if (sslHandler != null) {
+            sslHandler.handshakeFuture().addListener(future -> callback.run());
+            return;
+        }
+        final ChannelHandlerContext sniContext = channel.pipeline().context(AbstractSniHandler.class);
+        if (sniContext == null) {
+            callback.run();
+            return;
+        }
+        // The SNI handler installs the SSL handler only once it read the ClientHello
+        channel.pipeline().addAfter(sniContext.name(), HANDSHAKE_LISTENER, new HandshakeListener(callback));
+    }
+
+    private static class HandshakeListener extends ChannelInboundHandlerAdapter {
+        private final Runnable callback;
+
+        private HandshakeListener(final Runnable callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt) {
+            ctx.fireUserEventTriggered(evt);
+            if (evt instanceof SslHandshakeCompletionEvent) {
+                ctx.pipeline().remove(this);
+                callback.run();
+            }
+        }
+    }
+
+    private static class PendingConnection {
+        private final Channel channel;
+        private final Supplier<Future<Channel>> setup;
+        private final long enqueuedNanos = System.nanoTime();
+        private volatile ScheduledFuture<?> timeout;
+
+        private PendingConnection(final Channel channel, final Supplier<Future<Channel>> setup) {
+            this.channel = channel;
+            this.setup = setup;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.metrics.Metrics;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the delegated tasks of {@link javax.net.ssl.SSLEngine}s (key exchange, signing, certificate validation)
+ * on a dedicated thread pool instead of the event loop, so a burst of handshakes does not stall relaying on
+ * established connections. The number of queued tasks is bounded; tasks are rejected when the queue is full or
+ * the executor is closed, see {@link #closeOnRejection(Executor, Channel)}.
+ */
+public class HandshakeExecutor implements Executor, AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(HandshakeExecutor.class);
+    public static final String QUEUE_DEPTH = "tls.handshake.tasks.queued";
+    public static final String QUEUE_TIME = "tls.handshake.tasks.wait.nanos";
+    public static final String TASK_TIME = "tls.handshake.tasks.duration.nanos";
+    public static final String REJECTED = "tls.handshake.tasks.rejected";
+    public static final int DEFAULT_MAX_QUEUED_TASKS = 4096;
+    private final ThreadPoolExecutor executor;
+    private final Metrics metrics;
+
+    public HandshakeExecutor(final int threads, final Metrics metrics) {
+        this(threads, DEFAULT_MAX_QUEUED_TASKS, metrics);
+    }
+
+    /**
+     * @param maxQueuedTasks the number of tasks which may wait for a thread; further tasks are rejected.
+     */
+    public HandshakeExecutor(final int threads, final int maxQueuedTasks, final Metrics metrics) {
+        this.executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                0,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxQueuedTasks),
+                new DefaultThreadFactory("proxybase-handshake", true),
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+        this.metrics = metrics;
+        metrics.gauge(QUEUE_DEPTH, () -> executor.getQueue().size());
+    }
+
+    /**
+     * @throws RejectedExecutionException if the queue is full or the executor is closed.
+     */
+    @Override
+    public void execute(final Runnable task) {
+        final long enqueued = System.nanoTime();
+        final Runnable measured = () -> {
+            final long started = System.nanoTime();
+            metrics.record(QUEUE_TIME, started - enqueued);
+            try {
+                task.run();
+            } finally {
+                metrics.record(TASK_TIME, System.nanoTime() - started);
+            }
+        };
+        try {
+            executor.execute(measured);
+        } catch (final RejectedExecutionException e) {
+            metrics.count(REJECTED, 1);
+            throw e;
+        }
+    }
+
+    /**
+     * Binds the executor of an {@link io.netty.handler.ssl.SslHandler} to its channel: a rejected task fails the
+     * handshake by closing the channel, instead of surfacing as an unhandled exception in the pipeline and leaving
+     * the handshake to the handshake timeout.
+     */
+    static Executor closeOnRejection(final Executor executor, final Channel channel) {
+        return task -> {
+            try {
+                executor.execute(task);
+            } catch (final RejectedExecutionException e) {
+                LOG.debug("Handshake task rejected, closing {}", channel.remoteAddress(), e);
+                // Outside the SslHandler's unwrap loop and past the SslHandler, which would only close once the
+                // rejected task completed
+                channel.eventLoop().execute(() -> {
+                    final ChannelHandlerContext first = channel.pipeline().firstContext();
+                    if (first != null) {
+                        first.close();
+                    } else {
+                        channel.close();
+                    }
+                });
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
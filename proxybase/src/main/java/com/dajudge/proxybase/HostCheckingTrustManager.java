@@ -17,23 +17,32 @@
 
 package com.dajudge.proxybase;
 
+import com.dajudge.proxybase.certs.KeyStoreManager;
+import com.dajudge.proxybase.certs.KeyStoreWrapper;
+
 import javax.net.ssl.X509TrustManager;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.util.Collection;
+import java.util.Optional;
 
-import static java.util.Arrays.asList;
+import static com.dajudge.proxybase.SslUtils.createTrustManagers;
+import static com.dajudge.proxybase.certs.KeyStoreWrapper.sameContent;
 
 class HostCheckingTrustManager implements X509TrustManager {
-    private final Collection<X509TrustManager> nextManagers;
+    private final Optional<? extends KeyStoreManager> trustStoreManager;
     private final HostnameCheck hostnameCheck;
+    private final VerifiedCertificateCache verifiedCertificates;
+    private KeyStoreWrapper currentTrustStore;
+    private X509TrustManager[] nextManagers;
 
     HostCheckingTrustManager(
-            final X509TrustManager[] nextManagers,
-            final HostnameCheck hostnameCheck
+            final Optional<? extends KeyStoreManager> trustStoreManager,
+            final HostnameCheck hostnameCheck,
+            final VerifiedCertificateCache verifiedCertificates
     ) {
-        this.nextManagers = asList(nextManagers);
+        this.trustStoreManager = trustStoreManager;
         this.hostnameCheck = hostnameCheck;
+        this.verifiedCertificates = verifiedCertificates;
     }
 
     @Override
@@ -43,10 +52,27 @@ class HostCheckingTrustManager implements X509TrustManager {
 
     @Override
     public void checkServerTrusted(final X509Certificate[] chain, final String authType) throws CertificateException {
-        for (final X509TrustManager nextManager : nextManagers) {
+        final X509TrustManager[] managers = nextManagers();
+        final String fingerprint = VerifiedCertificateCache.fingerprint(chain, authType);
+        if (verifiedCertificates.isVerified(fingerprint)) {
+            return;
+        }
+        for (final X509TrustManager nextManager : managers) {
             nextManager.checkServerTrusted(chain, authType);
         }
         hostnameCheck.verify(chain[0]);
+        verifiedCertificates.verified(fingerprint, chain);
+    }
+
+    private synchronized X509TrustManager[] nextManagers() {
+        final KeyStoreWrapper trustStore = trustStoreManager.map(KeyStoreManager::getKeyStore).orElse(null);
+        if (nextManagers == null || !sameContent(trustStore, currentTrustStore)) {
+            // Trust store changed, previous verification results are void
+            nextManagers = createTrustManagers(trustStore);
+            verifiedCertificates.clear();
+        }
+        currentTrustStore = trustStore;
+        return nextManagers;
     }
 
     @Override
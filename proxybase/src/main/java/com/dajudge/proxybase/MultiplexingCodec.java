@@ -0,0 +1,56 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+/**
+ * Describes a request/response protocol with correlation IDs, so requests of many upstream connections can be
+ * sent over a shared downstream connection and the responses can be routed back.
+ * <p>
+ * Multiplexing is only suitable for protocols without per-connection state (e.g. authentication or
+ * transactions bound to a connection), since the downstream server sees requests of all clients on the same
+ * connection.
+ *
+ * @param <T> the message type framing requests and responses.
+ */
+public interface MultiplexingCodec<T extends AbstractChunkedMessage> {
+    T createRequestMessage();
+
+    T createResponseMessage();
+
+    /**
+     * @param message a complete request or response.
+     * @return the correlation ID of the message.
+     */
+    int getCorrelationId(T message);
+
+    /**
+     * Rewrites the correlation ID of the message in place.
+     *
+     * @param message       a complete request or response.
+     * @param correlationId the new correlation ID.
+     */
+    void setCorrelationId(T message, int correlationId);
+
+    /**
+     * @param request a complete request.
+     * @return whether the downstream server will respond to the request.
+     */
+    default boolean expectsResponse(final T request) {
+        return true;
+    }
+}
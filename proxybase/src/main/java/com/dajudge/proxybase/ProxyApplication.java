@@ -17,48 +17,156 @@
 
 package com.dajudge.proxybase;
 
+import com.dajudge.proxybase.config.ProxyApplicationConfig;
+import com.dajudge.proxybase.metrics.Metrics;
 import io.netty.channel.Channel;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.ChannelFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
 
+import static com.dajudge.proxybase.metrics.Metrics.NULL_METRICS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.stream.Collectors.toList;
+
 public class ProxyApplication implements AutoCloseable {
     public static final String LOGGING_CONTEXT_HANDLER = ProxyApplication.class.getName() + "#loggingContext";
+    public static final String DRAIN_OPEN_CONNECTIONS = "drain.connections.open";
+    public static final String DRAIN_CLOSED_IDLE = "drain.connections.closed.idle";
+    public static final String DRAIN_CLOSED_FORCED = "drain.connections.closed.forced";
+    public static final String DRAIN_TIME = "drain.duration.nanos";
+    public static final String UPSTREAM_CLIENTS = "upstream.clients";
+    public static final String UPSTREAM_REJECTED_CLIENT_LIMIT = "upstream.rejected.client.limit";
+    public static final String UPSTREAM_REJECTED_ACCEPT_RATE = "upstream.rejected.accept.rate";
+    public static final long DEFAULT_DRAIN_DEADLINE_MSECS = 10000;
+    public static final long DEFAULT_DRAIN_QUIET_PERIOD_MSECS = 500;
     private static final Logger LOG = LoggerFactory.getLogger(ProxyApplication.class);
-    private final NioEventLoopGroup serverGroup;
-    private final NioEventLoopGroup upstreamGroup;
-    private final NioEventLoopGroup downstreamGroup;
-    private final Collection<Channel> serverChannels = new ArrayList<>();
+    private final EventLoopGroups groups;
+    private final boolean ownsGroups;
+    private final ConnectionDrainer drainer;
+    private final ProxyChannelFactory channelFactory;
+    private final Collection<Channel> serverChannels = new CopyOnWriteArrayList<>();
 
     public ProxyApplication(final Consumer<ProxyChannelFactory> callback) {
-        this.serverGroup = new NioEventLoopGroup();
-        this.upstreamGroup = new NioEventLoopGroup();
-        this.downstreamGroup = new NioEventLoopGroup();
-        final UpstreamChannelFactory upstreamFactory = new UpstreamChannelFactory(serverGroup, upstreamGroup);
-        final DownstreamChannelFactory downstreamFactory = new DownstreamChannelFactory(downstreamGroup);
-        callback.accept(new ProxyChannelFactory(upstreamFactory, downstreamFactory, serverChannels::add));
+        this(callback, NULL_METRICS);
+    }
+
+    public ProxyApplication(final Consumer<ProxyChannelFactory> callback, final Metrics metrics) {
+        this(callback, metrics, ProxyApplicationConfig.defaults());
+    }
+
+    public ProxyApplication(
+            final Consumer<ProxyChannelFactory> callback,
+            final Metrics metrics,
+            final ProxyApplicationConfig config
+    ) {
+        this(callback, metrics, EventLoopGroups.create(config), config, true);
+    }
+
+    /**
+     * Creates a proxy application running on event loop groups owned by the caller, e.g. to share them between
+     * several applications. The groups are not shut down when the application is closed. The thread settings of
+     * the config are ignored.
+     */
+    public ProxyApplication(
+            final Consumer<ProxyChannelFactory> callback,
+            final Metrics metrics,
+            final EventLoopGroups groups,
+            final ProxyApplicationConfig config
+    ) {
+        this(callback, metrics, groups, config, false);
     }
 
+    private ProxyApplication(
+            final Consumer<ProxyChannelFactory> callback,
+            final Metrics metrics,
+            final EventLoopGroups groups,
+            final ProxyApplicationConfig config,
+            final boolean ownsGroups
+    ) {
+        final Transport transport = groups.getTransport();
+        this.groups = groups;
+        this.ownsGroups = ownsGroups;
+        this.drainer = new ConnectionDrainer(metrics);
+        final UpstreamChannelFactory upstreamFactory = new UpstreamChannelFactory(
+                groups.getServerGroup(),
+                groups.getUpstreamGroup(),
+                transport,
+                transport.supportsReusePort() ? config.getReusePortAcceptors() : 0,
+                drainer,
+                config.getUpstreamLimits().getBacklog(),
+                new UpstreamConnectionLimiter(config.getUpstreamLimits(), metrics, System::nanoTime)
+        );
+        final DownstreamChannelFactory downstreamFactory = new DownstreamChannelFactory(
+                groups.getDownstreamGroup(),
+                transport,
+                config.getDownstreamConnect(),
+                metrics
+        );
+        this.channelFactory = new ProxyChannelFactory(
+                upstreamFactory,
+                downstreamFactory,
+                serverChannels::add,
+                new ConnectionTimeouts(config.getConnectionTimeouts(), metrics),
+                new TrafficShaper(config.getTrafficShaping(), groups.getUpstreamGroup(), metrics),
+                drainer
+        );
+        callback.accept(channelFactory);
+    }
 
     @Override
     public void close() {
-        serverChannels.forEach(ch -> {
-            final InetSocketAddress address = (InetSocketAddress) ch.localAddress();
-            try {
-                ch.close().await(5, TimeUnit.SECONDS);
+        close(DEFAULT_DRAIN_QUIET_PERIOD_MSECS, DEFAULT_DRAIN_DEADLINE_MSECS);
+    }
+
+    /**
+     * Stops accepting new connections, closes idle connections as they become quiet and forcibly closes the
+     * remaining ones when the deadline expires. Returns as soon as all connections are closed, so without open
+     * connections it doesn't wait for the quiet period. Afterwards the event loops are shut down, unless they were
+     * supplied by the caller.
+     *
+     * @param quietPeriodMsecs how long a connection must not have seen any traffic to be closed during draining.
+     * @param deadlineMsecs    the overall time after which all remaining connections are closed forcibly.
+     */
+    public void close(final long quietPeriodMsecs, final long deadlineMsecs) {
+        final long deadline = System.nanoTime() + MILLISECONDS.toNanos(deadlineMsecs);
+        stopAccepting(deadline);
+        channelFactory.closeDownstreamPools();
+        channelFactory.closeHealthCheckers();
+        drainer.drain(quietPeriodMsecs, Math.max(0, NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        channelFactory.closeMultiplexers();
+        channelFactory.closeDownstreamFactory();
+        channelFactory.closeTimeouts();
+        channelFactory.closeTrafficShaper();
+        if (ownsGroups) {
+            groups.close();
+        }
+    }
+
+    private void stopAccepting(final long deadline) {
+        final List<Channel> channels = new ArrayList<>(serverChannels);
+        final List<InetSocketAddress> addresses = channels.stream()
+                .map(ch -> (InetSocketAddress) ch.localAddress())
+                .collect(toList());
+        final List<ChannelFuture> closeFutures = channels.stream()
+                .map(Channel::close)
+                .collect(toList());
+        for (int i = 0; i < closeFutures.size(); i++) {
+            final ChannelFuture future = closeFutures.get(i);
+            final InetSocketAddress address = addresses.get(i);
+            final long remainingNanos = Math.max(0, deadline - System.nanoTime());
+            if (future.awaitUninterruptibly(remainingNanos, NANOSECONDS)) {
                 LOG.debug("Server channel closed: {}:{}", address.getHostString(), address.getPort());
-            } catch (final InterruptedException e) {
-                LOG.error("Failed to close server channel: {}:{}", address.getHostString(), address.getPort(), e);
+            } else {
+                LOG.error("Failed to close server channel: {}:{}", address.getHostString(), address.getPort());
             }
-        });
-        serverGroup.shutdownGracefully();
-        upstreamGroup.shutdownGracefully();
-        downstreamGroup.shutdownGracefully();
+        }
     }
 }
@@ -17,28 +17,65 @@
 
 package com.dajudge.proxybase;
 
+import com.dajudge.proxybase.config.DownstreamPoolConfig;
 import com.dajudge.proxybase.config.Endpoint;
+import com.dajudge.proxybase.config.HealthCheckConfig;
+import com.dajudge.proxybase.metrics.Metrics;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
 
 import static com.dajudge.proxybase.ProxyApplication.LOGGING_CONTEXT_HANDLER;
 
 public class ProxyChannelFactory {
+    public static final String DOWNSTREAM_POOL_HITS = "downstream.pool.hits";
+    public static final String DOWNSTREAM_POOL_MISSES = "downstream.pool.misses";
+    public static final String DOWNSTREAM_POOL_CONNECT_FAILURES = "downstream.pool.connect.failures";
+    public static final String DOWNSTREAM_POOL_TIME_TO_READY = "downstream.pool.ready.nanos";
+    public static final String DOWNSTREAM_POOL_EVICTIONS = "downstream.pool.evictions";
+    public static final String CONNECTION_TIMEOUT_IDLE = "connection.timeout.idle";
+    public static final String CONNECTION_TIMEOUT_READ = "connection.timeout.read";
+    public static final String CONNECTION_TIMEOUT_WRITE = "connection.timeout.write";
+    public static final String TRAFFIC_SHAPED_BYTES = "traffic.shaped.bytes";
+    public static final String TRAFFIC_SHAPING_DELAY = "traffic.shaping.delay.nanos";
+    private static final String PROXY_SETUP_HANDLER = ProxyChannelFactory.class.getName() + "#setup";
+    private static final Logger LOG = LoggerFactory.getLogger(ProxyChannelFactory.class);
     private final UpstreamChannelFactory upstreamFactory;
     private final DownstreamChannelFactory downstreamFactory;
     private final Consumer<Channel> serverChannelRegistry;
+    private final ConnectionTimeouts timeouts;
+    private final TrafficShaper shaper;
+    private final ConnectionDrainer drainer;
+    private final Map<Endpoint, DownstreamChannelPool> downstreamPools = new ConcurrentHashMap<>();
+    private final Collection<DownstreamMultiplexer<?>> multiplexers = new CopyOnWriteArrayList<>();
+    private final Collection<DownstreamHealthChecker> healthCheckers = new CopyOnWriteArrayList<>();
 
     ProxyChannelFactory(
             final UpstreamChannelFactory upstreamFactory,
             final DownstreamChannelFactory downstreamFactory,
-            final Consumer<Channel> serverChannelRegistry
+            final Consumer<Channel> serverChannelRegistry,
+            final ConnectionTimeouts timeouts,
+            final TrafficShaper shaper,
+            final ConnectionDrainer drainer
     ) {
         this.upstreamFactory = upstreamFactory;
         this.downstreamFactory = downstreamFactory;
         this.serverChannelRegistry = serverChannelRegistry;
+        this.timeouts = timeouts;
+        this.shaper = shaper;
+        this.drainer = drainer;
     }
 
     public void createProxyChannel(
@@ -46,18 +83,319 @@ public class ProxyChannelFactory {
             final Endpoint downstreamEndpoint,
             final ProxyChannelInitializer initializer
     ) {
-        serverChannelRegistry.accept(
-                upstreamFactory.create(
-                        upstreamEndpoint,
-                        upstreamChannel -> downstreamFactory.create(
-                                downstreamEndpoint,
-                                downstreamChannel -> initProxyChannel(
-                                        initializer,
-                                        upstreamChannel,
-                                        downstreamChannel
-                                )
-                        )
+        upstreamFactory.create(
+                upstreamEndpoint,
+                upstreamChannel -> connectDownstream(downstreamEndpoint, initializer, upstreamChannel)
+        ).forEach(serverChannelRegistry);
+    }
+
+    public void createProxyChannel(
+            final Endpoint upstreamEndpoint,
+            final Endpoint downstreamEndpoint,
+            final ProxyChannelInitializer initializer,
+            final HandshakeAdmissionControl admissionControl
+    ) {
+        upstreamFactory.create(
+                upstreamEndpoint,
+                upstreamChannel -> admissionControl.admit(
+                        upstreamChannel,
+                        () -> connectDownstream(downstreamEndpoint, initializer, upstreamChannel)
                 )
+        ).forEach(serverChannelRegistry);
+    }
+
+    /**
+     * Creates a proxy channel which balances its downstream connections across the endpoints of a group.
+     */
+    public void createProxyChannel(
+            final Endpoint upstreamEndpoint,
+            final EndpointGroup downstreamEndpoints,
+            final ProxyChannelInitializer initializer
+    ) {
+        upstreamFactory.create(
+                upstreamEndpoint,
+                upstreamChannel -> connectDownstream(downstreamEndpoints, initializer, upstreamChannel)
+        ).forEach(serverChannelRegistry);
+    }
+
+    public void createProxyChannel(
+            final Endpoint upstreamEndpoint,
+            final EndpointGroup downstreamEndpoints,
+            final ProxyChannelInitializer initializer,
+            final HandshakeAdmissionControl admissionControl
+    ) {
+        upstreamFactory.create(
+                upstreamEndpoint,
+                upstreamChannel -> admissionControl.admit(
+                        upstreamChannel,
+                        () -> connectDownstream(downstreamEndpoints, initializer, upstreamChannel)
+                )
+        ).forEach(serverChannelRegistry);
+    }
+
+    /**
+     * Creates a proxy channel which sends the requests of all its upstream connections over a fixed number of
+     * shared downstream channels, rewriting correlation IDs with the given codec. Timeouts, traffic shaping, draining
+     * and health checks apply like to other proxy channels, except that the bytes written to clients are shaped on
+     * their upstream channels, since the downstream channels are shared.
+     *
+     * @param upstreamInitializer   sets up the pipeline of each upstream channel, e.g. adds an SSL handler.
+     * @param downstreamInitializer sets up the pipeline of each downstream channel, e.g. adds an SSL handler.
+     * @param downstreamConnections the number of downstream channels to share between upstream connections.
+     */
+    public <T extends AbstractChunkedMessage> void createMultiplexedProxyChannel(
+            final Endpoint upstreamEndpoint,
+            final Endpoint downstreamEndpoint,
+            final MultiplexingCodec<T> codec,
+            final Consumer<Channel> upstreamInitializer,
+            final Consumer<Channel> downstreamInitializer,
+            final int downstreamConnections
+    ) {
+        final DownstreamMultiplexer<T> multiplexer = new DownstreamMultiplexer<>(
+                downstreamEndpoint,
+                downstreamFactory,
+                codec,
+                downstreamChannel -> {
+                    timeouts.apply(downstreamChannel);
+                    downstreamInitializer.accept(downstreamChannel);
+                },
+                downstreamConnections,
+                connectFuture -> reportConnect(downstreamEndpoint, connectFuture)
+        );
+        multiplexers.add(multiplexer);
+        upstreamFactory.create(
+                upstreamEndpoint,
+                upstreamChannel -> {
+                    if (isEjected(downstreamEndpoint)) {
+                        failProxyChannel(upstreamChannel, ejected(downstreamEndpoint));
+                        return;
+                    }
+                    multiplexer.attach(upstreamChannel, ch -> {
+                        timeouts.apply(ch);
+                        shaper.applyMultiplexed(ch);
+                        upstreamInitializer.accept(ch);
+                    }).addListener((Future<Channel> downstreamFuture) -> {
+                        if (downstreamFuture.isSuccess()) {
+                            drainer.trackSharedDownstream(upstreamChannel, downstreamFuture.getNow());
+                        }
+                    });
+                }
+        ).forEach(serverChannelRegistry);
+    }
+
+    /**
+     * Keeps pre-connected channels to the given downstream endpoint ready for new proxy channels. The warm-up is
+     * applied to every downstream channel of the endpoint, pooled or not, before the proxy channel initializer
+     * runs, so it's the place to add the downstream {@link io.netty.handler.ssl.SslHandler}. The initializer runs
+     * on the downstream channel's event loop either way, and the downstream handlers it adds to a pooled channel
+     * see {@code channelActive} and the {@link io.netty.handler.ssl.SslHandshakeCompletionEvent} just like on a
+     * freshly connected one.
+     */
+    public void createDownstreamPool(
+            final Endpoint downstreamEndpoint,
+            final DownstreamPoolConfig config,
+            final Consumer<Channel> warmup,
+            final Metrics metrics
+    ) {
+        final DownstreamChannelPool pool = new DownstreamChannelPool(
+                downstreamEndpoint,
+                config,
+                downstreamFactory,
+                warmup,
+                metrics
+        );
+        final DownstreamChannelPool previous = downstreamPools.put(downstreamEndpoint, pool);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Starts probing the given downstream endpoints. New connections to an endpoint ejected by the returned checker
+     * fail right away; pass {@link DownstreamHealthChecker#isAvailable(Endpoint)} to an {@link EndpointGroup} to
+     * route around ejected endpoints instead.
+     *
+     * @param probeInitializer sets up the pipeline of each probe channel. If it adds an
+     *                         {@link io.netty.handler.ssl.SslHandler}, the probe includes the TLS handshake.
+     */
+    public DownstreamHealthChecker createHealthChecker(
+            final Collection<Endpoint> downstreamEndpoints,
+            final HealthCheckConfig config,
+            final Consumer<Channel> probeInitializer,
+            final Metrics metrics
+    ) {
+        final DownstreamHealthChecker checker = new DownstreamHealthChecker(
+                downstreamEndpoints,
+                config,
+                downstreamFactory,
+                probeInitializer,
+                metrics,
+                System::currentTimeMillis
+        );
+        healthCheckers.add(checker);
+        return checker;
+    }
+
+    void closeHealthCheckers() {
+        healthCheckers.forEach(DownstreamHealthChecker::close);
+    }
+
+    void closeDownstreamPools() {
+        downstreamPools.values().forEach(DownstreamChannelPool::close);
+    }
+
+    void closeMultiplexers() {
+        multiplexers.forEach(DownstreamMultiplexer::close);
+    }
+
+    void closeDownstreamFactory() {
+        downstreamFactory.close();
+    }
+
+    void closeTimeouts() {
+        timeouts.close();
+    }
+
+    void closeTrafficShaper() {
+        shaper.close();
+    }
+
+    private Future<Channel> connectDownstream(
+            final EndpointGroup downstreamEndpoints,
+            final ProxyChannelInitializer initializer,
+            final SocketChannel upstreamChannel
+    ) {
+        final Endpoint downstreamEndpoint;
+        try {
+            downstreamEndpoint = downstreamEndpoints.acquire(upstreamChannel.remoteAddress());
+        } catch (final RuntimeException e) {
+            return failProxyChannel(upstreamChannel, e);
+        }
+        final Future<Channel> downstreamFuture = connectDownstream(downstreamEndpoint, initializer, upstreamChannel);
+        downstreamFuture.addListener(future -> {
+            if (downstreamFuture.isSuccess()) {
+                downstreamFuture.getNow().closeFuture().addListener(closed -> downstreamEndpoints.release(
+                        downstreamEndpoint
+                ));
+            } else {
+                downstreamEndpoints.release(downstreamEndpoint);
+            }
+        });
+        return downstreamFuture;
+    }
+
+    /**
+     * Connects the downstream channel without blocking the upstream event loop. The upstream channel doesn't read
+     * until both channels are initialized; the handlers added by the initializer then see {@code channelActive}
+     * exactly once, like they would have if they had been added right away, no matter whether the upstream
+     * channel became active before or after the setup (e.g. when it was queued by admission control).
+     */
+    private Future<Channel> connectDownstream(
+            final Endpoint downstreamEndpoint,
+            final ProxyChannelInitializer initializer,
+            final SocketChannel upstreamChannel
+    ) {
+        if (isEjected(downstreamEndpoint)) {
+            return failProxyChannel(upstreamChannel, ejected(downstreamEndpoint));
+        }
+        upstreamChannel.config().setAutoRead(false);
+        upstreamChannel.pipeline().addLast(PROXY_SETUP_HANDLER, new SetupHandler());
+        final Future<Channel> downstreamFuture = openDownstreamChannel(
+                downstreamEndpoint,
+                initializer,
+                upstreamChannel
+        );
+        downstreamFuture.addListener(future -> {
+            reportConnect(downstreamEndpoint, downstreamFuture);
+            if (!downstreamFuture.isSuccess()) {
+                failProxyChannel(upstreamChannel, downstreamFuture.cause());
+                return;
+            }
+            upstreamChannel.eventLoop().execute(() -> activateUpstream(upstreamChannel));
+        });
+        return downstreamFuture;
+    }
+
+    private boolean isEjected(final Endpoint downstreamEndpoint) {
+        for (final DownstreamHealthChecker checker : healthCheckers) {
+            if (!checker.isAvailable(downstreamEndpoint)) {
+                checker.reportRejected();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static RuntimeException ejected(final Endpoint downstreamEndpoint) {
+        return new RuntimeException("Downstream endpoint is ejected: " + downstreamEndpoint);
+    }
+
+    private void reportConnect(final Endpoint downstreamEndpoint, final Future<?> connectFuture) {
+        if (connectFuture.isSuccess()) {
+            healthCheckers.forEach(checker -> checker.reportSuccess(downstreamEndpoint));
+        } else {
+            healthCheckers.forEach(checker -> checker.reportFailure(downstreamEndpoint));
+        }
+    }
+
+    private static void activateUpstream(final Channel upstreamChannel) {
+        final ChannelHandlerContext setupContext = upstreamChannel.pipeline().context(PROXY_SETUP_HANDLER);
+        if (setupContext == null) {
+            // Closed in the meantime
+            return;
+        }
+        setupContext.fireChannelActive();
+        upstreamChannel.pipeline().remove(PROXY_SETUP_HANDLER);
+        upstreamChannel.config().setAutoRead(true);
+    }
+
+    private static Future<Channel> failProxyChannel(final Channel upstreamChannel, final Throwable cause) {
+        LOG.debug("Failed to set up proxy channel for {}", upstreamChannel.remoteAddress(), cause);
+        upstreamChannel.close();
+        return upstreamChannel.eventLoop().newFailedFuture(cause);
+    }
+
+    private Future<Channel> openDownstreamChannel(
+            final Endpoint downstreamEndpoint,
+            final ProxyChannelInitializer initializer,
+            final SocketChannel upstreamChannel
+    ) {
+        final DownstreamChannelPool pool = downstreamPools.get(downstreamEndpoint);
+        if (pool != null) {
+            final SocketChannel pooledChannel = pool.acquire();
+            if (pooledChannel != null) {
+                // Where the initializer runs on the miss path, too
+                final Promise<Channel> promise = pooledChannel.eventLoop().newPromise();
+                pooledChannel.eventLoop().execute(() -> {
+                    try {
+                        initProxyChannel(initializer, upstreamChannel, pooledChannel);
+                    } catch (final RuntimeException e) {
+                        pooledChannel.close();
+                        promise.setFailure(e);
+                        return;
+                    }
+                    DownstreamChannelPool.activate(pooledChannel);
+                    promise.setSuccess(pooledChannel);
+                });
+                return promise;
+            }
+            return downstreamFactory.connect(
+                    downstreamEndpoint,
+                    downstreamChannel -> {
+                        pool.warmup(downstreamChannel);
+                        initProxyChannel(initializer, upstreamChannel, downstreamChannel);
+                    },
+                    true
+            );
+        }
+        return downstreamFactory.connect(
+                downstreamEndpoint,
+                downstreamChannel -> initProxyChannel(
+                        initializer,
+                        upstreamChannel,
+                        downstreamChannel
+                ),
+                true
         );
     }
 
@@ -75,11 +413,24 @@ public class ProxyChannelFactory {
                 LOGGING_CONTEXT_HANDLER,
                 new LoggingContextHandler(channelId, "downstream")
         );
+        timeouts.apply(upstreamChannel);
+        timeouts.apply(downstreamChannel);
+        shaper.apply(upstreamChannel, downstreamChannel);
+        drainer.trackDownstream(upstreamChannel, downstreamChannel);
         initializer.initialize(upstreamChannel, downstreamChannel);
         downstreamChannel.closeFuture().addListener(future -> upstreamChannel.close());
         upstreamChannel.closeFuture().addListener(future -> downstreamChannel.close());
     }
 
+    /**
+     * Holds back {@code channelActive} from the handlers added by the initializer until it's re-fired on activation.
+     */
+    private static class SetupHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelActive(final ChannelHandlerContext ctx) {
+        }
+    }
+
     public interface ProxyChannelInitializer {
         void initialize(Channel upstreamChannel, Channel downstreamChannel);
     }
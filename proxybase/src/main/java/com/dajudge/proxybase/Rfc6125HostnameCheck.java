@@ -0,0 +1,228 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import io.netty.util.NetUtil;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Verifies the server certificate against the expected hostname following RFC 6125: IP addresses are only
+ * matched against IP subject alternative names, DNS names against DNS subject alternative names (falling back to
+ * the most specific common name when there are none). A wildcard is only allowed in the left-most label and
+ * never matches more than one label or directly below a top level domain.
+ * <p>
+ * The names of a certificate are parsed and normalized once and kept in a small LRU cache, since the same few
+ * server certificates are presented on every handshake.
+ */
+public class Rfc6125HostnameCheck implements HostnameCheck {
+    private static final int SAN_DNS_NAME = 2;
+    private static final int SAN_IP_ADDRESS = 7;
+    private static final int MAX_CACHED_CERTIFICATES = 16;
+    private final String hostname;
+    private final String normalizedHostname;
+    private final byte[] ipAddress;
+    private final Map<X509Certificate, CertificateNames> namesByCertificate =
+            new LinkedHashMap<X509Certificate, CertificateNames>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<X509Certificate, CertificateNames> eldest) {
+                    return size() > MAX_CACHED_CERTIFICATES;
+                }
+            };
+
+    public Rfc6125HostnameCheck(final String hostname) {
+        this.hostname = hostname;
+        final String host = hostname.startsWith("[") && hostname.endsWith("]")
+                ? hostname.substring(1, hostname.length() - 1)
+                : hostname;
+        this.ipAddress = NetUtil.createByteArrayFromIpAddressString(host);
+        this.normalizedHostname = normalize(host);
+    }
+
+    @Override
+    public void verify(final X509Certificate cert) throws CertificateException {
+        final CertificateNames names = names(cert);
+        if (ipAddress != null ? names.matchesIpAddress(ipAddress) : names.matchesDnsName(normalizedHostname)) {
+            return;
+        }
+        throw new CertificateException("Certificate does not match hostname '" + hostname + "': DN="
+                + cert.getSubjectX500Principal() + ", SANs=" + cert.getSubjectAlternativeNames());
+    }
+
+    private CertificateNames names(final X509Certificate cert) throws CertificateParsingException {
+        synchronized (namesByCertificate) {
+            final CertificateNames names = namesByCertificate.get(cert);
+            if (names != null) {
+                return names;
+            }
+        }
+        final CertificateNames names = CertificateNames.of(cert);
+        synchronized (namesByCertificate) {
+            namesByCertificate.put(cert, names);
+        }
+        return names;
+    }
+
+    private static String commonName(final X509Certificate cert) throws CertificateParsingException {
+        try {
+            final List<Rdn> rdns = new LdapName(cert.getSubjectX500Principal().getName()).getRdns();
+            // RDNs are ordered from least to most specific
+            for (int i = rdns.size() - 1; i >= 0; i--) {
+                if ("CN".equalsIgnoreCase(rdns.get(i).getType())) {
+                    return rdns.get(i).getValue().toString();
+                }
+            }
+            return null;
+        } catch (final InvalidNameException e) {
+            throw new CertificateParsingException("Failed to parse subject DN", e);
+        }
+    }
+
+    private static String normalize(final String name) {
+        final String lowerCase = name.toLowerCase(Locale.ROOT);
+        return lowerCase.endsWith(".") ? lowerCase.substring(0, lowerCase.length() - 1) : lowerCase;
+    }
+
+    private static class CertificateNames {
+        private final Set<String> exactNames;
+        private final List<Wildcard> wildcards;
+        private final List<byte[]> ipAddresses;
+
+        private CertificateNames(
+                final Set<String> exactNames,
+                final List<Wildcard> wildcards,
+                final List<byte[]> ipAddresses
+        ) {
+            this.exactNames = exactNames;
+            this.wildcards = wildcards;
+            this.ipAddresses = ipAddresses;
+        }
+
+        private static CertificateNames of(final X509Certificate cert) throws CertificateParsingException {
+            final List<String> dnsNames = new ArrayList<>();
+            final List<byte[]> ipAddresses = new ArrayList<>();
+            final Collection<List<?>> sans = cert.getSubjectAlternativeNames();
+            if (sans != null) {
+                for (final List<?> san : sans) {
+                    if (SAN_DNS_NAME == (Integer) san.get(0)) {
+                        dnsNames.add(normalize((String) san.get(1)));
+                    } else if (SAN_IP_ADDRESS == (Integer) san.get(0)) {
+                        final byte[] address = NetUtil.createByteArrayFromIpAddressString((String) san.get(1));
+                        if (address != null) {
+                            ipAddresses.add(address);
+                        }
+                    }
+                }
+            }
+            if (dnsNames.isEmpty()) {
+                final String commonName = commonName(cert);
+                if (commonName != null) {
+                    dnsNames.add(normalize(commonName));
+                }
+            }
+            final Set<String> exactNames = new HashSet<>();
+            final List<Wildcard> wildcards = new ArrayList<>();
+            for (final String dnsName : dnsNames) {
+                if (dnsName.indexOf('*') < 0) {
+                    exactNames.add(dnsName);
+                } else {
+                    final Wildcard wildcard = Wildcard.parse(dnsName);
+                    if (wildcard != null) {
+                        wildcards.add(wildcard);
+                    }
+                }
+            }
+            return new CertificateNames(exactNames, wildcards, ipAddresses);
+        }
+
+        private boolean matchesDnsName(final String host) {
+            if (exactNames.contains(host)) {
+                return true;
+            }
+            for (final Wildcard wildcard : wildcards) {
+                if (wildcard.matches(host)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matchesIpAddress(final byte[] address) {
+            for (final byte[] ipAddress : ipAddresses) {
+                if (Arrays.equals(address, ipAddress)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Wildcard {
+        private final String prefix;
+        private final String suffix;
+        private final String domain;
+
+        private Wildcard(final String prefix, final String suffix, final String domain) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.domain = domain;
+        }
+
+        /**
+         * @return the wildcard pattern, or {@code null} if the pattern is not allowed.
+         */
+        private static Wildcard parse(final String pattern) {
+            final int wildcard = pattern.indexOf('*');
+            final int firstDot = pattern.indexOf('.');
+            if (firstDot < wildcard || pattern.indexOf('*', wildcard + 1) >= 0
+                    || pattern.indexOf('.', firstDot + 1) < 0) {
+                // Wildcard outside the left-most label, multiple wildcards or wildcard directly below the TLD
+                return null;
+            }
+            return new Wildcard(
+                    pattern.substring(0, wildcard),
+                    pattern.substring(wildcard + 1, firstDot),
+                    pattern.substring(firstDot)
+            );
+        }
+
+        private boolean matches(final String host) {
+            final int hostFirstDot = host.indexOf('.');
+            return hostFirstDot >= 0
+                    && host.length() - hostFirstDot == domain.length()
+                    && host.startsWith(domain, hostFirstDot)
+                    && hostFirstDot >= prefix.length() + suffix.length()
+                    && host.startsWith(prefix)
+                    && host.startsWith(suffix, hostFirstDot - suffix.length());
+        }
+    }
+}
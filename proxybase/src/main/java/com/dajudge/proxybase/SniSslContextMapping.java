@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.Mapping;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Maps SNI hostnames to the SSL context of the matching key store. The hostname table is immutable after
+ * construction, so lookups on the handshake path don't need any locking.
+ */
+class SniSslContextMapping implements Mapping<String, SslContext> {
+    private final UpstreamSslContextProvider defaultProvider;
+    private final Map<String, UpstreamSslContextProvider> providersByHostname;
+
+    SniSslContextMapping(
+            final UpstreamSslContextProvider defaultProvider,
+            final Map<String, UpstreamSslContextProvider> providersByHostname
+    ) {
+        this.defaultProvider = defaultProvider;
+        this.providersByHostname = new HashMap<>();
+        providersByHostname.forEach((hostname, provider) ->
+                this.providersByHostname.put(normalize(hostname), provider));
+    }
+
+    @Override
+    public SslContext map(final String hostname) {
+        return lookup(hostname).getContext();
+    }
+
+    private UpstreamSslContextProvider lookup(final String hostname) {
+        if (hostname == null) {
+            return defaultProvider;
+        }
+        final String normalized = normalize(hostname);
+        final UpstreamSslContextProvider exactMatch = providersByHostname.get(normalized);
+        if (exactMatch != null) {
+            return exactMatch;
+        }
+        final int firstDot = normalized.indexOf('.');
+        if (firstDot > 0) {
+            final String wildcard = "*" + normalized.substring(firstDot);
+            final UpstreamSslContextProvider wildcardMatch = providersByHostname.get(wildcard);
+            if (wildcardMatch != null) {
+                return wildcardMatch;
+            }
+        }
+        return defaultProvider;
+    }
+
+    private static String normalize(final String hostname) {
+        final String lowerCase = hostname.toLowerCase(Locale.ROOT);
+        return lowerCase.endsWith(".") ? lowerCase.substring(0, lowerCase.length() - 1) : lowerCase;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.metrics.Metrics;
+import io.netty.handler.ssl.SslHandler;
+
+import javax.net.ssl.SSLSession;
+
+class SslSessionMetrics {
+    private final Metrics metrics;
+    private final String fullHandshakes;
+    private final String resumedHandshakes;
+    private final String failedHandshakes;
+    private final String handshakeDuration;
+
+    SslSessionMetrics(final String direction, final Metrics metrics) {
+        this.metrics = metrics;
+        this.fullHandshakes = direction + ".tls.handshakes.full";
+        this.resumedHandshakes = direction + ".tls.handshakes.resumed";
+        this.failedHandshakes = direction + ".tls.handshakes.failed";
+        this.handshakeDuration = direction + ".tls.handshake.duration.nanos";
+    }
+
+    SslHandler track(final SslHandler handler) {
+        final long handshakeStart = System.currentTimeMillis();
+        final long handshakeStartNanos = System.nanoTime();
+        handler.handshakeFuture().addListener(future -> {
+            metrics.record(handshakeDuration, System.nanoTime() - handshakeStartNanos);
+            if (!future.isSuccess()) {
+                metrics.count(failedHandshakes, 1);
+                return;
+            }
+            // A resumed session keeps the creation time of the session it was resumed from
+            final SSLSession session = handler.engine().getSession();
+            metrics.count(session.getCreationTime() < handshakeStart ? resumedHandshakes : fullHandshakes, 1);
+        });
+        return handler;
+    }
+}
@@ -20,6 +20,7 @@ package com.dajudge.proxybase;
 import com.dajudge.proxybase.certs.KeyStoreManager;
 import com.dajudge.proxybase.certs.KeyStoreWrapper;
 import com.dajudge.proxybase.config.Endpoint;
+import com.dajudge.proxybase.metrics.Metrics;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 
@@ -29,6 +30,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
+import static com.dajudge.proxybase.metrics.Metrics.NULL_METRICS;
 import static java.util.Arrays.asList;
 import static java.util.Arrays.stream;
 import static javax.net.ssl.TrustManagerFactory.getDefaultAlgorithm;
@@ -57,6 +59,13 @@ class SslUtils {
         }
     }
 
+    static X509TrustManager[] createTrustManagers(final KeyStoreWrapper trustStore) {
+        return stream(createTrustManagerFactory(trustStore).getTrustManagers())
+                .filter(it -> it instanceof X509TrustManager)
+                .map(it -> (X509TrustManager) it)
+                .toArray(X509TrustManager[]::new);
+    }
+
     static X509KeyManager[] createKeyManagers(final KeyStoreManager keyStoreManager) {
         return createKeyManagers(Optional.of(keyStoreManager));
     }
@@ -72,30 +81,65 @@ class SslUtils {
     }
 
     static KeyManagerFactory createKeyManagerFactory(final Optional<? extends KeyStoreManager> keyStoreManager) {
+        if (keyStoreManager.isPresent()) {
+            return createKeyManagerFactory(keyStoreManager.get().getKeyStore());
+        }
         try {
             final KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-            if (keyStoreManager.isPresent()) {
-                final KeyStoreManager keyStoreWrapper = keyStoreManager.get();
-                final KeyStoreWrapper keyStore = keyStoreWrapper.getKeyStore();
-                factory.init(keyStore.getKeyStore(), keyStore.getKeyPassword());
-            } else {
-                factory.init(null, null);
-            }
+            factory.init(null, null);
             return factory;
         } catch (final UnrecoverableKeyException | KeyStoreException | NoSuchAlgorithmException e) {
             throw new RuntimeException("Failed to setup key manager", e);
         }
     }
 
+    static KeyManagerFactory createKeyManagerFactory(final KeyStoreWrapper keyStore) {
+        try {
+            final KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            factory.init(keyStore.getKeyStore(), keyStore.getKeyPassword());
+            return factory;
+        } catch (final UnrecoverableKeyException | KeyStoreException | NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to setup key manager", e);
+        }
+    }
+
+    static TrustManagerFactory createTrustManagerFactory(final KeyStoreWrapper trustStore) {
+        try {
+            final TrustManagerFactory factory = TrustManagerFactory.getInstance(getDefaultAlgorithm());
+            factory.init(trustStore == null ? null : trustStore.getKeyStore());
+            return factory;
+        } catch (final KeyStoreException | NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to setup trust manager", e);
+        }
+    }
+
     static SslContext createClientSslContext(
             final HostnameCheck hostnameCheck,
             final Optional<? extends KeyStoreManager> trustStoreManager,
             final Optional<? extends KeyStoreManager> keyStoreManager
+    ) throws NoSuchAlgorithmException, KeyManagementException, SSLException {
+        return createClientSslContext(hostnameCheck, trustStoreManager, keyStoreManager, 0, 0, NULL_METRICS);
+    }
+
+    static SslContext createClientSslContext(
+            final HostnameCheck hostnameCheck,
+            final Optional<? extends KeyStoreManager> trustStoreManager,
+            final Optional<? extends KeyStoreManager> keyStoreManager,
+            final long sessionCacheSize,
+            final long sessionTimeoutSecs,
+            final Metrics metrics
     ) throws NoSuchAlgorithmException, KeyManagementException, SSLException {
         final SSLContext clientContext = SSLContext.getInstance("TLS");
         final HostCheckingTrustManager trustManager = new HostCheckingTrustManager(
-                createTrustManagers(trustStoreManager),
-                hostnameCheck
+                trustStoreManager,
+                hostnameCheck,
+                new VerifiedCertificateCache(
+                        "downstream.tls.verification",
+                        VerifiedCertificateCache.DEFAULT_MAX_ENTRIES,
+                        VerifiedCertificateCache.DEFAULT_TTL_MSECS,
+                        System::currentTimeMillis,
+                        metrics
+                )
         );
         final X509TrustManager[] trustManagers = {
                 trustManager
@@ -105,6 +149,8 @@ class SslUtils {
         return SslContextBuilder.forClient()
                 .keyManager(createKeyManagerFactory(keyStoreManager))
                 .trustManager(trustManager)
+                .sessionCacheSize(sessionCacheSize)
+                .sessionTimeout(sessionTimeoutSecs)
                 .build();
     }
 }
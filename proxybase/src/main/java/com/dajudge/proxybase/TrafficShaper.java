@@ -0,0 +1,225 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.config.BandwidthLimit;
+import com.dajudge.proxybase.config.TrafficShapingConfig;
+import com.dajudge.proxybase.metrics.Metrics;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.BiConsumer;
+
+import static com.dajudge.proxybase.ProxyApplication.LOGGING_CONTEXT_HANDLER;
+import static com.dajudge.proxybase.ProxyChannelFactory.TRAFFIC_SHAPED_BYTES;
+import static com.dajudge.proxybase.ProxyChannelFactory.TRAFFIC_SHAPING_DELAY;
+
+/**
+ * Limits the throughput of proxy connections globally, per listen address and per client identity, using Netty's
+ * traffic shaping. Only reads are shaped: the bytes read from a client are limited on its upstream channel, the
+ * bytes written to a client by reading more slowly from its downstream channel. Throttling thus pauses auto read
+ * of the channel the data comes from instead of queueing writes in the proxy.
+ * <p>
+ * Multiplexed connections share their downstream channel with other clients, so pausing it would throttle all of
+ * them. The bytes written to such a client are shaped on its upstream channel instead: writes beyond the limit are
+ * delayed and make the upstream channel unwritable, which in turn pauses the shared downstream channel via the
+ * writability propagation of the multiplexer.
+ */
+class TrafficShaper implements AutoCloseable {
+    private static final String HANDLER_PREFIX = TrafficShaper.class.getName() + "#";
+    private static final AttributeKey<Long> PAUSED_AT = AttributeKey.valueOf(TrafficShaper.class, "pausedAt");
+
+    private final TrafficShapingConfig config;
+    private final ScheduledExecutorService executor;
+    private final Metrics metrics;
+    private final Shaping global;
+    private final Map<SocketAddress, Shaping> listeners = new ConcurrentHashMap<>();
+    private final Map<String, Shaping> clients = new ConcurrentHashMap<>();
+
+    TrafficShaper(
+            final TrafficShapingConfig config,
+            final ScheduledExecutorService executor,
+            final Metrics metrics
+    ) {
+        this.config = config;
+        this.executor = executor;
+        this.metrics = metrics;
+        this.global = config.getGlobal().isLimited() ? new Shaping(config.getGlobal()) : null;
+    }
+
+    void apply(final Channel upstreamChannel, final Channel downstreamChannel) {
+        apply(upstreamChannel, (shaping, level) -> shaping.apply(upstreamChannel, downstreamChannel, level));
+    }
+
+    /**
+     * Shapes an upstream channel whose downstream channel is shared with other upstream channels.
+     */
+    void applyMultiplexed(final Channel upstreamChannel) {
+        apply(upstreamChannel, (shaping, level) -> shaping.applyMultiplexed(upstreamChannel, level));
+    }
+
+    private void apply(final Channel upstreamChannel, final BiConsumer<Shaping, String> application) {
+        if (global != null) {
+            application.accept(global, "global");
+        }
+        if (config.getPerListener().isLimited() && upstreamChannel.parent() != null) {
+            application.accept(listeners.computeIfAbsent(
+                    upstreamChannel.parent().localAddress(),
+                    address -> new Shaping(config.getPerListener())
+            ), "listener");
+        }
+        if (config.getPerClient().isLimited()) {
+            final String identity = config.getClientIdentity().apply(upstreamChannel);
+            application.accept(acquireClient(identity), "client");
+            upstreamChannel.closeFuture().addListener(future -> releaseClient(identity));
+        }
+    }
+
+    private Shaping acquireClient(final String identity) {
+        return clients.compute(identity, (key, existing) -> {
+            final Shaping shaping = existing != null ? existing : new Shaping(config.getPerClient());
+            shaping.references++;
+            return shaping;
+        });
+    }
+
+    private void releaseClient(final String identity) {
+        clients.computeIfPresent(identity, (key, shaping) -> {
+            if (--shaping.references > 0) {
+                return shaping;
+            }
+            shaping.release();
+            return null;
+        });
+    }
+
+    @Override
+    public void close() {
+        if (global != null) {
+            global.release();
+        }
+        listeners.values().forEach(Shaping::release);
+        clients.values().forEach(Shaping::release);
+    }
+
+    private class Shaping {
+        private final BandwidthLimit limit;
+        private final ShapingHandler upstreamReads;
+        private final ShapingHandler downstreamReads;
+        // Created on first use, multiplexed connections only
+        private ShapingHandler upstreamWrites;
+        // Only modified while holding the lock of the map entry
+        private int references;
+
+        private Shaping(final BandwidthLimit limit) {
+            this.limit = limit;
+            upstreamReads = limit.getReadBytesPerSec() > 0 ? new ShapingHandler(0, limit.getReadBytesPerSec()) : null;
+            downstreamReads = limit.getWriteBytesPerSec() > 0
+                    ? new ShapingHandler(0, limit.getWriteBytesPerSec())
+                    : null;
+        }
+
+        private void applyMultiplexed(final Channel upstreamChannel, final String level) {
+            if (upstreamReads != null) {
+                upstreamChannel.pipeline().addAfter(LOGGING_CONTEXT_HANDLER, HANDLER_PREFIX + level, upstreamReads);
+            }
+            final ShapingHandler writes = getUpstreamWrites();
+            if (writes != null) {
+                upstreamChannel.pipeline().addAfter(
+                        LOGGING_CONTEXT_HANDLER,
+                        HANDLER_PREFIX + level + ".writes",
+                        writes
+                );
+            }
+        }
+
+        private synchronized ShapingHandler getUpstreamWrites() {
+            if (upstreamWrites == null && limit.getWriteBytesPerSec() > 0) {
+                upstreamWrites = new ShapingHandler(limit.getWriteBytesPerSec(), 0);
+            }
+            return upstreamWrites;
+        }
+
+        private void apply(final Channel upstreamChannel, final Channel downstreamChannel, final String level) {
+            if (upstreamReads != null) {
+                upstreamChannel.pipeline().addAfter(LOGGING_CONTEXT_HANDLER, HANDLER_PREFIX + level, upstreamReads);
+            }
+            if (downstreamReads != null) {
+                downstreamChannel.pipeline().addAfter(
+                        LOGGING_CONTEXT_HANDLER,
+                        HANDLER_PREFIX + level,
+                        downstreamReads
+                );
+            }
+        }
+
+        private void release() {
+            if (upstreamReads != null) {
+                upstreamReads.release();
+            }
+            if (downstreamReads != null) {
+                downstreamReads.release();
+            }
+            synchronized (this) {
+                if (upstreamWrites != null) {
+                    upstreamWrites.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the reads after which the shaper paused reading and measures how long reading stayed paused, which
+     * ends with the shaper's next {@link #read(ChannelHandlerContext)}.
+     */
+    @ChannelHandler.Sharable
+    private class ShapingHandler extends GlobalTrafficShapingHandler {
+        private ShapingHandler(final long writeLimit, final long readLimit) {
+            super(executor, writeLimit, readLimit, config.getCheckIntervalMsecs(), config.getMaxDelayMsecs());
+        }
+
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+            final long size = calculateSize(msg);
+            final boolean wasReading = ctx.channel().config().isAutoRead();
+            super.channelRead(ctx, msg);
+            if (size > 0 && wasReading && !ctx.channel().config().isAutoRead()) {
+                metrics.count(TRAFFIC_SHAPED_BYTES, size);
+                ctx.channel().attr(PAUSED_AT).setIfAbsent(System.nanoTime());
+            }
+        }
+
+        @Override
+        public void read(final ChannelHandlerContext ctx) {
+            final Attribute<Long> pausedAt = ctx.channel().attr(PAUSED_AT);
+            final Long paused = pausedAt.getAndSet(null);
+            if (paused != null) {
+                metrics.record(TRAFFIC_SHAPING_DELAY, System.nanoTime() - paused);
+            }
+            super.read(ctx);
+        }
+    }
+}
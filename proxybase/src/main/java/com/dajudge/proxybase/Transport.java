@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The channel implementation used for the event loops, server channels, client channels and DNS queries, which
+ * must match.
+ */
+abstract class Transport {
+    private static final Logger LOG = LoggerFactory.getLogger(Transport.class);
+
+    static final Transport NIO = new Transport() {
+        @Override
+        EventLoopGroup createGroup(final int threads, final ThreadFactory threadFactory, final int ioRatio) {
+            final NioEventLoopGroup group = new NioEventLoopGroup(threads, threadFactory);
+            if (ioRatio > 0) {
+                group.setIoRatio(ioRatio);
+            }
+            return group;
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        Class<? extends SocketChannel> channelClass() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        Class<? extends DatagramChannel> datagramChannelClass() {
+            return NioDatagramChannel.class;
+        }
+
+        @Override
+        boolean supportsReusePort() {
+            return false;
+        }
+    };
+
+    static final Transport EPOLL = new Transport() {
+        @Override
+        EventLoopGroup createGroup(final int threads, final ThreadFactory threadFactory, final int ioRatio) {
+            // The epoll event loop no longer honors the I/O ratio, so it's not passed on
+            return new EpollEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        Class<? extends SocketChannel> channelClass() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        Class<? extends DatagramChannel> datagramChannelClass() {
+            return EpollDatagramChannel.class;
+        }
+
+        @Override
+        boolean supportsReusePort() {
+            return true;
+        }
+    };
+
+    /**
+     * @param threads       the number of event loops, or {@code 0} for Netty's default.
+     * @param threadFactory the factory for the event loop threads, or {@code null} for Netty's default.
+     * @param ioRatio       the percentage of time spent on I/O, or {@code 0} for Netty's default. Only applies to
+     *                      NIO.
+     */
+    abstract EventLoopGroup createGroup(int threads, ThreadFactory threadFactory, int ioRatio);
+
+    abstract Class<? extends ServerChannel> serverChannelClass();
+
+    abstract Class<? extends SocketChannel> channelClass();
+
+    abstract Class<? extends DatagramChannel> datagramChannelClass();
+
+    abstract boolean supportsReusePort();
+
+    /**
+     * @param preferEpoll whether to use the native epoll transport if it's available on this platform.
+     * @return the epoll transport if preferred and available, the NIO transport otherwise.
+     */
+    static Transport select(final boolean preferEpoll) {
+        if (!preferEpoll) {
+            return NIO;
+        }
+        if (Epoll.isAvailable()) {
+            return EPOLL;
+        }
+        LOG.warn("Native epoll transport is not available, falling back to NIO", Epoll.unavailabilityCause());
+        return NIO;
+    }
+}
@@ -20,47 +20,89 @@ package com.dajudge.proxybase;
 import com.dajudge.proxybase.config.Endpoint;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
-import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
 
-import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.Collections.singletonList;
 
 class UpstreamChannelFactory {
     private static final Logger LOG = LoggerFactory.getLogger(UpstreamChannelFactory.class);
 
-    private final NioEventLoopGroup bossGroup;
-    private final NioEventLoopGroup upstreamWorkerGroup;
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup upstreamWorkerGroup;
+    private final Transport transport;
+    private final int reusePortAcceptors;
+    private final ConnectionDrainer drainer;
+    private final int backlog;
+    private final UpstreamConnectionLimiter limiter;
 
+    /**
+     * @param reusePortAcceptors the number of server channels to bind per endpoint with {@code SO_REUSEPORT}, or
+     *                           {@code 0} to bind a single server channel without it.
+     * @param backlog            the length of the accept queue of each server channel.
+     */
     UpstreamChannelFactory(
-            final NioEventLoopGroup bossGroup,
-            final NioEventLoopGroup upstreamWorkerGroup
+            final EventLoopGroup bossGroup,
+            final EventLoopGroup upstreamWorkerGroup,
+            final Transport transport,
+            final int reusePortAcceptors,
+            final ConnectionDrainer drainer,
+            final int backlog,
+            final UpstreamConnectionLimiter limiter
     ) {
+        if (reusePortAcceptors > 0 && !transport.supportsReusePort()) {
+            throw new IllegalArgumentException("SO_REUSEPORT requires the native epoll transport");
+        }
         this.bossGroup = bossGroup;
         this.upstreamWorkerGroup = upstreamWorkerGroup;
+        this.transport = transport;
+        this.reusePortAcceptors = reusePortAcceptors;
+        this.drainer = drainer;
+        this.backlog = backlog;
+        this.limiter = limiter;
     }
 
-    Channel create(
+    List<Channel> create(
             final Endpoint endpoint,
             final Consumer<SocketChannel> inizializer
     ) {
-        final List<SocketChannel> openChildChannels = new ArrayList<>();
+        if (reusePortAcceptors == 0) {
+            return singletonList(bind(endpoint.getHost(), endpoint.getPort(), inizializer));
+        }
+        // Bind the first acceptor on its own, so an ephemeral port is resolved before the others join it
+        final Channel first = bind(endpoint.getHost(), endpoint.getPort(), inizializer);
+        final int port = ((InetSocketAddress) first.localAddress()).getPort();
+        final List<Channel> channels = new ArrayList<>();
+        channels.add(first);
+        for (int i = 1; i < reusePortAcceptors; i++) {
+            channels.add(bind(endpoint.getHost(), port, inizializer));
+        }
+        return channels;
+    }
+
+    private Channel bind(
+            final String host,
+            final int port,
+            final Consumer<SocketChannel> inizializer
+    ) {
         try {
-            final Channel channel = new ServerBootstrap()
+            final ServerBootstrap bootstrap = new ServerBootstrap();
+            if (reusePortAcceptors > 0) {
+                bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+            final Channel channel = bootstrap
                     .group(bossGroup, upstreamWorkerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(transport.serverChannelClass())
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(final SocketChannel ch) throws Exception {
@@ -70,46 +112,26 @@ class UpstreamChannelFactory {
                                     ch.remoteAddress().getHostString(),
                                     ch.remoteAddress().getPort());
 
-                            openChildChannels.add(ch);
+                            if (!limiter.admit(ch)) {
+                                // Reset instead of a graceful close, so rejected sockets don't linger in TIME_WAIT
+                                ch.config().setOption(ChannelOption.SO_LINGER, 0);
+                                ch.close();
+                                return;
+                            }
+                            drainer.track(ch);
                             inizializer.accept(ch);
-                            ch.closeFuture().addListener(future -> openChildChannels.remove(ch));
                         }
                     })
-                    .option(ChannelOption.SO_BACKLOG, 128)
+                    .option(ChannelOption.SO_BACKLOG, backlog)
                     .childOption(ChannelOption.SO_KEEPALIVE, true)
-                    .bind(endpoint.getHost(), endpoint.getPort())
+                    .bind(host, port)
                     .sync()
                     .channel();
-            channel.closeFuture().addListener(future -> closeChildChannels(openChildChannels));
             final InetSocketAddress address = (InetSocketAddress) channel.localAddress();
             LOG.debug("Upstream channel bound: {}:{}", address.getHostString(), address.getPort());
             return channel;
         } catch (final InterruptedException e) {
-            throw new RuntimeException("Failed to bind upstream channel: " + endpoint, e);
+            throw new RuntimeException("Failed to bind upstream channel: " + host + ":" + port, e);
         }
     }
-
-    private static void closeChildChannels(final List<SocketChannel> openChildChannels) {
-        new ArrayList<>(openChildChannels).stream()
-                .map(SocketChannel::closeFuture)
-                .filter(Objects::nonNull)
-                .collect(Collectors.toList())
-                .forEach(UpstreamChannelFactory::awaitChildClosed);
-    }
-
-    private static void awaitChildClosed(final ChannelFuture childFuture) {
-        final InetSocketAddress address = (InetSocketAddress) childFuture.channel().remoteAddress();
-        try {
-            childFuture.await(5, SECONDS);
-            LOG.debug("Closed upstream channel for {}:{}", address.getAddress(), address.getPort());
-        } catch (final InterruptedException e) {
-            LOG.error(
-                    "Failed to close upstream channel for {}:{}",
-                    address.getAddress(),
-                    address.getPort(),
-                    e
-            );
-        }
-    }
-
 }
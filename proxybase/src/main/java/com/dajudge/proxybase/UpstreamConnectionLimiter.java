@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.config.UpstreamLimitsConfig;
+import com.dajudge.proxybase.metrics.Metrics;
+import io.netty.channel.socket.SocketChannel;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static com.dajudge.proxybase.ProxyApplication.UPSTREAM_CLIENTS;
+import static com.dajudge.proxybase.ProxyApplication.UPSTREAM_REJECTED_ACCEPT_RATE;
+import static com.dajudge.proxybase.ProxyApplication.UPSTREAM_REJECTED_CLIENT_LIMIT;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Decides whether to keep an accepted upstream connection, based on a global accept rate and the number of open
+ * connections per client IP address. The accept rate is a token bucket implemented as a generic cell rate
+ * algorithm on a single CAS'd timestamp; the per-client counts only lock the hash bin of the client's address.
+ */
+class UpstreamConnectionLimiter {
+    private final int maxConnectionsPerClient;
+    private final long intervalNanos;
+    private final long burstToleranceNanos;
+    private final Metrics metrics;
+    private final Supplier<Long> nanoClock;
+    private final Map<InetAddress, Integer> connectionsPerClient = new ConcurrentHashMap<>();
+    private final AtomicLong theoreticalArrival;
+
+    UpstreamConnectionLimiter(
+            final UpstreamLimitsConfig config,
+            final Metrics metrics,
+            final Supplier<Long> nanoClock
+    ) {
+        this.maxConnectionsPerClient = config.getMaxConnectionsPerClient();
+        this.intervalNanos = config.getAcceptsPerSecond() > 0
+                ? SECONDS.toNanos(1) / config.getAcceptsPerSecond()
+                : 0;
+        this.burstToleranceNanos = intervalNanos * Math.max(0, config.getAcceptBurst() - 1);
+        this.metrics = metrics;
+        this.nanoClock = nanoClock;
+        this.theoreticalArrival = new AtomicLong(nanoClock.get());
+        metrics.gauge(UPSTREAM_CLIENTS, connectionsPerClient::size);
+    }
+
+    /**
+     * @return {@code true} if the connection may be used, {@code false} if it must be closed.
+     */
+    boolean admit(final SocketChannel channel) {
+        if (!acquireAcceptToken()) {
+            metrics.count(UPSTREAM_REJECTED_ACCEPT_RATE, 1);
+            return false;
+        }
+        if (maxConnectionsPerClient <= 0) {
+            return true;
+        }
+        final InetAddress client = channel.remoteAddress().getAddress();
+        if (!acquireClientSlot(client)) {
+            metrics.count(UPSTREAM_REJECTED_CLIENT_LIMIT, 1);
+            return false;
+        }
+        channel.closeFuture().addListener(future -> releaseClientSlot(client));
+        return true;
+    }
+
+    boolean acquireAcceptToken() {
+        if (intervalNanos <= 0) {
+            return true;
+        }
+        final long now = nanoClock.get();
+        while (true) {
+            final long arrival = theoreticalArrival.get();
+            final long next = Math.max(arrival, now);
+            if (next - now > burstToleranceNanos) {
+                return false;
+            }
+            if (theoreticalArrival.compareAndSet(arrival, next + intervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    boolean acquireClientSlot(final InetAddress client) {
+        final boolean[] acquired = {false};
+        connectionsPerClient.compute(client, (address, count) -> {
+            final int current = count == null ? 0 : count;
+            if (current >= maxConnectionsPerClient) {
+                return count;
+            }
+            acquired[0] = true;
+            return current + 1;
+        });
+        return acquired[0];
+    }
+
+    void releaseClientSlot(final InetAddress client) {
+        connectionsPerClient.computeIfPresent(client, (address, count) -> count > 1 ? count - 1 : null);
+    }
+}
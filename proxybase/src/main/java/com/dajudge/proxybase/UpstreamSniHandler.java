@@ -0,0 +1,64 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.ssl.SniHandler;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.concurrent.Executor;
+
+class UpstreamSniHandler extends SniHandler {
+    private final SslSessionMetrics sessionMetrics;
+    private final Executor handshakeExecutor;
+
+    UpstreamSniHandler(
+            final SniSslContextMapping mapping,
+            final SslSessionMetrics sessionMetrics,
+            final Executor handshakeExecutor
+    ) {
+        super(mapping);
+        this.sessionMetrics = sessionMetrics;
+        this.handshakeExecutor = handshakeExecutor;
+    }
+
+    @Override
+    protected void replaceHandler(
+            final ChannelHandlerContext ctx,
+            final String hostname,
+            final SslContext sslContext
+    ) {
+        SslHandler sslHandler = null;
+        try {
+            sslHandler = new SslHandler(
+                    sslContext.newEngine(ctx.alloc()),
+                    false,
+                    HandshakeExecutor.closeOnRejection(handshakeExecutor, ctx.channel())
+            );
+            ctx.pipeline().replace(this, SslHandler.class.getName(), sessionMetrics.track(sslHandler));
+            sslHandler = null;
+        } finally {
+            // Release the engine if the handler never made it into the pipeline
+            if (sslHandler != null) {
+                ReferenceCountUtil.safeRelease(sslHandler.engine());
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.certs.KeyStoreManager;
+import com.dajudge.proxybase.certs.KeyStoreWrapper;
+import com.dajudge.proxybase.certs.SessionTicketKey;
+import com.dajudge.proxybase.metrics.Metrics;
+import io.netty.handler.ssl.ClientAuth;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+import static com.dajudge.proxybase.SslUtils.createKeyManagerFactory;
+import static com.dajudge.proxybase.certs.KeyStoreWrapper.sameContent;
+import static com.dajudge.proxybase.SslUtils.createTrustManagers;
+
+/**
+ * Keeps a single server {@link SslContext} alive across connections, so its session cache and session ticket
+ * keys can be used for resumption. The context is only rebuilt when the content of the key store or trust store
+ * changes; connections to an unchanged configuration are served without locking.
+ */
+class UpstreamSslContextProvider {
+    private static final Logger LOG = LoggerFactory.getLogger(UpstreamSslContextProvider.class);
+    private final boolean enableClientAuth;
+    private final Optional<? extends KeyStoreManager> trustStoreManager;
+    private final KeyStoreManager keyStoreManager;
+    private final long sessionCacheSize;
+    private final long sessionTimeoutSecs;
+    private final Optional<? extends Supplier<List<SessionTicketKey>>> sessionTicketKeys;
+    private final VerifiedCertificateCache clientCertificates;
+    private volatile State state;
+
+    UpstreamSslContextProvider(
+            final boolean enableClientAuth,
+            final Optional<? extends KeyStoreManager> trustStoreManager,
+            final KeyStoreManager keyStoreManager,
+            final long sessionCacheSize,
+            final long sessionTimeoutSecs,
+            final Optional<? extends Supplier<List<SessionTicketKey>>> sessionTicketKeys,
+            final Metrics metrics
+    ) {
+        if (sessionTicketKeys.isPresent() && !OpenSsl.isAvailable()) {
+            throw new IllegalArgumentException(
+                    "Session ticket keys require the OpenSSL provider (netty-tcnative), which is not available",
+                    OpenSsl.unavailabilityCause()
+            );
+        }
+        this.enableClientAuth = enableClientAuth;
+        this.trustStoreManager = trustStoreManager;
+        this.keyStoreManager = keyStoreManager;
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeoutSecs = sessionTimeoutSecs;
+        this.sessionTicketKeys = sessionTicketKeys;
+        this.clientCertificates = new VerifiedCertificateCache(
+                "upstream.tls.client_verification",
+                VerifiedCertificateCache.DEFAULT_MAX_ENTRIES,
+                VerifiedCertificateCache.DEFAULT_TTL_MSECS,
+                System::currentTimeMillis,
+                metrics
+        );
+    }
+
+    SslContext getContext() {
+        final KeyStoreWrapper keyStore = keyStoreManager.getKeyStore();
+        final KeyStoreWrapper trustStore = trustStoreManager.map(KeyStoreManager::getKeyStore).orElse(null);
+        final List<SessionTicketKey> ticketKeys = sessionTicketKeys.<List<SessionTicketKey>>map(Supplier::get)
+                .orElse(null);
+        final State current = state;
+        if (current != null && current.isFor(keyStore, trustStore, ticketKeys)) {
+            return current.context;
+        }
+        return update(keyStore, trustStore, ticketKeys);
+    }
+
+    private synchronized SslContext update(
+            final KeyStoreWrapper keyStore,
+            final KeyStoreWrapper trustStore,
+            final List<SessionTicketKey> ticketKeys
+    ) {
+        final State current = state;
+        if (current != null && current.isFor(keyStore, trustStore, ticketKeys)) {
+            return current.context;
+        }
+        final SslContext context;
+        final boolean keyStoreChanged = current == null || !sameContent(keyStore, current.keyStore);
+        final boolean trustStoreChanged = current == null || !sameContent(trustStore, current.trustStore);
+        if (keyStoreChanged || trustStoreChanged) {
+            if (trustStoreChanged) {
+                clientCertificates.clear();
+            }
+            context = createContext(keyStore, trustStore);
+            if (ticketKeys != null) {
+                installSessionTicketKeys(context, ticketKeys);
+            }
+        } else {
+            // Reloaded without changes: keep the context and its session cache
+            context = current.context;
+            if (ticketKeys != current.ticketKeys && ticketKeys != null) {
+                installSessionTicketKeys(context, ticketKeys);
+            }
+        }
+        state = new State(keyStore, trustStore, ticketKeys, context);
+        return context;
+    }
+
+    private SslContext createContext(final KeyStoreWrapper keyStore, final KeyStoreWrapper trustStore) {
+        try {
+            return SslContextBuilder.forServer(createKeyManagerFactory(keyStore))
+                    .trustManager(new CachingClientTrustManager(createTrustManagers(trustStore), clientCertificates))
+                    .clientAuth(enableClientAuth ? ClientAuth.REQUIRE : ClientAuth.NONE)
+                    .sslProvider(sessionTicketKeys.isPresent() ? SslProvider.OPENSSL : SslProvider.JDK)
+                    .sessionCacheSize(sessionCacheSize)
+                    .sessionTimeout(sessionTimeoutSecs)
+                    .build();
+        } catch (final SSLException e) {
+            throw new RuntimeException("Failed to initialize upstream SSL context", e);
+        }
+    }
+
+    private static void installSessionTicketKeys(final SslContext context, final List<SessionTicketKey> keys) {
+        // Contexts with session ticket keys always use the OpenSSL provider
+        ((OpenSslSessionContext) context.sessionContext()).setTicketKeys(keys.stream()
+                .map(it -> new OpenSslSessionTicketKey(it.getName(), it.getHmacKey(), it.getAesKey()))
+                .toArray(OpenSslSessionTicketKey[]::new));
+        LOG.debug("Installed {} session ticket keys", keys.size());
+    }
+
+    private static class State {
+        private final KeyStoreWrapper keyStore;
+        private final KeyStoreWrapper trustStore;
+        private final List<SessionTicketKey> ticketKeys;
+        private final SslContext context;
+
+        private State(
+                final KeyStoreWrapper keyStore,
+                final KeyStoreWrapper trustStore,
+                final List<SessionTicketKey> ticketKeys,
+                final SslContext context
+        ) {
+            this.keyStore = keyStore;
+            this.trustStore = trustStore;
+            this.ticketKeys = ticketKeys;
+            this.context = context;
+        }
+
+        private boolean isFor(
+                final KeyStoreWrapper keyStore,
+                final KeyStoreWrapper trustStore,
+                final List<SessionTicketKey> ticketKeys
+        ) {
+            return this.keyStore == keyStore && this.trustStore == trustStore && this.ticketKeys == ticketKeys;
+        }
+    }
+}
@@ -19,9 +19,16 @@ package com.dajudge.proxybase;
 
 import com.dajudge.proxybase.certs.Filesystem;
 import com.dajudge.proxybase.certs.KeyStoreManager;
+import com.dajudge.proxybase.certs.ReloadingResource;
+import com.dajudge.proxybase.certs.SessionTicketKey;
+import com.dajudge.proxybase.certs.SessionTicketKeyLoader;
+import com.dajudge.proxybase.config.UpstreamSniConfig;
 import com.dajudge.proxybase.config.UpstreamSslConfig;
+import com.dajudge.proxybase.metrics.Metrics;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
 import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.ImmediateExecutor;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
@@ -29,14 +36,111 @@ import javax.net.ssl.SSLEngine;
 import javax.net.ssl.TrustManager;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 import static com.dajudge.proxybase.SslUtils.createKeyManagers;
 import static com.dajudge.proxybase.SslUtils.createTrustManagers;
 import static com.dajudge.proxybase.certs.ReloadingKeyStoreManager.createReloader;
+import static com.dajudge.proxybase.metrics.Metrics.NULL_METRICS;
 
 public class UpstreamSslHandlerFactory {
+    public static Function<Channel, ChannelHandler> createUpstreamSslHandlerFactory(
+            final UpstreamSslConfig config,
+            final Supplier<Long> clock,
+            final Filesystem filesystem
+    ) {
+        return createUpstreamSslHandlerFactory(config, clock, filesystem, NULL_METRICS, ImmediateExecutor.INSTANCE);
+    }
+
+    /**
+     * Creates a factory for upstream SSL handlers which share their SSL context, so TLS sessions of reconnecting
+     * clients can be resumed. In contrast to {@link #createUpstreamSslHandler(UpstreamSslConfig, Supplier,
+     * Filesystem)} the returned factory must be created once per listener and not once per connection.
+     */
+    public static Function<Channel, ChannelHandler> createUpstreamSslHandlerFactory(
+            final UpstreamSslConfig config,
+            final Supplier<Long> clock,
+            final Filesystem filesystem,
+            final Metrics metrics,
+            final Executor handshakeExecutor
+    ) {
+        final UpstreamSslContextProvider contextProvider = new UpstreamSslContextProvider(
+                config.isClientAuthRequired(),
+                config.getTrustStore().map(trustStore -> createReloader(trustStore, clock, filesystem)),
+                createReloader(config.getKeyStore(), clock, filesystem),
+                config.getSessionCacheSize(),
+                config.getSessionTimeoutSecs(),
+                config.getSessionTicketKeys()
+                        .map(keys -> SessionTicketKeyLoader.createReloader(keys, clock, filesystem)),
+                metrics
+        );
+        final SslSessionMetrics sessionMetrics = new SslSessionMetrics("upstream", metrics);
+        return ch -> sessionMetrics.track(new SslHandler(
+                contextProvider.getContext().newEngine(ch.alloc()),
+                false,
+                HandshakeExecutor.closeOnRejection(handshakeExecutor, ch)
+        ));
+    }
+
+    public static Function<Channel, ChannelHandler> createUpstreamSniHandlerFactory(
+            final UpstreamSniConfig config,
+            final Supplier<Long> clock,
+            final Filesystem filesystem
+    ) {
+        return createUpstreamSniHandlerFactory(config, clock, filesystem, NULL_METRICS, ImmediateExecutor.INSTANCE);
+    }
+
+    /**
+     * Creates a factory for upstream handlers which select the key store to present based on the SNI hostname
+     * sent by the client. Trust store, client auth and session settings are taken from the default config and
+     * shared by all hostnames; every key store is reloaded independently.
+     */
+    public static Function<Channel, ChannelHandler> createUpstreamSniHandlerFactory(
+            final UpstreamSniConfig config,
+            final Supplier<Long> clock,
+            final Filesystem filesystem,
+            final Metrics metrics,
+            final Executor handshakeExecutor
+    ) {
+        final UpstreamSslConfig defaultConfig = config.getDefaultConfig();
+        final Optional<KeyStoreManager> trustStoreManager = defaultConfig.getTrustStore()
+                .map(trustStore -> createReloader(trustStore, clock, filesystem));
+        final Optional<ReloadingResource<List<SessionTicketKey>>> sessionTicketKeys = defaultConfig
+                .getSessionTicketKeys()
+                .map(keys -> SessionTicketKeyLoader.createReloader(keys, clock, filesystem));
+        final Map<String, UpstreamSslContextProvider> providersByHostname = new HashMap<>();
+        config.getKeyStoresByHostname().forEach((hostname, keyStore) -> providersByHostname.put(
+                hostname,
+                new UpstreamSslContextProvider(
+                        defaultConfig.isClientAuthRequired(),
+                        trustStoreManager,
+                        createReloader(keyStore, clock, filesystem),
+                        defaultConfig.getSessionCacheSize(),
+                        defaultConfig.getSessionTimeoutSecs(),
+                        sessionTicketKeys,
+                        metrics
+                )
+        ));
+        final UpstreamSslContextProvider defaultProvider = new UpstreamSslContextProvider(
+                defaultConfig.isClientAuthRequired(),
+                trustStoreManager,
+                createReloader(defaultConfig.getKeyStore(), clock, filesystem),
+                defaultConfig.getSessionCacheSize(),
+                defaultConfig.getSessionTimeoutSecs(),
+                sessionTicketKeys,
+                metrics
+        );
+        final SniSslContextMapping mapping = new SniSslContextMapping(defaultProvider, providersByHostname);
+        final SslSessionMetrics sessionMetrics = new SslSessionMetrics("upstream", metrics);
+        return ch -> new UpstreamSniHandler(mapping, sessionMetrics, handshakeExecutor);
+    }
+
     public static ChannelHandler createUpstreamSslHandler(
             final UpstreamSslConfig config,
             final Supplier<Long> clock,
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.metrics.Metrics;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Bounded LRU cache of certificate chains that already passed validation. Entries expire after the configured
+ * TTL, but never later than the earliest {@code notAfter} of the chain.
+ */
+class VerifiedCertificateCache {
+    static final int DEFAULT_MAX_ENTRIES = 1024;
+    static final long DEFAULT_TTL_MSECS = 10 * 60 * 1000;
+    private final long ttlMsecs;
+    private final Supplier<Long> clock;
+    private final Metrics metrics;
+    private final String hits;
+    private final String misses;
+    private final Map<String, Long> expiryByFingerprint;
+
+    VerifiedCertificateCache(
+            final String name,
+            final int maxEntries,
+            final long ttlMsecs,
+            final Supplier<Long> clock,
+            final Metrics metrics
+    ) {
+        this.ttlMsecs = ttlMsecs;
+        this.clock = clock;
+        this.metrics = metrics;
+        this.hits = name + ".cache.hits";
+        this.misses = name + ".cache.misses";
+        this.expiryByFingerprint = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Long> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    static String fingerprint(final X509Certificate[] chain, final String context) throws CertificateException {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (final X509Certificate cert : chain) {
+                digest.update(cert.getEncoded());
+            }
+            return Base64.getEncoder().encodeToString(digest.digest()) + "|" + context;
+        } catch (final NoSuchAlgorithmException e) {
+            throw new CertificateException("Failed to compute certificate fingerprint", e);
+        }
+    }
+
+    synchronized boolean isVerified(final String fingerprint) {
+        final Long expiry = expiryByFingerprint.get(fingerprint);
+        if (expiry != null && expiry > clock.get()) {
+            metrics.count(hits, 1);
+            return true;
+        }
+        if (expiry != null) {
+            expiryByFingerprint.remove(fingerprint);
+        }
+        metrics.count(misses, 1);
+        return false;
+    }
+
+    synchronized void verified(final String fingerprint, final X509Certificate[] chain) {
+        long expiry = clock.get() + ttlMsecs;
+        for (final X509Certificate cert : chain) {
+            expiry = Math.min(expiry, cert.getNotAfter().getTime());
+        }
+        expiryByFingerprint.put(fingerprint, expiry);
+    }
+
+    synchronized void clear() {
+        expiryByFingerprint.clear();
+    }
+}
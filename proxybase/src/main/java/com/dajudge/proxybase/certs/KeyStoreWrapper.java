@@ -17,11 +17,25 @@
 
 package com.dajudge.proxybase.certs;
 
+import java.security.Key;
 import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class KeyStoreWrapper {
     private final KeyStore keyStore;
     private final char[] keyPassword;
+    private volatile byte[] contentDigest;
 
     public KeyStoreWrapper(final KeyStore keyStore, final char[] keyPassword) {
         this.keyStore = keyStore;
@@ -36,4 +50,68 @@ public class KeyStoreWrapper {
     public char[] getKeyPassword() {
         return keyPassword;
     }
+
+    /**
+     * Tells whether two key stores hold the same certificates and keys. Reloading creates a new wrapper even if
+     * the files didn't change, so this is what decides whether anything derived from a key store must be rebuilt.
+     *
+     * @param a a key store, or {@code null}.
+     * @param b a key store, or {@code null}.
+     */
+    public static boolean sameContent(final KeyStoreWrapper a, final KeyStoreWrapper b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return false;
+        }
+        return MessageDigest.isEqual(a.contentDigest(), b.contentDigest());
+    }
+
+    private byte[] contentDigest() {
+        byte[] digest = contentDigest;
+        if (digest == null) {
+            digest = computeContentDigest();
+            contentDigest = digest;
+        }
+        return digest;
+    }
+
+    private byte[] computeContentDigest() {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final List<String> aliases = new ArrayList<>(Collections.list(keyStore.aliases()));
+            Collections.sort(aliases);
+            for (final String alias : aliases) {
+                digest.update(alias.getBytes(UTF_8));
+                final Certificate[] chain = keyStore.getCertificateChain(alias);
+                for (final Certificate cert : chain != null ? Arrays.asList(chain) : entryCertificate(alias)) {
+                    digest.update(cert.getEncoded());
+                }
+                if (keyStore.isKeyEntry(alias)) {
+                    final Key key = recoverKey(alias);
+                    if (key != null && key.getEncoded() != null) {
+                        digest.update(key.getEncoded());
+                    }
+                }
+            }
+            return digest.digest();
+        } catch (final KeyStoreException | NoSuchAlgorithmException | CertificateEncodingException e) {
+            throw new RuntimeException("Failed to compute key store digest", e);
+        }
+    }
+
+    private List<Certificate> entryCertificate(final String alias) throws KeyStoreException {
+        final Certificate cert = keyStore.getCertificate(alias);
+        return cert == null ? Collections.emptyList() : Collections.singletonList(cert);
+    }
+
+    private Key recoverKey(final String alias) throws KeyStoreException, NoSuchAlgorithmException {
+        try {
+            return keyStore.getKey(alias, keyPassword);
+        } catch (final UnrecoverableKeyException e) {
+            // The certificate chain still identifies the key pair
+            return null;
+        }
+    }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.certs;
+
+public class PemKeyStoreConfig extends KeyStoreConfig {
+    public static final String PEM_KEYSTORE_TYPE = "PEM";
+    private final String certificatesPath;
+    private final String privateKeyPath;
+
+    /**
+     * Creates a configuration for PEM encoded key material.
+     *
+     * @param certificatesPath    path of the PEM file containing the certificate chain (leaf first) or, when
+     *                            no private key is configured, the CA bundle to be used as trust store.
+     * @param privateKeyPath      path of the PEM file containing the unencrypted PKCS#8 or PKCS#1 private key
+     *                            or {@code null} for trust stores.
+     * @param updateIntervalMsecs the interval in which to reload the PEM files.
+     */
+    public PemKeyStoreConfig(
+            final String certificatesPath,
+            final String privateKeyPath,
+            final long updateIntervalMsecs
+    ) {
+        super(certificatesPath, null, null, null, null, PEM_KEYSTORE_TYPE, updateIntervalMsecs);
+        this.certificatesPath = certificatesPath;
+        this.privateKeyPath = privateKeyPath;
+    }
+
+    public String getCertificatesPath() {
+        return certificatesPath;
+    }
+
+    public String getPrivateKeyPath() {
+        return privateKeyPath;
+    }
+}
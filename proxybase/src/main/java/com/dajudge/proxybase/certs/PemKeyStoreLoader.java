@@ -0,0 +1,176 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.certs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Loads PEM encoded certificates and private keys directly into an in-memory keystore. No password based
+ * decryption is involved: the key material is decoded once per reload and only protected by the trivial
+ * JKS key obfuscation while held in memory.
+ */
+public class PemKeyStoreLoader implements ReloadingKeyStoreManager.KeyStoreLoader {
+    private static final Pattern PEM_BLOCK = Pattern.compile(
+            "-----BEGIN ([A-Z0-9 ]+)-----(.*?)-----END \\1-----",
+            Pattern.DOTALL
+    );
+    private static final String CERTIFICATE = "CERTIFICATE";
+    private static final String PKCS8_PRIVATE_KEY = "PRIVATE KEY";
+    private static final String PKCS1_RSA_PRIVATE_KEY = "RSA PRIVATE KEY";
+    private static final byte[] RSA_ALGORITHM_IDENTIFIER = {
+            0x30, 0x0d, 0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86,
+            (byte) 0xf7, 0x0d, 0x01, 0x01, 0x01, 0x05, 0x00
+    };
+    private static final byte[] PKCS8_VERSION = {0x02, 0x01, 0x00};
+    private static final String IN_MEMORY_KEYSTORE_TYPE = "JKS";
+    private static final String KEY_ALIAS = "key";
+    private static final char[] KEY_PASSWORD = new char[0];
+
+    private final Filesystem filesystem;
+    private final PemKeyStoreConfig config;
+
+    public PemKeyStoreLoader(
+            final Filesystem filesystem,
+            final PemKeyStoreConfig config
+    ) {
+        this.filesystem = filesystem;
+        this.config = config;
+    }
+
+    @Override
+    public KeyStoreWrapper load()
+            throws KeyStoreException, IOException, CertificateException, NoSuchAlgorithmException {
+        final List<X509Certificate> certificates = loadCertificates(config.getCertificatesPath());
+        if (certificates.isEmpty()) {
+            throw new CertificateException("No certificates found in " + config.getCertificatesPath());
+        }
+        final KeyStore keyStore = KeyStore.getInstance(IN_MEMORY_KEYSTORE_TYPE);
+        keyStore.load(null, null);
+        if (config.getPrivateKeyPath() == null) {
+            for (int i = 0; i < certificates.size(); i++) {
+                keyStore.setCertificateEntry("cert" + i, certificates.get(i));
+            }
+        } else {
+            final PrivateKey privateKey = loadPrivateKey(
+                    config.getPrivateKeyPath(),
+                    certificates.get(0).getPublicKey().getAlgorithm()
+            );
+            keyStore.setKeyEntry(KEY_ALIAS, privateKey, KEY_PASSWORD, certificates.toArray(new Certificate[0]));
+        }
+        return new KeyStoreWrapper(keyStore, KEY_PASSWORD);
+    }
+
+    private List<X509Certificate> loadCertificates(final String path) throws IOException, CertificateException {
+        final CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        final List<X509Certificate> certificates = new ArrayList<>();
+        for (final PemBlock block : readPemBlocks(path)) {
+            if (CERTIFICATE.equals(block.type)) {
+                certificates.add((X509Certificate) factory.generateCertificate(new ByteArrayInputStream(block.der)));
+            }
+        }
+        return certificates;
+    }
+
+    private PrivateKey loadPrivateKey(final String path, final String algorithm)
+            throws IOException, KeyStoreException, NoSuchAlgorithmException {
+        for (final PemBlock block : readPemBlocks(path)) {
+            if (PKCS8_PRIVATE_KEY.equals(block.type)) {
+                return decodePrivateKey(block.der, algorithm);
+            } else if (PKCS1_RSA_PRIVATE_KEY.equals(block.type)) {
+                return decodePrivateKey(pkcs1ToPkcs8(block.der), "RSA");
+            }
+        }
+        throw new KeyStoreException("No unencrypted PKCS#8 or PKCS#1 private key found in " + path);
+    }
+
+    private static PrivateKey decodePrivateKey(final byte[] pkcs8, final String algorithm)
+            throws KeyStoreException, NoSuchAlgorithmException {
+        try {
+            return KeyFactory.getInstance(algorithm).generatePrivate(new PKCS8EncodedKeySpec(pkcs8));
+        } catch (final InvalidKeySpecException e) {
+            throw new KeyStoreException("Failed to decode " + algorithm + " private key", e);
+        }
+    }
+
+    private List<PemBlock> readPemBlocks(final String path) throws IOException {
+        final String pem = new String(filesystem.readFile(path), StandardCharsets.US_ASCII);
+        final List<PemBlock> blocks = new ArrayList<>();
+        final Matcher matcher = PEM_BLOCK.matcher(pem);
+        while (matcher.find()) {
+            blocks.add(new PemBlock(matcher.group(1), Base64.getMimeDecoder().decode(matcher.group(2))));
+        }
+        return blocks;
+    }
+
+    private static byte[] pkcs1ToPkcs8(final byte[] pkcs1) {
+        // PrivateKeyInfo ::= SEQUENCE { version, rsaEncryption AlgorithmIdentifier, OCTET STRING { pkcs1 } }
+        final ByteArrayOutputStream info = new ByteArrayOutputStream();
+        info.write(PKCS8_VERSION, 0, PKCS8_VERSION.length);
+        info.write(RSA_ALGORITHM_IDENTIFIER, 0, RSA_ALGORITHM_IDENTIFIER.length);
+        writeDer(info, 0x04, pkcs1);
+        final ByteArrayOutputStream pkcs8 = new ByteArrayOutputStream();
+        writeDer(pkcs8, 0x30, info.toByteArray());
+        return pkcs8.toByteArray();
+    }
+
+    private static void writeDer(final ByteArrayOutputStream out, final int tag, final byte[] content) {
+        out.write(tag);
+        if (content.length < 0x80) {
+            out.write(content.length);
+        } else {
+            int lengthBytes = 0;
+            for (int length = content.length; length > 0; length >>>= 8) {
+                lengthBytes++;
+            }
+            out.write(0x80 | lengthBytes);
+            for (int i = lengthBytes - 1; i >= 0; i--) {
+                out.write(content.length >>> (8 * i));
+            }
+        }
+        out.write(content, 0, content.length);
+    }
+
+    private static class PemBlock {
+        private final String type;
+        private final byte[] der;
+
+        private PemBlock(final String type, final byte[] der) {
+            this.type = type;
+            this.der = der;
+        }
+    }
+}
@@ -17,36 +17,22 @@
 
 package com.dajudge.proxybase.certs;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 import java.io.IOException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 
 public class ReloadingKeyStoreManager implements KeyStoreManager {
-    private static final Logger LOG = LoggerFactory.getLogger(ReloadingKeyStoreManager.class);
-    private final KeyStoreLoader loader;
-    private final Supplier<Long> clock;
-    private final long updateIntervalMsecs;
-    private final Object keyStoreLock = new Object();
-    private final Object clockLock = new Object();
-    private final AtomicBoolean loading = new AtomicBoolean();
-    private long lastUpdate;
-    private KeyStoreWrapper keyStore;
+    private final ReloadingResource<KeyStoreWrapper> keyStore;
 
     public ReloadingKeyStoreManager(
             final KeyStoreLoader loader,
             final Supplier<Long> clock,
             final long updateIntervalMsecs
     ) {
-        this.loader = loader;
-        this.clock = clock;
-        this.updateIntervalMsecs = updateIntervalMsecs;
+        this.keyStore = new ReloadingResource<>("keystore", loader::load, clock, updateIntervalMsecs);
     }
 
     public static Optional<ReloadingKeyStoreManager> createReloader(
@@ -63,48 +49,22 @@ public class ReloadingKeyStoreManager implements KeyStoreManager {
             final Filesystem filesystem
     ) {
         return new ReloadingKeyStoreManager(
-                new FileSystemKeyStoreLoader(filesystem, keystore),
+                createLoader(keystore, filesystem),
                 clock,
                 keystore.getUpdateIntervalMsecs()
         );
     }
 
-    @Override
-    public KeyStoreWrapper getKeyStore() {
-        updateIfNecessary();
-        synchronized (keyStoreLock) {
-            return keyStore;
+    private static KeyStoreLoader createLoader(final KeyStoreConfig keystore, final Filesystem filesystem) {
+        if (keystore instanceof PemKeyStoreConfig) {
+            return new PemKeyStoreLoader(filesystem, (PemKeyStoreConfig) keystore);
         }
+        return new FileSystemKeyStoreLoader(filesystem, keystore);
     }
 
-    private void updateIfNecessary() {
-        if (updateIsNecessary()) {
-            if (loading.getAndSet(true)) {
-                // Update already in progress
-                return;
-            }
-            try {
-                final KeyStoreWrapper newKeyStore = loader.load();
-                synchronized (keyStoreLock) {
-                    keyStore = newKeyStore;
-                }
-                synchronized (clockLock) {
-                    lastUpdate = clock.get();
-                }
-            } catch (final Exception e) {
-                LOG.warn("Failed to reload keystore", e);
-            } finally {
-                loading.set(false);
-            }
-        }
-    }
-
-    private boolean updateIsNecessary() {
-        synchronized (clockLock) {
-            final long now = clock.get();
-            final long timePassedSinceLastUpdate = now - lastUpdate;
-            return timePassedSinceLastUpdate > updateIntervalMsecs;
-        }
+    @Override
+    public KeyStoreWrapper getKeyStore() {
+        return keyStore.get();
     }
 
     public interface KeyStoreLoader {
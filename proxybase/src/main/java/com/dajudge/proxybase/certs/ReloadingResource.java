@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.certs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+public class ReloadingResource<T> implements Supplier<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(ReloadingResource.class);
+    private final String name;
+    private final Loader<T> loader;
+    private final Supplier<Long> clock;
+    private final long updateIntervalMsecs;
+    private final Object resourceLock = new Object();
+    private final Object clockLock = new Object();
+    private final AtomicBoolean loading = new AtomicBoolean();
+    private long lastUpdate;
+    private T resource;
+
+    public ReloadingResource(
+            final String name,
+            final Loader<T> loader,
+            final Supplier<Long> clock,
+            final long updateIntervalMsecs
+    ) {
+        this.name = name;
+        this.loader = loader;
+        this.clock = clock;
+        this.updateIntervalMsecs = updateIntervalMsecs;
+    }
+
+    @Override
+    public T get() {
+        updateIfNecessary();
+        synchronized (resourceLock) {
+            return resource;
+        }
+    }
+
+    private void updateIfNecessary() {
+        if (updateIsNecessary()) {
+            if (loading.getAndSet(true)) {
+                // Update already in progress
+                return;
+            }
+            try {
+                final T newResource = loader.load();
+                synchronized (resourceLock) {
+                    resource = newResource;
+                }
+                synchronized (clockLock) {
+                    lastUpdate = clock.get();
+                }
+            } catch (final Exception e) {
+                LOG.warn("Failed to reload {}", name, e);
+            } finally {
+                loading.set(false);
+            }
+        }
+    }
+
+    private boolean updateIsNecessary() {
+        synchronized (clockLock) {
+            final long now = clock.get();
+            final long timePassedSinceLastUpdate = now - lastUpdate;
+            return timePassedSinceLastUpdate > updateIntervalMsecs;
+        }
+    }
+
+    public interface Loader<T> {
+        T load() throws Exception;
+    }
+}
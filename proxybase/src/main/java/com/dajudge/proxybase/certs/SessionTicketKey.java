@@ -0,0 +1,42 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.certs;
+
+public class SessionTicketKey {
+    private final byte[] name;
+    private final byte[] hmacKey;
+    private final byte[] aesKey;
+
+    public SessionTicketKey(final byte[] name, final byte[] hmacKey, final byte[] aesKey) {
+        this.name = name;
+        this.hmacKey = hmacKey;
+        this.aesKey = aesKey;
+    }
+
+    public byte[] getName() {
+        return name;
+    }
+
+    public byte[] getHmacKey() {
+        return hmacKey;
+    }
+
+    public byte[] getAesKey() {
+        return aesKey;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.certs;
+
+public class SessionTicketKeyConfig {
+    private final String keyFilePath;
+    private final long updateIntervalMsecs;
+
+    /**
+     * Session ticket keys require the OpenSSL provider, i.e. netty-tcnative on the classpath; configuring them
+     * without it fails.
+     *
+     * @param keyFilePath         path of a file containing one or more 48 byte session ticket keys, each made up of
+     *                            a 16 byte key name, a 16 byte AES key and a 16 byte HMAC secret (the layout of
+     *                            nginx' 48 byte {@code ssl_session_ticket_key} files). The first key is used to issue
+     *                            new tickets, all keys are accepted for resumption.
+     * @param updateIntervalMsecs the interval in which to reload the key file.
+     */
+    public SessionTicketKeyConfig(final String keyFilePath, final long updateIntervalMsecs) {
+        this.keyFilePath = keyFilePath;
+        this.updateIntervalMsecs = updateIntervalMsecs;
+    }
+
+    public String getKeyFilePath() {
+        return keyFilePath;
+    }
+
+    public long getUpdateIntervalMsecs() {
+        return updateIntervalMsecs;
+    }
+}
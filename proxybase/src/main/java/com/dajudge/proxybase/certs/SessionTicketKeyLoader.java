@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.certs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static java.util.Arrays.copyOfRange;
+import static java.util.Collections.unmodifiableList;
+
+public class SessionTicketKeyLoader implements ReloadingResource.Loader<List<SessionTicketKey>> {
+    private static final int PART_LENGTH = 16;
+    private static final int KEY_LENGTH = 3 * PART_LENGTH;
+    private final Filesystem filesystem;
+    private final SessionTicketKeyConfig config;
+
+    public SessionTicketKeyLoader(final Filesystem filesystem, final SessionTicketKeyConfig config) {
+        this.filesystem = filesystem;
+        this.config = config;
+    }
+
+    public static ReloadingResource<List<SessionTicketKey>> createReloader(
+            final SessionTicketKeyConfig config,
+            final Supplier<Long> clock,
+            final Filesystem filesystem
+    ) {
+        return new ReloadingResource<>(
+                "session ticket keys",
+                new SessionTicketKeyLoader(filesystem, config),
+                clock,
+                config.getUpdateIntervalMsecs()
+        );
+    }
+
+    @Override
+    public List<SessionTicketKey> load() throws IOException {
+        final byte[] bytes = filesystem.readFile(config.getKeyFilePath());
+        if (bytes.length == 0 || bytes.length % KEY_LENGTH != 0) {
+            throw new IOException("Session ticket key file must contain a non-zero multiple of "
+                    + KEY_LENGTH + " bytes: " + config.getKeyFilePath());
+        }
+        final List<SessionTicketKey> keys = new ArrayList<>();
+        for (int offset = 0; offset < bytes.length; offset += KEY_LENGTH) {
+            // Name, AES key, HMAC secret
+            keys.add(new SessionTicketKey(
+                    copyOfRange(bytes, offset, offset + PART_LENGTH),
+                    copyOfRange(bytes, offset + 2 * PART_LENGTH, offset + KEY_LENGTH),
+                    copyOfRange(bytes, offset + PART_LENGTH, offset + 2 * PART_LENGTH)
+            ));
+        }
+        return unmodifiableList(keys);
+    }
+}
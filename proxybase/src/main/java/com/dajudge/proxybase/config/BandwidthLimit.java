@@ -0,0 +1,50 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.config;
+
+public class BandwidthLimit {
+    private final long readBytesPerSec;
+    private final long writeBytesPerSec;
+
+    /**
+     * The limits are seen from the proxy's upstream side.
+     *
+     * @param readBytesPerSec  the rate of bytes read from clients, {@code 0} for no limit.
+     * @param writeBytesPerSec the rate of bytes written to clients, {@code 0} for no limit.
+     */
+    public BandwidthLimit(final long readBytesPerSec, final long writeBytesPerSec) {
+        this.readBytesPerSec = readBytesPerSec;
+        this.writeBytesPerSec = writeBytesPerSec;
+    }
+
+    public static BandwidthLimit unlimited() {
+        return new BandwidthLimit(0, 0);
+    }
+
+    public boolean isLimited() {
+        return readBytesPerSec > 0 || writeBytesPerSec > 0;
+    }
+
+    public long getReadBytesPerSec() {
+        return readBytesPerSec;
+    }
+
+    public long getWriteBytesPerSec() {
+        return writeBytesPerSec;
+    }
+}
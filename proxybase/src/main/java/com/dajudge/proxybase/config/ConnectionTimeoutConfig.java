@@ -0,0 +1,64 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.config;
+
+public class ConnectionTimeoutConfig {
+    private final long idleTimeoutMsecs;
+    private final long readTimeoutMsecs;
+    private final long writeTimeoutMsecs;
+
+    /**
+     * All timeouts apply to the upstream and the downstream channel of a proxy connection separately; when one
+     * of them is closed, the other one is closed as well.
+     *
+     * @param idleTimeoutMsecs  the time without any reads or writes after which a channel is closed, {@code 0}
+     *                          to disable.
+     * @param readTimeoutMsecs  the time without any reads after which a channel is closed, {@code 0} to disable.
+     * @param writeTimeoutMsecs the time a write may be pending without any write completing, e.g. because the
+     *                          peer stopped reading, after which a channel is closed, {@code 0} to disable.
+     */
+    public ConnectionTimeoutConfig(
+            final long idleTimeoutMsecs,
+            final long readTimeoutMsecs,
+            final long writeTimeoutMsecs
+    ) {
+        this.idleTimeoutMsecs = idleTimeoutMsecs;
+        this.readTimeoutMsecs = readTimeoutMsecs;
+        this.writeTimeoutMsecs = writeTimeoutMsecs;
+    }
+
+    public static ConnectionTimeoutConfig disabled() {
+        return new ConnectionTimeoutConfig(0, 0, 0);
+    }
+
+    public boolean isEnabled() {
+        return idleTimeoutMsecs > 0 || readTimeoutMsecs > 0 || writeTimeoutMsecs > 0;
+    }
+
+    public long getIdleTimeoutMsecs() {
+        return idleTimeoutMsecs;
+    }
+
+    public long getReadTimeoutMsecs() {
+        return readTimeoutMsecs;
+    }
+
+    public long getWriteTimeoutMsecs() {
+        return writeTimeoutMsecs;
+    }
+}
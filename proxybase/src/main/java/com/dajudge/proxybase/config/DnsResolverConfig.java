@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.config;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+
+public class DnsResolverConfig {
+    private final List<InetSocketAddress> nameServers;
+    private final long queryTimeoutMsecs;
+    private final int minTtlSecs;
+    private final int maxTtlSecs;
+    private final int negativeTtlSecs;
+    private final long refreshAheadMsecs;
+
+    /**
+     * @param nameServers       the name servers to query, empty to use the ones configured for the system.
+     * @param queryTimeoutMsecs the timeout of a single DNS query.
+     * @param minTtlSecs        the lower bound of the time a resolved address is cached, regardless of its TTL.
+     *                          Also used for names whose TTL can't be determined, e.g. when resolved via the
+     *                          hosts file.
+     * @param maxTtlSecs        the upper bound of the time a resolved address is cached, regardless of its TTL.
+     * @param negativeTtlSecs   the time a failed resolution is cached, {@code 0} to not cache failures.
+     * @param refreshAheadMsecs how long before expiry a name which has been used since it was cached is resolved
+     *                          again in the background.
+     */
+    public DnsResolverConfig(
+            final List<InetSocketAddress> nameServers,
+            final long queryTimeoutMsecs,
+            final int minTtlSecs,
+            final int maxTtlSecs,
+            final int negativeTtlSecs,
+            final long refreshAheadMsecs
+    ) {
+        this.nameServers = Collections.unmodifiableList(nameServers);
+        this.queryTimeoutMsecs = queryTimeoutMsecs;
+        this.minTtlSecs = minTtlSecs;
+        this.maxTtlSecs = maxTtlSecs;
+        this.negativeTtlSecs = negativeTtlSecs;
+        this.refreshAheadMsecs = refreshAheadMsecs;
+    }
+
+    public static DnsResolverConfig defaults() {
+        return new DnsResolverConfig(Collections.emptyList(), 5000, 1, 3600, 5, 5000);
+    }
+
+    public List<InetSocketAddress> getNameServers() {
+        return nameServers;
+    }
+
+    public long getQueryTimeoutMsecs() {
+        return queryTimeoutMsecs;
+    }
+
+    public int getMinTtlSecs() {
+        return minTtlSecs;
+    }
+
+    public int getMaxTtlSecs() {
+        return maxTtlSecs;
+    }
+
+    public int getNegativeTtlSecs() {
+        return negativeTtlSecs;
+    }
+
+    public long getRefreshAheadMsecs() {
+        return refreshAheadMsecs;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.config;
+
+public class DownstreamConnectConfig {
+    private final int connectTimeoutMsecs;
+    private final int maxRetries;
+    private final long retryBackoffMsecs;
+    private final long maxRetryBackoffMsecs;
+    private final long attemptDelayMsecs;
+    private final DnsResolverConfig dnsResolver;
+
+    /**
+     * Host names are resolved with the resolver of the JDK.
+     *
+     * @param connectTimeoutMsecs  the timeout of a single connection attempt to one address.
+     * @param maxRetries           how often connecting to an endpoint is retried after all its addresses failed.
+     * @param retryBackoffMsecs    the delay before the first retry, doubled for every further retry. The actual
+     *                             delay is chosen randomly between half and the full value.
+     * @param maxRetryBackoffMsecs the upper bound of the retry delay.
+     * @param attemptDelayMsecs    how long to wait for an attempt before racing it against the next address of a
+     *                             multi-homed endpoint, the "Connection Attempt Delay" of RFC 8305.
+     */
+    public DownstreamConnectConfig(
+            final int connectTimeoutMsecs,
+            final int maxRetries,
+            final long retryBackoffMsecs,
+            final long maxRetryBackoffMsecs,
+            final long attemptDelayMsecs
+    ) {
+        this(
+                connectTimeoutMsecs,
+                maxRetries,
+                retryBackoffMsecs,
+                maxRetryBackoffMsecs,
+                attemptDelayMsecs,
+                null
+        );
+    }
+
+    /**
+     * @param dnsResolver the caching asynchronous resolver for the endpoint host names, e.g.
+     *                    {@link DnsResolverConfig#defaults()}, or {@code null} to resolve them with the blocking
+     *                    resolver of the JDK.
+     */
+    public DownstreamConnectConfig(
+            final int connectTimeoutMsecs,
+            final int maxRetries,
+            final long retryBackoffMsecs,
+            final long maxRetryBackoffMsecs,
+            final long attemptDelayMsecs,
+            final DnsResolverConfig dnsResolver
+    ) {
+        this.connectTimeoutMsecs = connectTimeoutMsecs;
+        this.maxRetries = maxRetries;
+        this.retryBackoffMsecs = retryBackoffMsecs;
+        this.maxRetryBackoffMsecs = maxRetryBackoffMsecs;
+        this.attemptDelayMsecs = attemptDelayMsecs;
+        this.dnsResolver = dnsResolver;
+    }
+
+    /**
+     * @return Netty's default connect timeout, no retries, the attempt delay recommended by RFC 8305 and the
+     * resolver of the JDK.
+     */
+    public static DownstreamConnectConfig defaults() {
+        return new DownstreamConnectConfig(30000, 0, 100, 2000, 250);
+    }
+
+    public int getConnectTimeoutMsecs() {
+        return connectTimeoutMsecs;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public long getRetryBackoffMsecs() {
+        return retryBackoffMsecs;
+    }
+
+    public long getMaxRetryBackoffMsecs() {
+        return maxRetryBackoffMsecs;
+    }
+
+    public long getAttemptDelayMsecs() {
+        return attemptDelayMsecs;
+    }
+
+    public DnsResolverConfig getDnsResolver() {
+        return dnsResolver;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.config;
+
+public class DownstreamPoolConfig {
+    private final int size;
+    private final long maxIdleMsecs;
+
+    /**
+     * @param size         the number of connected downstream channels to keep ready.
+     * @param maxIdleMsecs how long a ready channel may wait in the pool before it's replaced by a fresh one,
+     *                     so channels are handed out before the downstream server's idle timeout closes them.
+     */
+    public DownstreamPoolConfig(final int size, final long maxIdleMsecs) {
+        this.size = size;
+        this.maxIdleMsecs = maxIdleMsecs;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getMaxIdleMsecs() {
+        return maxIdleMsecs;
+    }
+}
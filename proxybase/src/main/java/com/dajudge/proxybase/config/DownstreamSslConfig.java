@@ -25,15 +25,33 @@ public class DownstreamSslConfig {
     private final Optional<KeyStoreConfig> trustStore;
     private final Optional<KeyStoreConfig> keyStore;
     private final boolean hostnameVerificationEnabled;
+    private final long sessionCacheSize;
+    private final long sessionTimeoutSecs;
 
     public DownstreamSslConfig(
             final Optional<KeyStoreConfig> trustStore,
             final Optional<KeyStoreConfig> keyStore,
             final boolean hostnameVerificationEnabled
+    ) {
+        this(trustStore, keyStore, hostnameVerificationEnabled, 0, 0);
+    }
+
+    /**
+     * @param sessionCacheSize   the maximum number of cached TLS sessions, {@code 0} for the provider default.
+     * @param sessionTimeoutSecs the lifetime of cached TLS sessions, {@code 0} for the provider default.
+     */
+    public DownstreamSslConfig(
+            final Optional<KeyStoreConfig> trustStore,
+            final Optional<KeyStoreConfig> keyStore,
+            final boolean hostnameVerificationEnabled,
+            final long sessionCacheSize,
+            final long sessionTimeoutSecs
     ) {
         this.trustStore = trustStore;
         this.keyStore = keyStore;
         this.hostnameVerificationEnabled = hostnameVerificationEnabled;
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeoutSecs = sessionTimeoutSecs;
     }
 
     public Optional<KeyStoreConfig> getTrustStore() {
@@ -47,4 +65,12 @@ public class DownstreamSslConfig {
     public Optional<KeyStoreConfig> getKeyStore() {
         return keyStore;
     }
+
+    public long getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    public long getSessionTimeoutSecs() {
+        return sessionTimeoutSecs;
+    }
 }
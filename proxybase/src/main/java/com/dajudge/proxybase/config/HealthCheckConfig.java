@@ -0,0 +1,61 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.config;
+
+public class HealthCheckConfig {
+    private final long intervalMsecs;
+    private final int timeoutMsecs;
+    private final int failureThreshold;
+    private final long ejectionMsecs;
+
+    /**
+     * @param intervalMsecs    the interval between two probes of an endpoint.
+     * @param timeoutMsecs     the time a probe may take to connect and complete the TLS handshake, if any.
+     * @param failureThreshold the number of consecutive failures of probes or proxied connections after which an
+     *                         endpoint is ejected. A dead endpoint is thus detected within
+     *                         {@code failureThreshold * intervalMsecs} even without any traffic.
+     * @param ejectionMsecs    how long an ejected endpoint is not used for new connections.
+     */
+    public HealthCheckConfig(
+            final long intervalMsecs,
+            final int timeoutMsecs,
+            final int failureThreshold,
+            final long ejectionMsecs
+    ) {
+        this.intervalMsecs = intervalMsecs;
+        this.timeoutMsecs = timeoutMsecs;
+        this.failureThreshold = failureThreshold;
+        this.ejectionMsecs = ejectionMsecs;
+    }
+
+    public long getIntervalMsecs() {
+        return intervalMsecs;
+    }
+
+    public int getTimeoutMsecs() {
+        return timeoutMsecs;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public long getEjectionMsecs() {
+        return ejectionMsecs;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.config;
+
+public enum LoadBalancing {
+    /**
+     * Picks the endpoints in turn.
+     */
+    ROUND_ROBIN,
+    /**
+     * Picks the endpoint with the fewest open connections.
+     */
+    LEAST_CONNECTIONS,
+    /**
+     * Picks the endpoint with fewer open connections out of two random ones, which is almost as good as
+     * {@link #LEAST_CONNECTIONS} without looking at every endpoint.
+     */
+    POWER_OF_TWO_CHOICES,
+    /**
+     * Picks the endpoint by the client's address on a consistent hash ring, so a client keeps being sent to the
+     * same endpoint and only few clients move when endpoints are added or removed.
+     */
+    CONSISTENT_HASH
+}
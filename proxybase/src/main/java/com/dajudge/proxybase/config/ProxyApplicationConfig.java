@@ -0,0 +1,240 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.config;
+
+/**
+ * The event loop topology and connection settings of a {@link com.dajudge.proxybase.ProxyApplication}. Use
+ * {@link #defaults()} or change the settings with a {@link #builder()}.
+ */
+public class ProxyApplicationConfig {
+    private final boolean sharedWorkerGroup;
+    private final int bossThreads;
+    private final int upstreamThreads;
+    private final int downstreamThreads;
+    private final String threadNamePrefix;
+    private final boolean daemonThreads;
+    private final int ioRatio;
+    private final int reusePortAcceptors;
+    private final DownstreamConnectConfig downstreamConnect;
+    private final ConnectionTimeoutConfig connectionTimeouts;
+    private final UpstreamLimitsConfig upstreamLimits;
+    private final TrafficShapingConfig trafficShaping;
+
+    private ProxyApplicationConfig(final Builder builder) {
+        this.sharedWorkerGroup = builder.sharedWorkerGroup;
+        this.bossThreads = builder.bossThreads;
+        this.upstreamThreads = builder.upstreamThreads;
+        this.downstreamThreads = builder.downstreamThreads;
+        this.threadNamePrefix = builder.threadNamePrefix;
+        this.daemonThreads = builder.daemonThreads;
+        this.ioRatio = builder.ioRatio;
+        this.reusePortAcceptors = builder.reusePortAcceptors;
+        this.downstreamConnect = builder.downstreamConnect;
+        this.connectionTimeouts = builder.connectionTimeouts;
+        this.upstreamLimits = builder.upstreamLimits;
+        this.trafficShaping = builder.trafficShaping;
+    }
+
+    /**
+     * @return three separate event loop groups: a single boss thread and upstream and downstream groups of Netty's
+     * default size with Netty's default thread names. Downstream connections use Netty's connect timeout without
+     * retries, no timeouts or bandwidth limits are applied to proxy connections.
+     */
+    public static ProxyApplicationConfig defaults() {
+        return builder().build();
+    }
+
+    /**
+     * @return a builder starting from the {@link #defaults()}.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public boolean isSharedWorkerGroup() {
+        return sharedWorkerGroup;
+    }
+
+    public int getBossThreads() {
+        return bossThreads;
+    }
+
+    public int getUpstreamThreads() {
+        return upstreamThreads;
+    }
+
+    public int getDownstreamThreads() {
+        return downstreamThreads;
+    }
+
+    public String getThreadNamePrefix() {
+        return threadNamePrefix;
+    }
+
+    public boolean isDaemonThreads() {
+        return daemonThreads;
+    }
+
+    public int getIoRatio() {
+        return ioRatio;
+    }
+
+    public int getReusePortAcceptors() {
+        return reusePortAcceptors;
+    }
+
+    public DownstreamConnectConfig getDownstreamConnect() {
+        return downstreamConnect;
+    }
+
+    public ConnectionTimeoutConfig getConnectionTimeouts() {
+        return connectionTimeouts;
+    }
+
+    public UpstreamLimitsConfig getUpstreamLimits() {
+        return upstreamLimits;
+    }
+
+    public TrafficShapingConfig getTrafficShaping() {
+        return trafficShaping;
+    }
+
+    public static class Builder {
+        private boolean sharedWorkerGroup = false;
+        private int bossThreads = 1;
+        private int upstreamThreads = 0;
+        private int downstreamThreads = 0;
+        private String threadNamePrefix = null;
+        private boolean daemonThreads = false;
+        private int ioRatio = 0;
+        private int reusePortAcceptors = 0;
+        private DownstreamConnectConfig downstreamConnect = DownstreamConnectConfig.defaults();
+        private ConnectionTimeoutConfig connectionTimeouts = ConnectionTimeoutConfig.disabled();
+        private UpstreamLimitsConfig upstreamLimits = UpstreamLimitsConfig.defaults();
+        private TrafficShapingConfig trafficShaping = TrafficShapingConfig.disabled();
+
+        private Builder() {
+        }
+
+        /**
+         * @param sharedWorkerGroup whether upstream and downstream channels share a single worker group of
+         *                          {@code upstreamThreads} threads; {@code downstreamThreads} is ignored then.
+         */
+        public Builder sharedWorkerGroup(final boolean sharedWorkerGroup) {
+            this.sharedWorkerGroup = sharedWorkerGroup;
+            return this;
+        }
+
+        /**
+         * @param bossThreads the number of threads accepting connections, {@code 0} for Netty's default. With
+         *                    {@code SO_REUSEPORT} acceptors, at least one thread per acceptor is used.
+         */
+        public Builder bossThreads(final int bossThreads) {
+            this.bossThreads = bossThreads;
+            return this;
+        }
+
+        /**
+         * @param upstreamThreads the number of threads serving upstream channels, {@code 0} for Netty's default.
+         */
+        public Builder upstreamThreads(final int upstreamThreads) {
+            this.upstreamThreads = upstreamThreads;
+            return this;
+        }
+
+        /**
+         * @param downstreamThreads the number of threads serving downstream channels, {@code 0} for Netty's default.
+         */
+        public Builder downstreamThreads(final int downstreamThreads) {
+            this.downstreamThreads = downstreamThreads;
+            return this;
+        }
+
+        /**
+         * @param threadNamePrefix the prefix of the event loop thread names, {@code null} to name the threads
+         *                         after their group only if daemon threads are requested and Netty's default
+         *                         naming otherwise.
+         */
+        public Builder threadNamePrefix(final String threadNamePrefix) {
+            this.threadNamePrefix = threadNamePrefix;
+            return this;
+        }
+
+        /**
+         * @param daemonThreads whether the event loop threads are daemon threads.
+         */
+        public Builder daemonThreads(final boolean daemonThreads) {
+            this.daemonThreads = daemonThreads;
+            return this;
+        }
+
+        /**
+         * @param ioRatio the percentage of event loop time spent on I/O versus tasks, {@code 0} for Netty's
+         *                default. Only applies to the NIO transport, the epoll transport ignores it.
+         */
+        public Builder ioRatio(final int ioRatio) {
+            this.ioRatio = ioRatio;
+            return this;
+        }
+
+        /**
+         * @param reusePortAcceptors the number of server channels bound per listen port with {@code SO_REUSEPORT},
+         *                           {@code 0} to disable it.
+         */
+        public Builder reusePortAcceptors(final int reusePortAcceptors) {
+            this.reusePortAcceptors = reusePortAcceptors;
+            return this;
+        }
+
+        /**
+         * @param downstreamConnect the timeouts, retries and address racing of downstream connections.
+         */
+        public Builder downstreamConnect(final DownstreamConnectConfig downstreamConnect) {
+            this.downstreamConnect = downstreamConnect;
+            return this;
+        }
+
+        /**
+         * @param connectionTimeouts the idle, read and write timeouts of proxy connections.
+         */
+        public Builder connectionTimeouts(final ConnectionTimeoutConfig connectionTimeouts) {
+            this.connectionTimeouts = connectionTimeouts;
+            return this;
+        }
+
+        /**
+         * @param upstreamLimits the accept backlog and the limits for accepting upstream connections.
+         */
+        public Builder upstreamLimits(final UpstreamLimitsConfig upstreamLimits) {
+            this.upstreamLimits = upstreamLimits;
+            return this;
+        }
+
+        /**
+         * @param trafficShaping the bandwidth limits of proxy connections.
+         */
+        public Builder trafficShaping(final TrafficShapingConfig trafficShaping) {
+            this.trafficShaping = trafficShaping;
+            return this;
+        }
+
+        public ProxyApplicationConfig build() {
+            return new ProxyApplicationConfig(this);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.config;
+
+import io.netty.channel.Channel;
+
+import java.net.InetSocketAddress;
+import java.util.function.Function;
+
+public class TrafficShapingConfig {
+    private final BandwidthLimit global;
+    private final BandwidthLimit perListener;
+    private final BandwidthLimit perClient;
+    private final Function<Channel, String> clientIdentity;
+    private final long checkIntervalMsecs;
+    private final long maxDelayMsecs;
+
+    /**
+     * @param global             the limit shared by all proxy connections.
+     * @param perListener        the limit shared by the proxy connections accepted on the same listen address.
+     * @param perClient          the limit shared by the proxy connections of the same client identity.
+     * @param clientIdentity     derives the client identity, e.g. a tenant, from an upstream channel when the proxy
+     *                           connection is set up.
+     * @param checkIntervalMsecs the interval in which the traffic counters are updated.
+     * @param maxDelayMsecs      the upper bound of a single read pause.
+     */
+    public TrafficShapingConfig(
+            final BandwidthLimit global,
+            final BandwidthLimit perListener,
+            final BandwidthLimit perClient,
+            final Function<Channel, String> clientIdentity,
+            final long checkIntervalMsecs,
+            final long maxDelayMsecs
+    ) {
+        this.global = global;
+        this.perListener = perListener;
+        this.perClient = perClient;
+        this.clientIdentity = clientIdentity;
+        this.checkIntervalMsecs = checkIntervalMsecs;
+        this.maxDelayMsecs = maxDelayMsecs;
+    }
+
+    public static TrafficShapingConfig disabled() {
+        return new TrafficShapingConfig(
+                BandwidthLimit.unlimited(),
+                BandwidthLimit.unlimited(),
+                BandwidthLimit.unlimited(),
+                TrafficShapingConfig::clientAddress,
+                1000,
+                15000
+        );
+    }
+
+    /**
+     * @return the IP address of the client, the default client identity.
+     */
+    public static String clientAddress(final Channel upstreamChannel) {
+        return ((InetSocketAddress) upstreamChannel.remoteAddress()).getAddress().getHostAddress();
+    }
+
+    public BandwidthLimit getGlobal() {
+        return global;
+    }
+
+    public BandwidthLimit getPerListener() {
+        return perListener;
+    }
+
+    public BandwidthLimit getPerClient() {
+        return perClient;
+    }
+
+    public Function<Channel, String> getClientIdentity() {
+        return clientIdentity;
+    }
+
+    public long getCheckIntervalMsecs() {
+        return checkIntervalMsecs;
+    }
+
+    public long getMaxDelayMsecs() {
+        return maxDelayMsecs;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.config;
+
+public class UpstreamLimitsConfig {
+    private final int backlog;
+    private final int maxConnectionsPerClient;
+    private final int acceptsPerSecond;
+    private final int acceptBurst;
+
+    /**
+     * @param backlog                 the length of the accept queue of each server channel.
+     * @param maxConnectionsPerClient the number of concurrent upstream connections from a single client IP address,
+     *                                {@code 0} for no limit.
+     * @param acceptsPerSecond        the rate of new upstream connections accepted across all listeners,
+     *                                {@code 0} for no limit.
+     * @param acceptBurst             the number of connections which may be accepted at once after a quiet period
+     *                                before the rate limit applies.
+     */
+    public UpstreamLimitsConfig(
+            final int backlog,
+            final int maxConnectionsPerClient,
+            final int acceptsPerSecond,
+            final int acceptBurst
+    ) {
+        this.backlog = backlog;
+        this.maxConnectionsPerClient = maxConnectionsPerClient;
+        this.acceptsPerSecond = acceptsPerSecond;
+        this.acceptBurst = acceptBurst;
+    }
+
+    /**
+     * @return the backlog used so far and no limits.
+     */
+    public static UpstreamLimitsConfig defaults() {
+        return new UpstreamLimitsConfig(128, 0, 0, 0);
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public int getMaxConnectionsPerClient() {
+        return maxConnectionsPerClient;
+    }
+
+    public int getAcceptsPerSecond() {
+        return acceptsPerSecond;
+    }
+
+    public int getAcceptBurst() {
+        return acceptBurst;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.config;
+
+import com.dajudge.proxybase.certs.KeyStoreConfig;
+
+import java.util.Map;
+
+public class UpstreamSniConfig {
+    private final UpstreamSslConfig defaultConfig;
+    private final Map<String, KeyStoreConfig> keyStoresByHostname;
+
+    /**
+     * @param defaultConfig       the SSL configuration used for clients not sending SNI or requesting an unknown
+     *                            hostname. All other settings except the key store apply to every hostname.
+     * @param keyStoresByHostname the key store to present per SNI hostname. Keys may be exact hostnames or
+     *                            wildcards in the left-most label such as {@code *.brokers.example.com}.
+     */
+    public UpstreamSniConfig(
+            final UpstreamSslConfig defaultConfig,
+            final Map<String, KeyStoreConfig> keyStoresByHostname
+    ) {
+        this.defaultConfig = defaultConfig;
+        this.keyStoresByHostname = keyStoresByHostname;
+    }
+
+    public UpstreamSslConfig getDefaultConfig() {
+        return defaultConfig;
+    }
+
+    public Map<String, KeyStoreConfig> getKeyStoresByHostname() {
+        return keyStoresByHostname;
+    }
+}
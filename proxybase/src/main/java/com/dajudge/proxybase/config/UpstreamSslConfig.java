@@ -18,6 +18,7 @@
 package com.dajudge.proxybase.config;
 
 import com.dajudge.proxybase.certs.KeyStoreConfig;
+import com.dajudge.proxybase.certs.SessionTicketKeyConfig;
 
 import java.util.Optional;
 
@@ -25,15 +26,37 @@ public class UpstreamSslConfig {
     private final Optional<KeyStoreConfig> trustStore;
     private final KeyStoreConfig keyStore;
     private final boolean clientAuthRequired;
+    private final long sessionCacheSize;
+    private final long sessionTimeoutSecs;
+    private final Optional<SessionTicketKeyConfig> sessionTicketKeys;
 
     public UpstreamSslConfig(
             final Optional<KeyStoreConfig> trustStore,
             final KeyStoreConfig keyStore,
             final boolean clientAuthRequired
+    ) {
+        this(trustStore, keyStore, clientAuthRequired, 0, 0, Optional.empty());
+    }
+
+    /**
+     * @param sessionCacheSize   the maximum number of cached TLS sessions, {@code 0} for the provider default.
+     * @param sessionTimeoutSecs the lifetime of cached TLS sessions, {@code 0} for the provider default.
+     * @param sessionTicketKeys  the session ticket keys shared by all proxy instances.
+     */
+    public UpstreamSslConfig(
+            final Optional<KeyStoreConfig> trustStore,
+            final KeyStoreConfig keyStore,
+            final boolean clientAuthRequired,
+            final long sessionCacheSize,
+            final long sessionTimeoutSecs,
+            final Optional<SessionTicketKeyConfig> sessionTicketKeys
     ) {
         this.trustStore = trustStore;
         this.keyStore = keyStore;
         this.clientAuthRequired = clientAuthRequired;
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeoutSecs = sessionTimeoutSecs;
+        this.sessionTicketKeys = sessionTicketKeys;
     }
 
     public Optional<KeyStoreConfig> getTrustStore() {
@@ -47,4 +70,16 @@ public class UpstreamSslConfig {
     public boolean isClientAuthRequired() {
         return clientAuthRequired;
     }
+
+    public long getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    public long getSessionTimeoutSecs() {
+        return sessionTimeoutSecs;
+    }
+
+    public Optional<SessionTicketKeyConfig> getSessionTicketKeys() {
+        return sessionTicketKeys;
+    }
 }
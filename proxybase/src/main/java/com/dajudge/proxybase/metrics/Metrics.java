@@ -0,0 +1,64 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Minimal sink for the operational metrics emitted by proxybase. Implementations are expected to bridge to the
+ * metrics library of the application and must be thread safe.
+ */
+public interface Metrics {
+    /**
+     * Adds the given delta to a monotonic counter.
+     *
+     * @param name  the name of the counter.
+     * @param delta the value to add.
+     */
+    void count(String name, long delta);
+
+    /**
+     * Records a single observation of a distribution, e.g. a duration in nanoseconds.
+     *
+     * @param name  the name of the distribution.
+     * @param value the observed value.
+     */
+    void record(String name, long value);
+
+    /**
+     * Registers a gauge that is sampled by the metrics backend.
+     *
+     * @param name  the name of the gauge.
+     * @param value the supplier of the current value.
+     */
+    void gauge(String name, LongSupplier value);
+
+    Metrics NULL_METRICS = new Metrics() {
+        @Override
+        public void count(final String name, final long delta) {
+        }
+
+        @Override
+        public void record(final String name, final long value) {
+        }
+
+        @Override
+        public void gauge(final String name, final LongSupplier value) {
+        }
+    };
+}
@@ -20,6 +20,7 @@ package com.dajudge.proxybase;
 import com.dajudge.proxybase.ProxyChannelFactory.ProxyChannelInitializer;
 import com.dajudge.proxybase.ca.test.TestCertificationAuthority;
 import com.dajudge.proxybase.config.Endpoint;
+import com.dajudge.proxybase.config.ProxyApplicationConfig;
 import com.dajudge.proxybase.util.TestSslConfiguration.SocketFactory;
 import com.dajudge.proxybase.util.TestSslConfiguration.SslConfiguration;
 import org.slf4j.Logger;
@@ -38,6 +39,7 @@ import java.util.UUID;
 import java.util.function.Consumer;
 import java.util.stream.IntStream;
 
+import static com.dajudge.proxybase.metrics.Metrics.NULL_METRICS;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.stream.Collectors.joining;
 import static org.junit.Assert.assertEquals;
@@ -122,7 +124,7 @@ public abstract class BaseProxyTest {
     ) {
         withDownstreamServer(downstreamSslConfig, downstreamServer -> {
             final int port = freePort();
-            try (final ProxyApplication ignored = new ProxyApplication(factory -> {
+            final ProxyApplication proxy = new ProxyApplication(factory -> {
                 final Endpoint upstreamEndpoint = new Endpoint("127.0.0.1", port);
                 final Endpoint downstreamEndpoint = new Endpoint("127.0.0.1", downstreamServer.getLocalPort());
                 final ProxyChannelInitializer initializer = (upstreamChannel, downstreamChannel) -> {
@@ -138,12 +140,19 @@ public abstract class BaseProxyTest {
                         downstreamEndpoint,
                         initializer
                 );
-            })) {
+            }, NULL_METRICS, proxyConfig());
+            try {
                 proxyConsumer.accept(port);
+            } finally {
+                proxy.close();
             }
         }, downstreamSocketAssertions);
     }
 
+    protected ProxyApplicationConfig proxyConfig() {
+        return ProxyApplicationConfig.defaults();
+    }
+
     private int freePort() {
         try (final ServerSocket serverSocket = new ServerSocket()) {
             serverSocket.bind(new InetSocketAddress("127.0.0.1", 0));
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.ca.Helpers;
+import com.dajudge.proxybase.ca.test.TestCertificationAuthority;
+import com.dajudge.proxybase.certs.KeyStoreManager;
+import com.dajudge.proxybase.certs.KeyStoreWrapper;
+import com.dajudge.proxybase.metrics.InMemoryMetrics;
+import com.dajudge.proxybase.util.EmbeddedTls;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.junit.Test;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.security.KeyStoreException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class CachingClientTrustManagerTest {
+    private static final String KEYSTORE_TYPE = "jks";
+    private static final String AUTH_TYPE = "RSA";
+    private static final String HITS = "upstream.tls.client_verification.cache.hits";
+    private static final String MISSES = "upstream.tls.client_verification.cache.misses";
+    private static final TestCertificationAuthority SERVER_CA =
+            new TestCertificationAuthority(System::currentTimeMillis, "cn=serverCA", KEYSTORE_TYPE);
+    private static final TestCertificationAuthority CLIENT_CA =
+            new TestCertificationAuthority(System::currentTimeMillis, "cn=clientCA", KEYSTORE_TYPE);
+    private static final TestCertificationAuthority OTHER_CA =
+            new TestCertificationAuthority(System::currentTimeMillis, "cn=otherCA", KEYSTORE_TYPE);
+
+    private final InMemoryMetrics metrics = new InMemoryMetrics();
+    private final X509TrustManager delegate = mock(X509TrustManager.class);
+    private final CachingClientTrustManager subject = new CachingClientTrustManager(
+            new X509TrustManager[]{delegate},
+            new VerifiedCertificateCache("test", 16, 1000, new AtomicLong()::get, metrics)
+    );
+
+    @Test
+    public void skips_delegate_for_cached_chain() throws Exception {
+        final X509Certificate[] chain = chain("cn=cached");
+
+        subject.checkClientTrusted(chain, AUTH_TYPE);
+        subject.checkClientTrusted(chain, AUTH_TYPE);
+
+        verify(delegate, times(1)).checkClientTrusted(chain, AUTH_TYPE);
+        assertEquals(1, metrics.getCount("test.cache.hits"));
+    }
+
+    @Test
+    public void does_not_cache_rejected_chain() throws Exception {
+        final X509Certificate[] chain = chain("cn=rejected");
+        doThrow(new CertificateException("Untrusted")).when(delegate).checkClientTrusted(chain, AUTH_TYPE);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                subject.checkClientTrusted(chain, AUTH_TYPE);
+                fail("Chain was accepted");
+            } catch (final CertificateException e) {
+                // Expected
+            }
+        }
+
+        verify(delegate, times(2)).checkClientTrusted(chain, AUTH_TYPE);
+    }
+
+    @Test
+    public void invalidates_cache_only_when_trust_store_changes() throws Exception {
+        final AtomicReference<KeyStoreWrapper> trustStore = new AtomicReference<>(trustStore(CLIENT_CA));
+        final KeyStoreManager trustStoreManager = trustStore::get;
+        final KeyStoreWrapper serverKeyStore = SERVER_CA.createNewKeyStore("cn=server", KEYSTORE_TYPE);
+        final UpstreamSslContextProvider provider = new UpstreamSslContextProvider(
+                true,
+                Optional.of(trustStoreManager),
+                () -> serverKeyStore,
+                0,
+                0,
+                Optional.empty(),
+                metrics
+        );
+        final KeyStoreWrapper clientKeyStore = CLIENT_CA.createNewKeyStore("cn=client", KEYSTORE_TYPE);
+
+        assertTrue(handshake(provider, clientKeyStore));
+        assertTrue(handshake(provider, clientKeyStore));
+        assertEquals(1, metrics.getCount(MISSES));
+        assertEquals(1, metrics.getCount(HITS));
+
+        // Reloaded, but unchanged
+        trustStore.set(trustStore(CLIENT_CA));
+        assertTrue(handshake(provider, clientKeyStore));
+        assertEquals(1, metrics.getCount(MISSES));
+
+        trustStore.set(new KeyStoreWrapper(Helpers.createKeyStore(keyStore -> {
+            keyStore.setCertificateEntry("client", CLIENT_CA.getTrustStore(KEYSTORE_TYPE).getCertificate("ca"));
+            keyStore.setCertificateEntry("other", OTHER_CA.getTrustStore(KEYSTORE_TYPE).getCertificate("ca"));
+        }, KEYSTORE_TYPE), null));
+        assertTrue(handshake(provider, clientKeyStore));
+        assertEquals(2, metrics.getCount(MISSES));
+    }
+
+    private static boolean handshake(
+            final UpstreamSslContextProvider provider,
+            final KeyStoreWrapper clientKeyStore
+    ) throws Exception {
+        final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm()
+        );
+        keyManagerFactory.init(clientKeyStore.getKeyStore(), clientKeyStore.getKeyPassword());
+        // A new client context each time, so the sessions are not resumed and the chain is checked again
+        final SslContext clientContext = SslContextBuilder.forClient()
+                .keyManager(keyManagerFactory)
+                .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .build();
+        return EmbeddedTls.handshake(
+                clientContext.newHandler(ByteBufAllocator.DEFAULT),
+                provider.getContext().newHandler(ByteBufAllocator.DEFAULT)
+        );
+    }
+
+    private static KeyStoreWrapper trustStore(final TestCertificationAuthority ca) {
+        return new KeyStoreWrapper(ca.getTrustStore(KEYSTORE_TYPE), null);
+    }
+
+    private static X509Certificate[] chain(final String dn) throws KeyStoreException {
+        final KeyStoreWrapper keyStore = CLIENT_CA.createNewKeyStore(dn, KEYSTORE_TYPE);
+        return new X509Certificate[]{(X509Certificate) keyStore.getKeyStore().getCertificate("key")};
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.CachingDnsResolver.TtlRecorder;
+import com.dajudge.proxybase.config.DnsResolverConfig;
+import com.dajudge.proxybase.metrics.InMemoryMetrics;
+import com.dajudge.proxybase.util.StubDnsServer;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.Promise;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.dajudge.proxybase.DownstreamChannelFactory.DOWNSTREAM_DNS_REFRESHES;
+import static com.dajudge.proxybase.DownstreamChannelFactory.DOWNSTREAM_DNS_RESOLVE_TIME;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CachingDnsResolverTest {
+    private static final long START = 1000;
+    private static final long TTL_MSECS = SECONDS.toMillis(30);
+    private static final long NEGATIVE_TTL_MSECS = SECONDS.toMillis(5);
+    private static final long REFRESH_AHEAD_MSECS = SECONDS.toMillis(5);
+    private final AtomicLong now = new AtomicLong(START);
+    private final InMemoryMetrics metrics = new InMemoryMetrics();
+    private NioEventLoopGroup group;
+    private StubDnsServer dns;
+    private CachingDnsResolver resolver;
+
+    @Before
+    public void setup() throws Exception {
+        group = new NioEventLoopGroup(1);
+        dns = new StubDnsServer();
+        dns.answer("backend.test", "10.1.2.3", (int) MILLISECONDS.toSeconds(TTL_MSECS));
+        resolver = new CachingDnsResolver(
+                group.next(),
+                Transport.NIO,
+                new DnsResolverConfig(singletonList(dns.getAddress()), 1000, 1, 3600, 5, REFRESH_AHEAD_MSECS),
+                metrics,
+                now::get,
+                // The tests trigger the refresh themselves
+                HOURS.toMillis(1)
+        );
+    }
+
+    @After
+    public void teardown() throws Exception {
+        resolver.close();
+        group.shutdownGracefully().syncUninterruptibly();
+        dns.close();
+    }
+
+    @Test
+    public void caches_answers_until_ttl_expiry() throws Exception {
+        final List<InetAddress> expected = singletonList(InetAddress.getByName("10.1.2.3"));
+        assertEquals(expected, resolve("backend.test").getNow());
+        final int queries = dns.getQueries();
+
+        now.set(START + TTL_MSECS - 1);
+        assertEquals(expected, resolve("backend.test").getNow());
+        assertEquals(queries, dns.getQueries());
+
+        now.set(START + TTL_MSECS);
+        assertEquals(expected, resolve("backend.test").getNow());
+        assertTrue(dns.getQueries() > queries);
+    }
+
+    @Test
+    public void refreshes_names_in_use_ahead_of_expiry() throws Exception {
+        resolve("backend.test");
+        now.set(START + 1);
+        resolve("backend.test");
+
+        now.set(START + TTL_MSECS - REFRESH_AHEAD_MSECS);
+        refresh();
+        awaitQueriesCompleted(2);
+        assertEquals(1, metrics.getCount(DOWNSTREAM_DNS_REFRESHES));
+
+        // Served from the refreshed entry without waiting for another query
+        final int queries = dns.getQueries();
+        now.set(START + TTL_MSECS);
+        assertTrue(resolve("backend.test").isSuccess());
+        assertEquals(queries, dns.getQueries());
+    }
+
+    @Test
+    public void does_not_refresh_unused_names() throws Exception {
+        resolve("backend.test");
+        final int queries = dns.getQueries();
+
+        now.set(START + TTL_MSECS - REFRESH_AHEAD_MSECS);
+        refresh();
+        assertEquals(0, metrics.getCount(DOWNSTREAM_DNS_REFRESHES));
+        assertEquals(queries, dns.getQueries());
+    }
+
+    @Test
+    public void caches_failures_until_negative_ttl_expiry() throws Exception {
+        assertFalse(resolve("missing.test").isSuccess());
+        final int queries = dns.getQueries();
+
+        now.set(START + NEGATIVE_TTL_MSECS - 1);
+        assertFalse(resolve("missing.test").isSuccess());
+        assertEquals(queries, dns.getQueries());
+
+        now.set(START + NEGATIVE_TTL_MSECS);
+        assertFalse(resolve("missing.test").isSuccess());
+        assertTrue(dns.getQueries() > queries);
+    }
+
+    @Test
+    public void does_not_query_ip_literals() throws Exception {
+        assertEquals(singletonList(InetAddress.getByName("10.0.0.1")), resolve("10.0.0.1").getNow());
+        assertEquals(0, dns.getQueries());
+    }
+
+    @Test
+    public void takes_lowest_ttl_of_all_names_found_for_a_query() {
+        final TtlRecorder recorder = new TtlRecorder();
+        recorder.cache("backend.", null, loopback(), 30, null);
+        recorder.cache("backend.search.test.", null, loopback(), 10, null);
+        recorder.cache("backendx.", null, loopback(), 5, null);
+
+        assertEquals(Long.valueOf(10), recorder.take("backend", emptySet()));
+        assertNull(recorder.take("backend", emptySet()));
+        assertEquals(Long.valueOf(5), recorder.take("backendx", emptySet()));
+    }
+
+    @Test
+    public void leaves_ttls_of_longer_queries_in_flight() {
+        final TtlRecorder recorder = new TtlRecorder();
+        recorder.cache("backend.", null, loopback(), 30, null);
+        recorder.cache("backend.search.test.", null, loopback(), 10, null);
+
+        assertEquals(Long.valueOf(30), recorder.take("backend", singleton("backend.search.test")));
+        assertEquals(Long.valueOf(10), recorder.take("backend.search.test", emptySet()));
+    }
+
+    private static InetAddress loopback() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    private void refresh() throws InterruptedException {
+        group.next().submit(resolver::refresh).sync();
+    }
+
+    private void awaitQueriesCompleted(final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + SECONDS.toMillis(10);
+        while (metrics.getDistribution(DOWNSTREAM_DNS_RESOLVE_TIME).getCount() < count) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        // The cache is updated by the same task that records the resolve time
+        group.next().submit(() -> {
+        }).sync();
+    }
+
+    private Promise<List<InetAddress>> resolve(final String host) throws InterruptedException {
+        final Promise<List<InetAddress>> promise = group.next().newPromise();
+        resolver.resolveAll(host, promise);
+        assertTrue(promise.await(10, SECONDS));
+        return promise;
+    }
+}
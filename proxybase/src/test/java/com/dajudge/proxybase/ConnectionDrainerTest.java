@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.metrics.InMemoryMetrics;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.dajudge.proxybase.ProxyApplication.DRAIN_CLOSED_FORCED;
+import static com.dajudge.proxybase.ProxyApplication.DRAIN_CLOSED_IDLE;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionDrainerTest {
+    private final InMemoryMetrics metrics = new InMemoryMetrics();
+    private final ConnectionDrainer drainer = new ConnectionDrainer(metrics);
+    private final EventLoopGroup group = new NioEventLoopGroup(2);
+    private Channel server;
+
+    @Before
+    public void setup() throws InterruptedException {
+        server = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInboundHandlerAdapter())
+                .bind("127.0.0.1", 0)
+                .sync()
+                .channel();
+    }
+
+    @After
+    public void teardown() {
+        server.close().syncUninterruptibly();
+        group.shutdownGracefully(0, 0, SECONDS).syncUninterruptibly();
+    }
+
+    @Test
+    public void closes_idle_connection_with_flushed_legs() throws InterruptedException {
+        final Channel upstream = connect();
+        final Channel downstream = connect();
+        drainer.track(upstream);
+        drainer.trackDownstream(upstream, downstream);
+        downstream.writeAndFlush(Unpooled.copiedBuffer("hello", US_ASCII)).sync();
+
+        drainer.drain(50, 5000);
+
+        assertFalse(upstream.isOpen());
+        assertEquals(1, metrics.getCount(DRAIN_CLOSED_IDLE));
+        assertEquals(0, metrics.getCount(DRAIN_CLOSED_FORCED));
+    }
+
+    @Test
+    public void waits_for_pending_writes_to_slow_downstream() throws InterruptedException {
+        final Channel upstream = connect();
+        final Channel downstream = connect();
+        drainer.track(upstream);
+        drainer.trackDownstream(upstream, downstream);
+        // Not flushed, i.e. the downstream peer did not take the data yet
+        downstream.write(Unpooled.copiedBuffer("hello", US_ASCII));
+
+        drainer.drain(50, 500);
+
+        assertFalse(upstream.isOpen());
+        assertEquals(0, metrics.getCount(DRAIN_CLOSED_IDLE));
+        assertEquals(1, metrics.getCount(DRAIN_CLOSED_FORCED));
+    }
+
+    @Test
+    public void returns_when_last_connection_closed() throws InterruptedException {
+        final Channel upstream = connect();
+        drainer.track(upstream);
+        upstream.eventLoop().schedule(() -> upstream.close(), 100, MILLISECONDS);
+
+        final long start = System.nanoTime();
+        drainer.drain(60000, 60000);
+
+        assertTrue(NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        assertEquals(0, metrics.getCount(DRAIN_CLOSED_FORCED));
+    }
+
+    @Test
+    public void does_not_wait_without_connections() {
+        final long start = System.nanoTime();
+
+        drainer.drain(60000, 60000);
+
+        assertTrue(NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+    }
+
+    @Test
+    public void ignores_downstream_of_untracked_channel() {
+        final EmbeddedChannel upstream = new EmbeddedChannel();
+        final EmbeddedChannel downstream = new EmbeddedChannel();
+        final int handlers = downstream.pipeline().names().size();
+
+        drainer.trackDownstream(upstream, downstream);
+
+        assertEquals(handlers, downstream.pipeline().names().size());
+    }
+
+    private Channel connect() throws InterruptedException {
+        return new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInboundHandlerAdapter())
+                .connect(server.localAddress())
+                .sync()
+                .channel();
+    }
+}
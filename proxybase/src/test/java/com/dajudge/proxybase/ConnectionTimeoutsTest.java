@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.config.ConnectionTimeoutConfig;
+import com.dajudge.proxybase.metrics.Metrics;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import static com.dajudge.proxybase.ProxyApplication.LOGGING_CONTEXT_HANDLER;
+import static com.dajudge.proxybase.ProxyChannelFactory.CONNECTION_TIMEOUT_READ;
+import static com.dajudge.proxybase.metrics.Metrics.NULL_METRICS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class ConnectionTimeoutsTest {
+    @Test
+    public void closes_channel_after_read_timeout() throws InterruptedException {
+        final Metrics metrics = mock(Metrics.class);
+        try (final ConnectionTimeouts timeouts = new ConnectionTimeouts(
+                new ConnectionTimeoutConfig(0, 200, 0),
+                metrics
+        )) {
+            final EmbeddedChannel channel = channel();
+            timeouts.apply(channel);
+            verify(metrics, timeout(5000)).count(CONNECTION_TIMEOUT_READ, 1);
+            assertTrue(channel.closeFuture().await(5000));
+            assertFalse(channel.isOpen());
+        }
+    }
+
+    @Test
+    public void adds_no_handler_when_disabled() {
+        try (final ConnectionTimeouts timeouts = new ConnectionTimeouts(
+                ConnectionTimeoutConfig.disabled(),
+                NULL_METRICS
+        )) {
+            final EmbeddedChannel channel = channel();
+            final int handlers = channel.pipeline().names().size();
+            timeouts.apply(channel);
+            assertEquals(handlers, channel.pipeline().names().size());
+        }
+    }
+
+    private static EmbeddedChannel channel() {
+        final EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addFirst(LOGGING_CONTEXT_HANDLER, new ChannelInboundHandlerAdapter());
+        return channel;
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.ca.test.TestCertificationAuthority;
+import com.dajudge.proxybase.certs.KeyStoreWrapper;
+import com.dajudge.proxybase.config.DownstreamPoolConfig;
+import com.dajudge.proxybase.config.Endpoint;
+import com.dajudge.proxybase.metrics.InMemoryMetrics;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import static com.dajudge.proxybase.ProxyChannelFactory.DOWNSTREAM_POOL_CONNECT_FAILURES;
+import static com.dajudge.proxybase.ProxyChannelFactory.DOWNSTREAM_POOL_EVICTIONS;
+import static com.dajudge.proxybase.ProxyChannelFactory.DOWNSTREAM_POOL_HITS;
+import static com.dajudge.proxybase.ProxyChannelFactory.DOWNSTREAM_POOL_MISSES;
+import static com.dajudge.proxybase.ProxyChannelFactory.DOWNSTREAM_POOL_TIME_TO_READY;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownstreamChannelPoolTest {
+    private static final long MAX_IDLE_MSECS = 60000;
+    private static final String ACTIVE = "channelActive";
+    private static final String KEYSTORE_TYPE = "jks";
+    private static final TestCertificationAuthority CA =
+            new TestCertificationAuthority(System::currentTimeMillis, "cn=poolCA", KEYSTORE_TYPE);
+
+    private final NioEventLoopGroup group = new NioEventLoopGroup(2);
+    private final InMemoryMetrics metrics = new InMemoryMetrics();
+    private final List<SocketChannel> accepted = new CopyOnWriteArrayList<>();
+    private volatile String greeting;
+    private volatile SslContext serverSslContext;
+    private DownstreamChannelFactory channelFactory;
+    private Endpoint endpoint;
+    private DownstreamChannelPool pool;
+
+    @Before
+    public void setup() throws InterruptedException {
+        final Channel server = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(final SocketChannel ch) {
+                        accepted.add(ch);
+                        if (serverSslContext != null) {
+                            ch.pipeline().addLast(serverSslContext.newHandler(ch.alloc()));
+                        }
+                        if (greeting != null) {
+                            ch.writeAndFlush(Unpooled.copiedBuffer(greeting, US_ASCII));
+                        }
+                    }
+                })
+                .bind("127.0.0.1", 0)
+                .sync()
+                .channel();
+        endpoint = new Endpoint("127.0.0.1", ((InetSocketAddress) server.localAddress()).getPort());
+        channelFactory = new DownstreamChannelFactory(group);
+    }
+
+    @After
+    public void teardown() {
+        if (pool != null) {
+            pool.close();
+        }
+        channelFactory.close();
+        group.shutdownGracefully(0, 0, SECONDS).syncUninterruptibly();
+    }
+
+    @Test
+    public void hands_out_ready_channel() throws InterruptedException {
+        pool = pool(1, MAX_IDLE_MSECS, ch -> {
+        });
+        awaitReady(1);
+
+        final SocketChannel channel = pool.acquire();
+
+        assertNotNull(channel);
+        assertTrue(channel.isActive());
+        assertEquals(1, metrics.getCount(DOWNSTREAM_POOL_HITS));
+        assertEquals(0, metrics.getCount(DOWNSTREAM_POOL_MISSES));
+    }
+
+    @Test
+    public void misses_while_endpoint_is_unreachable() throws InterruptedException, IOException {
+        endpoint = new Endpoint("127.0.0.1", unusedPort());
+        pool = pool(1, MAX_IDLE_MSECS, ch -> {
+        });
+        await(() -> metrics.getCount(DOWNSTREAM_POOL_CONNECT_FAILURES) > 0);
+
+        assertNull(pool.acquire());
+        assertEquals(1, metrics.getCount(DOWNSTREAM_POOL_MISSES));
+    }
+
+    @Test
+    public void refills_after_hand_out() throws InterruptedException {
+        pool = pool(1, MAX_IDLE_MSECS, ch -> {
+        });
+        awaitReady(1);
+
+        final SocketChannel first = pool.acquire();
+        awaitReady(2);
+
+        final SocketChannel second = pool.acquire();
+        assertNotSame(first, second);
+        assertEquals(2, metrics.getCount(DOWNSTREAM_POOL_HITS));
+    }
+
+    @Test
+    public void refills_when_pooled_channel_is_closed_by_server() throws InterruptedException {
+        pool = pool(1, MAX_IDLE_MSECS, ch -> {
+        });
+        awaitReady(1);
+        // The server might register the accepted channel only after the client side is ready
+        await(() -> accepted.size() == 1);
+
+        accepted.get(0).close();
+        awaitReady(2);
+
+        final SocketChannel channel = pool.acquire();
+        assertNotNull(channel);
+        assertTrue(channel.isActive());
+        // Acquiring refills the pool again, so the server may have accepted a third channel already
+        await(() -> accepted.size() >= 2);
+    }
+
+    @Test
+    public void evicts_and_replaces_idle_channels() throws InterruptedException {
+        pool = pool(1, 200, ch -> {
+        });
+        awaitReady(1);
+
+        await(() -> metrics.getCount(DOWNSTREAM_POOL_EVICTIONS) > 0);
+        await(() -> !accepted.isEmpty() && !accepted.get(0).isActive());
+        awaitReady(2);
+        await(() -> accepted.size() >= 2);
+    }
+
+    @Test
+    public void replays_messages_received_while_pooled() throws InterruptedException {
+        greeting = "hello";
+        final CountDownLatch received = new CountDownLatch(1);
+        // Reads once while pooled, like the SSL handshake does
+        pool = pool(1, MAX_IDLE_MSECS, ch -> ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelActive(final ChannelHandlerContext ctx) {
+                ctx.fireChannelActive();
+                ctx.read();
+            }
+
+            @Override
+            public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+                received.countDown();
+                ctx.fireChannelRead(msg);
+            }
+        }));
+        awaitReady(1);
+        assertTrue(received.await(5, SECONDS));
+
+        final SocketChannel channel = pool.acquire();
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        channel.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+                final ByteBuf buf = (ByteBuf) msg;
+                messages.add(buf.toString(US_ASCII));
+                buf.release();
+            }
+        });
+        DownstreamChannelPool.activate(channel);
+
+        assertEquals("hello", messages.poll(5, SECONDS));
+    }
+
+    @Test
+    public void replays_channel_active_and_handshake_on_hand_out() throws Exception {
+        serverSslContext = serverSslContext();
+        final SslContext clientSslContext = clientSslContext();
+        pool = pool(1, MAX_IDLE_MSECS, ch -> ch.pipeline().addLast(clientSslContext.newHandler(ch.alloc())));
+        awaitReady(1);
+
+        final SocketChannel channel = pool.acquire();
+        final BlockingQueue<Object> events = new LinkedBlockingQueue<>();
+        channel.eventLoop().execute(() -> {
+            channel.pipeline().addLast(new EventRecorder(events));
+            DownstreamChannelPool.activate(channel);
+        });
+
+        assertEquals(ACTIVE, events.poll(5, SECONDS));
+        assertEquals(SslHandshakeCompletionEvent.SUCCESS, events.poll(5, SECONDS));
+        assertNull(events.poll(100, MILLISECONDS));
+    }
+
+    @Test
+    public void initializes_pooled_channel_like_a_fresh_one() throws Exception {
+        serverSslContext = serverSslContext();
+        final SslContext clientSslContext = clientSslContext();
+        final BlockingQueue<Object> events = new LinkedBlockingQueue<>();
+        final int port = unusedPort();
+        final ProxyApplication proxy = new ProxyApplication(factory -> {
+            factory.createDownstreamPool(
+                    endpoint,
+                    new DownstreamPoolConfig(1, MAX_IDLE_MSECS),
+                    ch -> ch.pipeline().addLast(clientSslContext.newHandler(ch.alloc())),
+                    metrics
+            );
+            factory.createProxyChannel(
+                    new Endpoint("127.0.0.1", port),
+                    endpoint,
+                    (upstreamChannel, downstreamChannel) -> {
+                        events.add(downstreamChannel.eventLoop().inEventLoop());
+                        downstreamChannel.pipeline().addLast(new EventRecorder(events));
+                    }
+            );
+        });
+        try {
+            awaitReady(1);
+
+            final Socket client = new Socket("127.0.0.1", port);
+            try {
+                assertEquals(true, events.poll(5, SECONDS));
+                assertEquals(ACTIVE, events.poll(5, SECONDS));
+                assertEquals(SslHandshakeCompletionEvent.SUCCESS, events.poll(5, SECONDS));
+                assertNull(events.poll(100, MILLISECONDS));
+                assertEquals(1, metrics.getCount(DOWNSTREAM_POOL_HITS));
+            } finally {
+                client.close();
+            }
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void close_closes_ready_channels() throws InterruptedException {
+        pool = pool(1, MAX_IDLE_MSECS, ch -> {
+        });
+        awaitReady(1);
+
+        pool.close();
+
+        await(() -> !accepted.get(0).isActive());
+        assertNull(pool.acquire());
+        assertFalse(accepted.get(0).isActive());
+    }
+
+    private DownstreamChannelPool pool(final int size, final long maxIdleMsecs, final Consumer<Channel> warmup) {
+        return new DownstreamChannelPool(
+                endpoint,
+                new DownstreamPoolConfig(size, maxIdleMsecs),
+                channelFactory,
+                warmup,
+                metrics
+        );
+    }
+
+    private static SslContext serverSslContext() throws Exception {
+        final KeyStoreWrapper keyStore = CA.createNewKeyStore("cn=localhost", KEYSTORE_TYPE);
+        final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm()
+        );
+        keyManagerFactory.init(keyStore.getKeyStore(), keyStore.getKeyPassword());
+        return SslContextBuilder.forServer(keyManagerFactory).build();
+    }
+
+    private static SslContext clientSslContext() throws SSLException {
+        return SslContextBuilder.forClient()
+                .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .build();
+    }
+
+    private void awaitReady(final long count) throws InterruptedException {
+        await(() -> metrics.getDistribution(DOWNSTREAM_POOL_TIME_TO_READY).getCount() >= count);
+    }
+
+    private static int unusedPort() throws IOException {
+        try (final ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void await(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Records {@code channelActive} and user events.
+     */
+    private static class EventRecorder extends ChannelInboundHandlerAdapter {
+        private final BlockingQueue<Object> events;
+
+        private EventRecorder(final BlockingQueue<Object> events) {
+            this.events = events;
+        }
+
+        @Override
+        public void channelActive(final ChannelHandlerContext ctx) {
+            events.add(ACTIVE);
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt) {
+            events.add(evt);
+            ctx.fireUserEventTriggered(evt);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+
+public class DownstreamConnectTest {
+    @Test
+    public void interleaves_address_families() {
+        final List<InetSocketAddress> addresses = addresses("::1", "::2", "::3", "10.0.0.1", "10.0.0.2");
+        assertEquals(
+                addresses("::1", "10.0.0.1", "::2", "10.0.0.2", "::3"),
+                DownstreamConnect.interleaveFamilies(addresses)
+        );
+    }
+
+    @Test
+    public void prefers_family_of_first_address() {
+        final List<InetSocketAddress> addresses = addresses("10.0.0.1", "10.0.0.2", "::1");
+        assertEquals(
+                addresses("10.0.0.1", "::1", "10.0.0.2"),
+                DownstreamConnect.interleaveFamilies(addresses)
+        );
+    }
+
+    private static List<InetSocketAddress> addresses(final String... ips) {
+        return Arrays.stream(ips)
+                .map(ip -> new InetSocketAddress(ip, 443))
+                .collect(toList());
+    }
+}
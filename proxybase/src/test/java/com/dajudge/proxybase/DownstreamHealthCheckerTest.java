@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.config.Endpoint;
+import com.dajudge.proxybase.config.HealthCheckConfig;
+import com.dajudge.proxybase.config.LoadBalancing;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.dajudge.proxybase.metrics.Metrics.NULL_METRICS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class DownstreamHealthCheckerTest {
+    private static final Endpoint A = new Endpoint("a", 1);
+    private static final Endpoint B = new Endpoint("b", 1);
+    private static final HealthCheckConfig CONFIG = new HealthCheckConfig(1000, 500, 3, 10000);
+
+    private final AtomicLong now = new AtomicLong(1000);
+    private DownstreamHealthChecker checker;
+
+    @Before
+    public void setup() {
+        checker = new DownstreamHealthChecker(
+                Arrays.asList(A, B),
+                CONFIG,
+                mock(DownstreamChannelFactory.class),
+                ch -> {
+                },
+                NULL_METRICS,
+                now::get
+        );
+    }
+
+    @Test
+    public void ejects_after_consecutive_failures() {
+        checker.reportFailure(A);
+        checker.reportFailure(A);
+        assertTrue(checker.isAvailable(A));
+        checker.reportFailure(A);
+        assertFalse(checker.isAvailable(A));
+        assertTrue(checker.isAvailable(B));
+    }
+
+    @Test
+    public void success_resets_failures() {
+        checker.reportFailure(A);
+        checker.reportFailure(A);
+        checker.reportSuccess(A);
+        checker.reportFailure(A);
+        assertTrue(checker.isAvailable(A));
+    }
+
+    @Test
+    public void readmits_after_ejection_period() {
+        ejectA();
+        now.addAndGet(CONFIG.getEjectionMsecs());
+        assertTrue(checker.isAvailable(A));
+        checker.reportFailure(A);
+        assertFalse(checker.isAvailable(A));
+    }
+
+    @Test
+    public void endpoint_group_skips_ejected_endpoints() {
+        final EndpointGroup group = new EndpointGroup(
+                Arrays.asList(A, B),
+                LoadBalancing.CONSISTENT_HASH,
+                checker::isAvailable
+        );
+        ejectA();
+        for (int port = 1; port < 100; port++) {
+            assertEquals(B, group.acquire(new InetSocketAddress("127.0.0." + port, port)));
+        }
+    }
+
+    private void ejectA() {
+        for (int i = 0; i < CONFIG.getFailureThreshold(); i++) {
+            checker.reportFailure(A);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.config.ConnectionTimeoutConfig;
+import com.dajudge.proxybase.config.Endpoint;
+import com.dajudge.proxybase.config.HealthCheckConfig;
+import com.dajudge.proxybase.config.ProxyApplicationConfig;
+import com.dajudge.proxybase.metrics.InMemoryMetrics;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import static com.dajudge.proxybase.DownstreamHealthChecker.DOWNSTREAM_HEALTH_REJECTED;
+import static com.dajudge.proxybase.ProxyChannelFactory.CONNECTION_TIMEOUT_IDLE;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DownstreamMultiplexerTest {
+    private static final int CLIENT_CORRELATION_ID = 42;
+
+    private final NioEventLoopGroup group = new NioEventLoopGroup(2);
+    private final Set<Integer> downstreamCorrelationIds = ConcurrentHashMap.newKeySet();
+    private final Set<SocketChannel> downstreamConnections = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch heldRequest = new CountDownLatch(1);
+    private volatile TestMessage held;
+    private volatile ChannelHandlerContext heldContext;
+    private DownstreamChannelFactory channelFactory;
+    private DownstreamMultiplexer<TestMessage> multiplexer;
+    private final List<Future<Channel>> connectFutures = new CopyOnWriteArrayList<>();
+    private final InMemoryMetrics metrics = new InMemoryMetrics();
+    private Endpoint downstreamEndpoint;
+    private int upstreamPort;
+
+    @Before
+    public void setup() throws InterruptedException {
+        final Channel downstream = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(final SocketChannel ch) {
+                        downstreamConnections.add(ch);
+                        ch.pipeline().addLast(new EchoHandler());
+                    }
+                })
+                .bind("127.0.0.1", 0)
+                .sync()
+                .channel();
+        downstreamEndpoint = new Endpoint("127.0.0.1", ((InetSocketAddress) downstream.localAddress()).getPort());
+        channelFactory = new DownstreamChannelFactory(group);
+        multiplexer = new DownstreamMultiplexer<>(
+                downstreamEndpoint,
+                channelFactory,
+                new TestCodec(),
+                ch -> {
+                },
+                1,
+                connectFutures::add
+        );
+        final Channel upstream = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(final SocketChannel ch) {
+                        multiplexer.attach(ch, upstreamChannel -> {
+                        });
+                    }
+                })
+                .bind("127.0.0.1", 0)
+                .sync()
+                .channel();
+        upstreamPort = ((InetSocketAddress) upstream.localAddress()).getPort();
+    }
+
+    @After
+    public void teardown() {
+        multiplexer.close();
+        channelFactory.close();
+        group.shutdownGracefully(0, 0, SECONDS).syncUninterruptibly();
+    }
+
+    @Test
+    public void rewrites_correlation_ids_and_routes_responses_back() throws IOException {
+        try (final Socket a = connect(); final Socket b = connect()) {
+            send(a, "from a");
+            send(b, "from b");
+
+            assertResponse(a, "from a");
+            assertResponse(b, "from b");
+        }
+        assertEquals(1, downstreamConnections.size());
+        assertEquals(2, downstreamCorrelationIds.size());
+        assertEquals(1, connectFutures.size());
+        assertTrue(connectFutures.get(0).isSuccess());
+    }
+
+    @Test
+    public void forgets_pending_requests_of_closed_client() throws Exception {
+        try (final Socket b = connect()) {
+            try (final Socket a = connect()) {
+                send(a, "hold");
+                assertTrue(heldRequest.await(5, SECONDS));
+                assertEquals(1, multiplexer.getPendingRequests());
+            }
+            await(() -> multiplexer.getPendingRequests() == 0);
+
+            // The late response is dropped and does not affect the other client
+            heldContext.writeAndFlush(held.all());
+            send(b, "from b");
+            assertResponse(b, "from b");
+        }
+        assertEquals(1, downstreamConnections.size());
+    }
+
+    @Test
+    public void applies_timeouts_to_multiplexed_connections() throws Exception {
+        final int port = unusedPort();
+        final ProxyApplication proxy = new ProxyApplication(
+                factory -> createMultiplexedProxyChannel(factory, port, downstreamEndpoint),
+                metrics,
+                ProxyApplicationConfig.builder().connectionTimeouts(new ConnectionTimeoutConfig(300, 0, 0)).build()
+        );
+        try (final Socket socket = connect(port)) {
+            send(socket, "from client");
+            assertResponse(socket, "from client");
+
+            assertEquals(-1, socket.getInputStream().read());
+            assertTrue(metrics.getCount(CONNECTION_TIMEOUT_IDLE) > 0);
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void rejects_multiplexed_connections_to_ejected_endpoint() throws Exception {
+        final int port = unusedPort();
+        final Endpoint unreachable = new Endpoint("127.0.0.1", unusedPort());
+        final AtomicReference<DownstreamHealthChecker> checker = new AtomicReference<>();
+        final ProxyApplication proxy = new ProxyApplication(factory -> {
+            checker.set(factory.createHealthChecker(
+                    singletonList(unreachable),
+                    new HealthCheckConfig(50, 500, 1, 60000),
+                    ch -> {
+                    },
+                    metrics
+            ));
+            createMultiplexedProxyChannel(factory, port, unreachable);
+        }, metrics);
+        try {
+            await(() -> !checker.get().isAvailable(unreachable));
+
+            try (final Socket socket = connect(port)) {
+                assertEquals(-1, socket.getInputStream().read());
+            }
+            assertEquals(1, metrics.getCount(DOWNSTREAM_HEALTH_REJECTED));
+        } finally {
+            proxy.close();
+        }
+    }
+
+    private static void createMultiplexedProxyChannel(
+            final ProxyChannelFactory factory,
+            final int port,
+            final Endpoint downstreamEndpoint
+    ) {
+        factory.createMultiplexedProxyChannel(
+                new Endpoint("127.0.0.1", port),
+                downstreamEndpoint,
+                new TestCodec(),
+                ch -> {
+                },
+                ch -> {
+                },
+                1
+        );
+    }
+
+    private Socket connect() throws IOException {
+        return connect(upstreamPort);
+    }
+
+    private static Socket connect(final int port) throws IOException {
+        final Socket socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static void send(final Socket socket, final String payload) throws IOException {
+        final byte[] bytes = payload.getBytes(US_ASCII);
+        final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeInt(4 + bytes.length);
+        out.writeInt(CLIENT_CORRELATION_ID);
+        out.write(bytes);
+        out.flush();
+    }
+
+    private static void assertResponse(final Socket socket, final String payload) throws IOException {
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+        final byte[] bytes = new byte[in.readInt() - 4];
+        assertEquals(CLIENT_CORRELATION_ID, in.readInt());
+        in.readFully(bytes);
+        assertArrayEquals(payload.getBytes(US_ASCII), bytes);
+    }
+
+    private static int unusedPort() throws IOException {
+        try (final ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void await(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private class EchoHandler extends AbstractChunkedMessageStreamInboundHandler<TestMessage> {
+        @Override
+        protected void onMessageComplete(final ChannelHandlerContext ctx, final TestMessage message) {
+            downstreamCorrelationIds.add(message.getCorrelationId());
+            if ("hold".equals(message.getPayload())) {
+                held = message;
+                heldContext = ctx;
+                heldRequest.countDown();
+            } else {
+                ctx.writeAndFlush(message.all());
+            }
+        }
+
+        @Override
+        protected TestMessage createNewMessage() {
+            return new TestMessage();
+        }
+    }
+
+    private static class TestCodec implements MultiplexingCodec<TestMessage> {
+        @Override
+        public TestMessage createRequestMessage() {
+            return new TestMessage();
+        }
+
+        @Override
+        public TestMessage createResponseMessage() {
+            return new TestMessage();
+        }
+
+        @Override
+        public int getCorrelationId(final TestMessage message) {
+            return message.getCorrelationId();
+        }
+
+        @Override
+        public void setCorrelationId(final TestMessage message, final int correlationId) {
+            message.getChunks().get(1).setInt(0, correlationId);
+        }
+    }
+
+    /**
+     * A length prefix followed by the correlation ID and the payload.
+     */
+    private static class TestMessage extends AbstractChunkedMessage {
+        private TestMessage() {
+            super(4);
+        }
+
+        @Override
+        protected int nextChunkSize(final List<ByteBuf> chunks) {
+            return chunks.size() == 1 ? chunks.get(0).getInt(0) : NO_MORE_CHUNKS;
+        }
+
+        private int getCorrelationId() {
+            return getChunks().get(1).getInt(0);
+        }
+
+        private String getPayload() {
+            final ByteBuf body = getChunks().get(1);
+            return body.toString(4, body.readableBytes() - 4, US_ASCII);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.ca.test.TestCertificationAuthority;
+import com.dajudge.proxybase.certs.KeyStoreManager;
+import com.dajudge.proxybase.certs.KeyStoreWrapper;
+import com.dajudge.proxybase.config.DownstreamSslConfig;
+import com.dajudge.proxybase.config.Endpoint;
+import com.dajudge.proxybase.metrics.InMemoryMetrics;
+import com.dajudge.proxybase.util.EmbeddedTls;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.ImmediateExecutor;
+import org.junit.Test;
+
+import javax.net.ssl.KeyManagerFactory;
+import java.util.Optional;
+import java.util.function.Function;
+
+import static com.dajudge.proxybase.HostnameCheck.NULL_VERIFIER;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DownstreamSslSessionTest {
+    private static final String KEYSTORE_TYPE = "jks";
+    private static final String FULL = "downstream.tls.handshakes.full";
+    private static final String RESUMED = "downstream.tls.handshakes.resumed";
+    private static final String FAILED = "downstream.tls.handshakes.failed";
+    private static final String DURATION = "downstream.tls.handshake.duration.nanos";
+    private static final Endpoint ENDPOINT = new Endpoint("localhost", 9092);
+    private static final TestCertificationAuthority SERVER_CA =
+            new TestCertificationAuthority(System::currentTimeMillis, "cn=serverCA", KEYSTORE_TYPE);
+    private static final TestCertificationAuthority OTHER_CA =
+            new TestCertificationAuthority(System::currentTimeMillis, "cn=otherCA", KEYSTORE_TYPE);
+
+    private final InMemoryMetrics metrics = new InMemoryMetrics();
+
+    @Test
+    public void resumes_session_on_reconnect() throws Exception {
+        final SslContext serverContext = serverContext();
+        final Function<Channel, ChannelHandler> factory = handlerFactory(SERVER_CA, 16, 60);
+
+        assertTrue(handshake(factory, serverContext));
+        assertTrue(handshake(factory, serverContext));
+
+        assertEquals(1, metrics.getCount(FULL));
+        assertEquals(1, metrics.getCount(RESUMED));
+        assertEquals(0, metrics.getCount(FAILED));
+        assertEquals(2, metrics.getDistribution(DURATION).getCount());
+    }
+
+    @Test
+    public void does_not_resume_session_with_another_server_context() throws Exception {
+        final Function<Channel, ChannelHandler> factory = handlerFactory(SERVER_CA, 16, 60);
+
+        assertTrue(handshake(factory, serverContext()));
+        assertTrue(handshake(factory, serverContext()));
+
+        assertEquals(2, metrics.getCount(FULL));
+        assertEquals(0, metrics.getCount(RESUMED));
+    }
+
+    @Test
+    public void counts_failed_handshake() throws Exception {
+        final Function<Channel, ChannelHandler> factory = handlerFactory(OTHER_CA, 16, 60);
+
+        assertFalse(handshake(factory, serverContext()));
+
+        assertEquals(0, metrics.getCount(FULL));
+        assertEquals(0, metrics.getCount(RESUMED));
+        assertEquals(1, metrics.getCount(FAILED));
+        assertEquals(1, metrics.getDistribution(DURATION).getCount());
+    }
+
+    @Test
+    public void applies_session_cache_settings() throws Exception {
+        final SslContext context = SslUtils.createClientSslContext(
+                NULL_VERIFIER,
+                Optional.of(trustStoreManager(SERVER_CA)),
+                Optional.empty(),
+                42,
+                300,
+                metrics
+        );
+
+        assertEquals(42, context.sessionCacheSize());
+        assertEquals(300, context.sessionTimeout());
+    }
+
+    @Test
+    public void defaults_session_cache_settings() {
+        final DownstreamSslConfig config = new DownstreamSslConfig(Optional.empty(), Optional.empty(), true);
+
+        assertEquals(0, config.getSessionCacheSize());
+        assertEquals(0, config.getSessionTimeoutSecs());
+    }
+
+    private Function<Channel, ChannelHandler> handlerFactory(
+            final TestCertificationAuthority trustedCa,
+            final long sessionCacheSize,
+            final long sessionTimeoutSecs
+    ) {
+        return DownstreamSslHandlerFactory.createDownstreamSslHandler(
+                NULL_VERIFIER,
+                Optional.of(trustStoreManager(trustedCa)),
+                Optional.empty(),
+                ENDPOINT,
+                sessionCacheSize,
+                sessionTimeoutSecs,
+                metrics,
+                ImmediateExecutor.INSTANCE
+        );
+    }
+
+    private static boolean handshake(
+            final Function<Channel, ChannelHandler> factory,
+            final SslContext serverContext
+    ) {
+        final EmbeddedChannel channel = new EmbeddedChannel();
+        try {
+            return EmbeddedTls.handshake(
+                    (SslHandler) factory.apply(channel),
+                    serverContext.newHandler(ByteBufAllocator.DEFAULT)
+            );
+        } finally {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    private static KeyStoreManager trustStoreManager(final TestCertificationAuthority ca) {
+        final KeyStoreWrapper trustStore = new KeyStoreWrapper(ca.getTrustStore(KEYSTORE_TYPE), null);
+        return () -> trustStore;
+    }
+
+    private static SslContext serverContext() throws Exception {
+        final KeyStoreWrapper keyStore = SERVER_CA.createNewKeyStore("cn=localhost", KEYSTORE_TYPE);
+        final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm()
+        );
+        keyManagerFactory.init(keyStore.getKeyStore(), keyStore.getKeyPassword());
+        return SslContextBuilder.forServer(keyManagerFactory).build();
+    }
+}
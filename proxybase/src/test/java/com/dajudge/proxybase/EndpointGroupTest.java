@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.config.Endpoint;
+import com.dajudge.proxybase.config.LoadBalancing;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class EndpointGroupTest {
+    private static final Endpoint A = new Endpoint("a", 1);
+    private static final Endpoint B = new Endpoint("b", 1);
+    private static final Endpoint C = new Endpoint("c", 1);
+    private static final List<Endpoint> ENDPOINTS = Arrays.asList(A, B, C);
+    private static final InetSocketAddress CLIENT = new InetSocketAddress("127.0.0.1", 12345);
+
+    @Test
+    public void round_robin_uses_all_endpoints() {
+        final EndpointGroup group = new EndpointGroup(ENDPOINTS, LoadBalancing.ROUND_ROBIN);
+        final Set<Endpoint> selected = new HashSet<>();
+        for (int i = 0; i < ENDPOINTS.size(); i++) {
+            selected.add(group.acquire(CLIENT));
+        }
+        assertEquals(new HashSet<>(ENDPOINTS), selected);
+    }
+
+    @Test
+    public void least_connections_picks_idle_endpoint() {
+        final EndpointGroup group = new EndpointGroup(ENDPOINTS, LoadBalancing.LEAST_CONNECTIONS);
+        final Endpoint first = group.acquire(CLIENT);
+        final Endpoint second = group.acquire(CLIENT);
+        final Endpoint third = group.acquire(CLIENT);
+        group.release(first);
+
+        assertEquals(new HashSet<>(ENDPOINTS), new HashSet<>(Arrays.asList(first, second, third)));
+        assertEquals(first, group.acquire(CLIENT));
+        assertEquals(2, group.getTotalConnections(first));
+    }
+
+    @Test
+    public void consistent_hash_ignores_client_port() {
+        final EndpointGroup group = new EndpointGroup(ENDPOINTS, LoadBalancing.CONSISTENT_HASH);
+        final Endpoint selected = group.acquire(CLIENT);
+        for (int port = 1; port < 100; port++) {
+            assertEquals(selected, group.acquire(new InetSocketAddress("127.0.0.1", port)));
+        }
+    }
+
+    @Test
+    public void counts_open_connections() {
+        final EndpointGroup group = new EndpointGroup(ENDPOINTS, LoadBalancing.POWER_OF_TWO_CHOICES);
+        final Endpoint selected = group.acquire(CLIENT);
+        assertEquals(1, group.getOpenConnections(selected));
+        group.release(selected);
+        assertEquals(0, group.getOpenConnections(selected));
+    }
+}
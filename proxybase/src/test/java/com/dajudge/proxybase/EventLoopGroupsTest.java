@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.config.ProxyApplicationConfig;
+import io.netty.channel.EventLoopGroup;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EventLoopGroupsTest {
+    @Test
+    public void creates_daemon_threads_without_name_prefix() throws Exception {
+        try (final EventLoopGroups groups = EventLoopGroups.create(
+                ProxyApplicationConfig.builder().daemonThreads(true).build()
+        )) {
+            assertTrue(groups.getUpstreamGroup().submit(() -> Thread.currentThread().isDaemon()).get());
+            assertTrue(groups.getDownstreamGroup().submit(() -> Thread.currentThread().isDaemon()).get());
+        }
+    }
+
+    @Test
+    public void names_threads_with_prefix() throws Exception {
+        try (final EventLoopGroups groups = EventLoopGroups.create(
+                ProxyApplicationConfig.builder().threadNamePrefix("proxy").build()
+        )) {
+            final String name = groups.getUpstreamGroup().submit(() -> Thread.currentThread().getName()).get();
+            assertTrue(name, name.startsWith("proxy-upstream-"));
+        }
+    }
+
+    @Test
+    public void uses_single_boss_thread_by_default() {
+        try (final EventLoopGroups groups = EventLoopGroups.create(ProxyApplicationConfig.defaults())) {
+            assertEquals(1, count(groups.getServerGroup()));
+        }
+    }
+
+    @Test
+    public void shares_worker_group() {
+        try (final EventLoopGroups groups = EventLoopGroups.create(
+                ProxyApplicationConfig.builder().sharedWorkerGroup(true).upstreamThreads(2).build()
+        )) {
+            assertSame(groups.getUpstreamGroup(), groups.getDownstreamGroup());
+            assertEquals(2, count(groups.getUpstreamGroup()));
+        }
+    }
+
+    private static int count(final EventLoopGroup group) {
+        int count = 0;
+        for (final Object ignored : group) {
+            count++;
+        }
+        return count;
+    }
+}
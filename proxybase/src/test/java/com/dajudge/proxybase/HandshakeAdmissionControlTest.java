@@ -0,0 +1,319 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.ca.test.TestCertificationAuthority;
+import com.dajudge.proxybase.certs.KeyStoreWrapper;
+import com.dajudge.proxybase.config.Endpoint;
+import com.dajudge.proxybase.metrics.InMemoryMetrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateExecutor;
+import io.netty.util.concurrent.Promise;
+import org.junit.Test;
+
+import javax.net.ssl.KeyManagerFactory;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import static com.dajudge.proxybase.HandshakeAdmissionControl.ADMITTED;
+import static com.dajudge.proxybase.HandshakeAdmissionControl.IN_FLIGHT;
+import static com.dajudge.proxybase.HandshakeAdmissionControl.QUEUED;
+import static com.dajudge.proxybase.HandshakeAdmissionControl.REJECTED;
+import static com.dajudge.proxybase.HandshakeAdmissionControl.SHED;
+import static com.dajudge.proxybase.HandshakeAdmissionControl.WAIT_TIME;
+import static java.util.Collections.emptyMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HandshakeAdmissionControlTest {
+    private static final String KEYSTORE_TYPE = "jks";
+    private static final TestCertificationAuthority CA =
+            new TestCertificationAuthority(System::currentTimeMillis, "cn=admissionCA", KEYSTORE_TYPE);
+    private final InMemoryMetrics metrics = new InMemoryMetrics();
+
+    @Test
+    public void admits_connections_up_to_the_limit() {
+        final HandshakeAdmissionControl admission = new HandshakeAdmissionControl(1, 1, 60000, metrics);
+        final EmbeddedChannel upstream = new EmbeddedChannel();
+        final Setup setup = new Setup(upstream);
+
+        admission.admit(upstream, setup);
+
+        assertEquals(1, setup.calls.get());
+        assertEquals(1, metrics.getCount(ADMITTED));
+        assertEquals(1, metrics.getGauge(IN_FLIGHT));
+        setup.complete();
+        assertEquals(0, metrics.getGauge(IN_FLIGHT));
+    }
+
+    @Test
+    public void queues_connections_until_a_permit_is_released() {
+        final HandshakeAdmissionControl admission = new HandshakeAdmissionControl(1, 1, 60000, metrics);
+        final EmbeddedChannel first = new EmbeddedChannel();
+        final EmbeddedChannel second = new EmbeddedChannel();
+        final Setup firstSetup = new Setup(first);
+        final Setup secondSetup = new Setup(second);
+        admission.admit(first, firstSetup);
+
+        admission.admit(second, secondSetup);
+
+        assertEquals(0, secondSetup.calls.get());
+        assertEquals(1, metrics.getGauge(QUEUED));
+        assertFalse(second.config().isAutoRead());
+
+        firstSetup.complete();
+        second.runPendingTasks();
+
+        assertEquals(1, secondSetup.calls.get());
+        assertEquals(0, metrics.getGauge(QUEUED));
+        assertEquals(1, metrics.getGauge(IN_FLIGHT));
+        assertEquals(2, metrics.getCount(ADMITTED));
+        assertEquals(2, metrics.getDistribution(WAIT_TIME).getCount());
+    }
+
+    @Test
+    public void rejects_connections_when_queue_is_full() {
+        final HandshakeAdmissionControl admission = new HandshakeAdmissionControl(1, 1, 60000, metrics);
+        admission.admit(new EmbeddedChannel(), new Setup(null));
+        admission.admit(new EmbeddedChannel(), new Setup(null));
+        final EmbeddedChannel rejected = new EmbeddedChannel();
+
+        admission.admit(rejected, new Setup(rejected));
+
+        assertFalse(rejected.isOpen());
+        assertEquals(1, metrics.getCount(REJECTED));
+        assertEquals(1, metrics.getGauge(QUEUED));
+    }
+
+    @Test
+    public void sheds_queued_connections_after_the_deadline() throws InterruptedException {
+        final HandshakeAdmissionControl admission = new HandshakeAdmissionControl(1, 1, 50, metrics);
+        admission.admit(new EmbeddedChannel(), new Setup(null));
+        final EmbeddedChannel queued = new EmbeddedChannel();
+        final Setup setup = new Setup(queued);
+        admission.admit(queued, setup);
+
+        Thread.sleep(100);
+        queued.runScheduledPendingTasks();
+
+        assertFalse(queued.isOpen());
+        assertEquals(0, setup.calls.get());
+        assertEquals(1, metrics.getCount(SHED));
+        assertEquals(0, metrics.getGauge(QUEUED));
+    }
+
+    @Test
+    public void forgets_queued_connections_closed_by_the_client() {
+        final HandshakeAdmissionControl admission = new HandshakeAdmissionControl(1, 1, 60000, metrics);
+        final EmbeddedChannel first = new EmbeddedChannel();
+        final Setup firstSetup = new Setup(first);
+        admission.admit(first, firstSetup);
+        final EmbeddedChannel queued = new EmbeddedChannel();
+        final Setup setup = new Setup(queued);
+        admission.admit(queued, setup);
+
+        queued.close();
+        firstSetup.complete();
+
+        assertEquals(0, setup.calls.get());
+        assertEquals(0, metrics.getGauge(QUEUED));
+        assertEquals(0, metrics.getGauge(IN_FLIGHT));
+    }
+
+    @Test
+    public void releases_permit_when_downstream_setup_fails() {
+        final HandshakeAdmissionControl admission = new HandshakeAdmissionControl(1, 1, 60000, metrics);
+        final EmbeddedChannel upstream = new EmbeddedChannel();
+        final Setup setup = new Setup(upstream);
+
+        admission.admit(upstream, setup);
+        setup.fail();
+
+        assertFalse(upstream.isOpen());
+        assertEquals(0, metrics.getGauge(IN_FLIGHT));
+    }
+
+    @Test
+    public void holds_permit_until_sni_handshake_completed() throws Exception {
+        final HandshakeAdmissionControl admission = new HandshakeAdmissionControl(1, 1, 60000, metrics);
+        final UpstreamSslContextProvider provider = mock(UpstreamSslContextProvider.class);
+        when(provider.getContext()).thenReturn(serverContext());
+        final EmbeddedChannel upstream = new EmbeddedChannel(new UpstreamSniHandler(
+                new SniSslContextMapping(provider, emptyMap()),
+                new SslSessionMetrics("upstream", metrics),
+                ImmediateExecutor.INSTANCE
+        ));
+        final Setup setup = new Setup(upstream);
+        admission.admit(upstream, setup);
+        setup.succeed();
+        final EmbeddedChannel queued = new EmbeddedChannel();
+        final Setup queuedSetup = new Setup(queued);
+        admission.admit(queued, queuedSetup);
+
+        // The ClientHello was not read yet
+        assertEquals(1, metrics.getGauge(IN_FLIGHT));
+        assertEquals(1, metrics.getGauge(QUEUED));
+
+        final EmbeddedChannel client = new EmbeddedChannel(SslContextBuilder.forClient()
+                .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .build()
+                .newHandler(upstream.alloc(), "broker.example.com", 9092));
+        for (int i = 0; i < 10 && metrics.getCount(ADMITTED) < 2; i++) {
+            transfer(client, upstream);
+            transfer(upstream, client);
+            queued.runPendingTasks();
+        }
+
+        assertEquals(1, metrics.getCount("upstream.tls.handshakes.full"));
+        assertEquals(2, metrics.getCount(ADMITTED));
+        assertEquals(1, queuedSetup.calls.get());
+        assertEquals(0, metrics.getGauge(QUEUED));
+        client.finishAndReleaseAll();
+        upstream.finishAndReleaseAll();
+    }
+
+    @Test
+    public void queued_connection_sees_channel_active_once() throws Exception {
+        final HandshakeAdmissionControl admission = new HandshakeAdmissionControl(1, 1, 60000, metrics);
+        final Map<Channel, AtomicInteger> activations = new ConcurrentHashMap<>();
+        // Accepts but never answers, so the downstream TLS handshake holds the permit
+        try (final ServerSocket downstream = new ServerSocket(0)) {
+            final int port = unusedPort();
+            final SslContext sslContext = SslContextBuilder.forClient()
+                    .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                    .build();
+            final ProxyApplication proxy = new ProxyApplication(factory -> factory.createProxyChannel(
+                    new Endpoint("127.0.0.1", port),
+                    new Endpoint("127.0.0.1", downstream.getLocalPort()),
+                    (upstreamChannel, downstreamChannel) -> {
+                        downstreamChannel.pipeline().addLast(sslContext.newHandler(downstreamChannel.alloc()));
+                        upstreamChannel.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelActive(final ChannelHandlerContext ctx) {
+                                activations.computeIfAbsent(ctx.channel(), it -> new AtomicInteger())
+                                        .incrementAndGet();
+                                ctx.fireChannelActive();
+                            }
+                        });
+                    },
+                    admission
+            ));
+            try {
+                final Socket first = new Socket("127.0.0.1", port);
+                await(() -> metrics.getGauge(IN_FLIGHT) == 1);
+                final Socket second = new Socket("127.0.0.1", port);
+                try {
+                    await(() -> metrics.getGauge(QUEUED) == 1);
+
+                    first.close();
+
+                    await(() -> activations.size() == 2);
+                    Thread.sleep(200);
+                    activations.values().forEach(count -> assertEquals(1, count.get()));
+                    assertEquals(2, metrics.getCount(ADMITTED));
+                } finally {
+                    second.close();
+                }
+            } finally {
+                proxy.close();
+            }
+        }
+    }
+
+    private static void transfer(final EmbeddedChannel from, final EmbeddedChannel to) {
+        ByteBuf data;
+        while ((data = from.readOutbound()) != null) {
+            to.writeInbound(data);
+        }
+    }
+
+    private static SslContext serverContext() throws Exception {
+        final KeyStoreWrapper keyStore = CA.createNewKeyStore("cn=broker.example.com", KEYSTORE_TYPE);
+        final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm()
+        );
+        keyManagerFactory.init(keyStore.getKeyStore(), keyStore.getKeyPassword());
+        return SslContextBuilder.forServer(keyManagerFactory).build();
+    }
+
+    private static int unusedPort() throws IOException {
+        try (final ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void await(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * A proxy channel setup which completes when told to.
+     */
+    private static class Setup implements Supplier<Future<Channel>> {
+        private final AtomicInteger calls = new AtomicInteger();
+        private final Channel downstream = new EmbeddedChannel();
+        private final Promise<Channel> promise = downstream.eventLoop().newPromise();
+        private final Channel upstream;
+
+        private Setup(final Channel upstream) {
+            this.upstream = upstream;
+        }
+
+        @Override
+        public Future<Channel> get() {
+            calls.incrementAndGet();
+            return promise;
+        }
+
+        private void succeed() {
+            promise.setSuccess(downstream);
+        }
+
+        private void fail() {
+            promise.setFailure(new IOException("Connection refused"));
+        }
+
+        private void complete() {
+            succeed();
+            // Like a finished proxy connection
+            upstream.close();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.ca.test.TestCertificationAuthority;
+import com.dajudge.proxybase.certs.KeyStoreWrapper;
+import com.dajudge.proxybase.metrics.InMemoryMetrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.junit.Test;
+
+import javax.net.ssl.KeyManagerFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HandshakeExecutorTest {
+    private static final String KEYSTORE_TYPE = "jks";
+    private static final TestCertificationAuthority CA =
+            new TestCertificationAuthority(System::currentTimeMillis, "cn=handshakeCA", KEYSTORE_TYPE);
+
+    private final InMemoryMetrics metrics = new InMemoryMetrics();
+
+    @Test
+    public void rejects_tasks_when_queue_is_full() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        try (final HandshakeExecutor executor = new HandshakeExecutor(1, 1, metrics)) {
+            executor.execute(() -> {
+                started.countDown();
+                awaitUninterruptibly(blocked);
+            });
+            assertTrue(started.await(5, SECONDS));
+            executor.execute(() -> {
+            });
+
+            assertRejected(executor);
+            assertEquals(1, metrics.getGauge(HandshakeExecutor.QUEUE_DEPTH));
+            blocked.countDown();
+        }
+    }
+
+    @Test
+    public void rejects_tasks_after_close() {
+        final HandshakeExecutor executor = new HandshakeExecutor(1, metrics);
+        executor.close();
+
+        assertRejected(executor);
+    }
+
+    @Test
+    public void fails_handshake_cleanly_when_task_is_rejected() throws Exception {
+        final HandshakeExecutor executor = new HandshakeExecutor(1, metrics);
+        executor.close();
+        final EmbeddedChannel serverChannel = new EmbeddedChannel();
+        final SslHandler server = new SslHandler(
+                serverContext().newEngine(serverChannel.alloc()),
+                false,
+                HandshakeExecutor.closeOnRejection(executor, serverChannel)
+        );
+        serverChannel.pipeline().addLast(server);
+        final EmbeddedChannel clientChannel = new EmbeddedChannel(SslContextBuilder.forClient()
+                .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .build()
+                .newHandler(serverChannel.alloc()));
+
+        ByteBuf clientHello;
+        while ((clientHello = clientChannel.readOutbound()) != null) {
+            // Would throw if the rejection reached the end of the pipeline
+            serverChannel.writeInbound(clientHello);
+        }
+        serverChannel.runPendingTasks();
+
+        assertFalse(serverChannel.isOpen());
+        assertTrue(server.handshakeFuture().isDone());
+        assertFalse(server.handshakeFuture().isSuccess());
+        assertEquals(1, metrics.getCount(HandshakeExecutor.REJECTED));
+        clientChannel.finishAndReleaseAll();
+        serverChannel.finishAndReleaseAll();
+    }
+
+    private void assertRejected(final HandshakeExecutor executor) {
+        final long rejected = metrics.getCount(HandshakeExecutor.REJECTED);
+        try {
+            executor.execute(() -> {
+            });
+            fail("Task was not rejected");
+        } catch (final RejectedExecutionException e) {
+            assertEquals(rejected + 1, metrics.getCount(HandshakeExecutor.REJECTED));
+        }
+    }
+
+    private static SslContext serverContext() throws Exception {
+        final KeyStoreWrapper keyStore = CA.createNewKeyStore("cn=server", KEYSTORE_TYPE);
+        final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm()
+        );
+        keyManagerFactory.init(keyStore.getKeyStore(), keyStore.getKeyPassword());
+        return SslContextBuilder.forServer(keyManagerFactory).build();
+    }
+
+    private static void awaitUninterruptibly(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.ca.Helpers;
+import com.dajudge.proxybase.ca.test.TestCertificationAuthority;
+import com.dajudge.proxybase.certs.KeyStoreManager;
+import com.dajudge.proxybase.certs.KeyStoreWrapper;
+import com.dajudge.proxybase.metrics.InMemoryMetrics;
+import org.junit.Test;
+
+import java.security.KeyStoreException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+
+public class HostCheckingTrustManagerTest {
+    private static final String KEYSTORE_TYPE = "jks";
+    private static final String AUTH_TYPE = "RSA";
+    private static final TestCertificationAuthority CA =
+            new TestCertificationAuthority(System::currentTimeMillis, "cn=trustManagerCA", KEYSTORE_TYPE);
+    private static final long TTL_MSECS = 1000;
+
+    private final AtomicInteger hostnameChecks = new AtomicInteger();
+    private final AtomicLong now = new AtomicLong(System.currentTimeMillis());
+    private final InMemoryMetrics metrics = new InMemoryMetrics();
+    private final AtomicReference<KeyStoreWrapper> trustStore = new AtomicReference<>(
+            new KeyStoreWrapper(CA.getTrustStore(KEYSTORE_TYPE), null)
+    );
+    private final KeyStoreManager trustStoreManager = trustStore::get;
+    private final HostCheckingTrustManager subject = new HostCheckingTrustManager(
+            Optional.of(trustStoreManager),
+            cert -> hostnameChecks.incrementAndGet(),
+            new VerifiedCertificateCache("test", 16, TTL_MSECS, now::get, metrics)
+    );
+
+    @Test
+    public void skips_validation_of_cached_chain() throws Exception {
+        final X509Certificate[] chain = chain("cn=cached");
+
+        subject.checkServerTrusted(chain, AUTH_TYPE);
+        subject.checkServerTrusted(chain, AUTH_TYPE);
+
+        assertEquals(1, hostnameChecks.get());
+        assertEquals(1, metrics.getCount("test.cache.hits"));
+        assertEquals(1, metrics.getCount("test.cache.misses"));
+    }
+
+    @Test
+    public void revalidates_after_ttl() throws Exception {
+        final X509Certificate[] chain = chain("cn=expiring");
+
+        subject.checkServerTrusted(chain, AUTH_TYPE);
+        now.addAndGet(TTL_MSECS + 1);
+        subject.checkServerTrusted(chain, AUTH_TYPE);
+
+        assertEquals(2, hostnameChecks.get());
+    }
+
+    @Test
+    public void keeps_cache_after_unchanged_trust_store_reload() throws Exception {
+        final X509Certificate[] chain = chain("cn=reloaded");
+
+        subject.checkServerTrusted(chain, AUTH_TYPE);
+        trustStore.set(new KeyStoreWrapper(CA.getTrustStore(KEYSTORE_TYPE), null));
+        subject.checkServerTrusted(chain, AUTH_TYPE);
+
+        assertEquals(1, hostnameChecks.get());
+    }
+
+    @Test
+    public void revalidates_after_trust_store_change() throws Exception {
+        final X509Certificate[] chain = chain("cn=changed");
+        final TestCertificationAuthority otherCa =
+                new TestCertificationAuthority(System::currentTimeMillis, "cn=otherCA", KEYSTORE_TYPE);
+
+        subject.checkServerTrusted(chain, AUTH_TYPE);
+        trustStore.set(new KeyStoreWrapper(Helpers.createKeyStore(keyStore -> {
+            keyStore.setCertificateEntry("ca", CA.getTrustStore(KEYSTORE_TYPE).getCertificate("ca"));
+            keyStore.setCertificateEntry("other", otherCa.getTrustStore(KEYSTORE_TYPE).getCertificate("ca"));
+        }, KEYSTORE_TYPE), null));
+        subject.checkServerTrusted(chain, AUTH_TYPE);
+
+        assertEquals(2, hostnameChecks.get());
+    }
+
+    @Test(expected = CertificateException.class)
+    public void does_not_cache_rejected_chain() throws Exception {
+        final TestCertificationAuthority otherCa =
+                new TestCertificationAuthority(System::currentTimeMillis, "cn=otherCA", KEYSTORE_TYPE);
+        final KeyStoreWrapper keyStore = otherCa.createNewKeyStore("cn=untrusted", KEYSTORE_TYPE);
+        final X509Certificate[] chain = {(X509Certificate) keyStore.getKeyStore().getCertificate("key")};
+        try {
+            subject.checkServerTrusted(chain, AUTH_TYPE);
+        } catch (final CertificateException e) {
+            // Expected
+        }
+        subject.checkServerTrusted(chain, AUTH_TYPE);
+    }
+
+    private static X509Certificate[] chain(final String dn) throws KeyStoreException {
+        final KeyStoreWrapper keyStore = CA.createNewKeyStore(dn, KEYSTORE_TYPE);
+        return new X509Certificate[]{(X509Certificate) keyStore.getKeyStore().getCertificate("key")};
+    }
+}
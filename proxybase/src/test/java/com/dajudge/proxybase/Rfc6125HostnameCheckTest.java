@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.ca.test.TestCertificationAuthority;
+import com.dajudge.proxybase.certs.KeyStoreWrapper;
+import org.junit.Test;
+
+import javax.security.auth.x500.X500Principal;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class Rfc6125HostnameCheckTest {
+    private static final String KEYSTORE_TYPE = "jks";
+    private static final TestCertificationAuthority CA =
+            new TestCertificationAuthority(System::currentTimeMillis, "cn=hostnameCA", KEYSTORE_TYPE);
+
+    @Test
+    public void matches_exact_names() {
+        assertTrue(matches("broker.example.com", "broker.example.com"));
+        assertFalse(matches("broker.example.com", "other.example.com"));
+    }
+
+    @Test
+    public void matches_wildcard_in_leftmost_label_only() {
+        assertTrue(matches("broker.example.com", "*.example.com"));
+        assertTrue(matches("broker1.example.com", "broker*.example.com"));
+        assertFalse(matches("a.broker.example.com", "*.example.com"));
+        assertFalse(matches("example.com", "*.example.com"));
+        assertFalse(matches("broker.example.com", "broker.*.com"));
+    }
+
+    @Test
+    public void rejects_wildcard_below_top_level_domain() {
+        assertFalse(matches("example.com", "*.com"));
+    }
+
+    @Test
+    public void falls_back_to_common_name_without_sans() throws CertificateException {
+        new Rfc6125HostnameCheck("Broker.Example.com.").verify(cert("cn=broker.example.com"));
+    }
+
+    @Test(expected = CertificateException.class)
+    public void rejects_mismatching_common_name() throws CertificateException {
+        new Rfc6125HostnameCheck("other.example.com").verify(cert("cn=broker.example.com"));
+    }
+
+    @Test(expected = CertificateException.class)
+    public void does_not_match_ip_address_against_common_name() throws CertificateException {
+        new Rfc6125HostnameCheck("127.0.0.1").verify(cert("cn=127.0.0.1"));
+    }
+
+    @Test
+    public void matches_exact_and_wildcard_sans() throws CertificateException {
+        final X509Certificate cert = certWithSans(
+                "cn=ignored",
+                dnsSan("Broker.Example.com."),
+                dnsSan("*.internal.example.com")
+        );
+        new Rfc6125HostnameCheck("broker.example.com").verify(cert);
+        new Rfc6125HostnameCheck("node1.internal.example.com").verify(cert);
+    }
+
+    @Test(expected = CertificateException.class)
+    public void does_not_fall_back_to_common_name_with_dns_sans() throws CertificateException {
+        new Rfc6125HostnameCheck("ignored").verify(certWithSans("cn=ignored", dnsSan("broker.example.com")));
+    }
+
+    @Test
+    public void matches_ip_address_sans() throws CertificateException {
+        new Rfc6125HostnameCheck("[::1]").verify(certWithSans("cn=ignored", ipSan("0:0:0:0:0:0:0:1")));
+    }
+
+    @Test
+    public void parses_names_of_a_certificate_once() throws CertificateException {
+        final X509Certificate cert = certWithSans("cn=ignored", dnsSan("*.example.com"));
+        final Rfc6125HostnameCheck check = new Rfc6125HostnameCheck("broker.example.com");
+
+        check.verify(cert);
+        check.verify(cert);
+
+        verify(cert, times(1)).getSubjectAlternativeNames();
+    }
+
+    private static boolean matches(final String host, final String pattern) {
+        try {
+            new Rfc6125HostnameCheck(host).verify(certWithSans("cn=ignored", dnsSan(pattern)));
+            return true;
+        } catch (final CertificateException e) {
+            return false;
+        }
+    }
+
+    private static X509Certificate certWithSans(final String dn, final List<?>... sans) throws CertificateException {
+        final X509Certificate cert = mock(X509Certificate.class);
+        when(cert.getSubjectX500Principal()).thenReturn(new X500Principal(dn));
+        when(cert.getSubjectAlternativeNames()).thenReturn(Arrays.asList(sans));
+        return cert;
+    }
+
+    private static List<?> dnsSan(final String name) {
+        return asList(2, name);
+    }
+
+    private static List<?> ipSan(final String address) {
+        return asList(7, address);
+    }
+
+    private static X509Certificate cert(final String dn) {
+        try {
+            final KeyStoreWrapper keyStore = CA.createNewKeyStore(dn, KEYSTORE_TYPE);
+            return (X509Certificate) keyStore.getKeyStore().getCertificate("key");
+        } catch (final Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.certs.KeyStoreWrapper;
+import com.dajudge.proxybase.config.ProxyApplicationConfig;
+import com.dajudge.proxybase.util.TestKeyStoreManager;
+import com.dajudge.proxybase.util.TestSslConfiguration.OneWaySslConfiguration;
+import com.dajudge.proxybase.util.TestSslConfiguration.PlaintextSslConfiguration;
+import com.dajudge.proxybase.util.TestSslConfiguration.SslConfiguration;
+import org.junit.Test;
+
+import static com.dajudge.proxybase.util.DownstreamSocketAssertions.hasNoCert;
+import static com.dajudge.proxybase.util.DownstreamSocketAssertions.isNotSsl;
+import static com.dajudge.proxybase.util.DownstreamSocketAssertions.isSsl;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+
+/**
+ * Upstream and downstream channels on a single shared event loop, so setting up a proxy channel must not block.
+ */
+public class SharedWorkerGroupTest extends BaseProxyTest {
+    private static final SslConfiguration PLAINTEXT = new PlaintextSslConfiguration();
+    private static final SslConfiguration DOWNSTREAM_TLS = new OneWaySslConfiguration(
+            () -> new KeyStoreWrapper(DOWNSTREAM_SERVER_CA.getTrustStore(KEYSTORE_TYPE), null),
+            new TestKeyStoreManager(DOWNSTREAM_SERVER_CA, "cn=downstreamServer", KEYSTORE_TYPE)
+    );
+    private static final SslConfiguration UPSTREAM_TLS = new OneWaySslConfiguration(
+            () -> new KeyStoreWrapper(UPSTREAM_SERVER_CA.getTrustStore(KEYSTORE_TYPE), null),
+            new TestKeyStoreManager(UPSTREAM_SERVER_CA, "cn=upstreamServer", KEYSTORE_TYPE)
+    );
+
+    @Override
+    protected ProxyApplicationConfig proxyConfig() {
+        return ProxyApplicationConfig.builder()
+                .sharedWorkerGroup(true)
+                .upstreamThreads(1)
+                .build();
+    }
+
+    @Test
+    public void plaintext_works() {
+        assertRoundtripWorksWithProxy(PLAINTEXT, PLAINTEXT, singletonList(isNotSsl()));
+    }
+
+    @Test
+    public void tls_works() {
+        assertRoundtripWorksWithProxy(UPSTREAM_TLS, DOWNSTREAM_TLS, asList(isSsl(), hasNoCert()));
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import io.netty.handler.ssl.SslContext;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SniSslContextMappingTest {
+    private final SslContext defaultContext = mock(SslContext.class);
+    private final SslContext exactContext = mock(SslContext.class);
+    private final SslContext wildcardContext = mock(SslContext.class);
+    private final SniSslContextMapping subject = new SniSslContextMapping(provider(defaultContext), providers());
+
+    @Test
+    public void prefers_exact_match() {
+        assertSame(exactContext, subject.map("Broker1.Example.com."));
+    }
+
+    @Test
+    public void falls_back_to_wildcard() {
+        assertSame(wildcardContext, subject.map("broker2.example.com"));
+    }
+
+    @Test
+    public void wildcard_covers_single_label_only() {
+        assertSame(defaultContext, subject.map("a.broker2.example.com"));
+    }
+
+    @Test
+    public void falls_back_to_default() {
+        assertSame(defaultContext, subject.map(null));
+        assertSame(defaultContext, subject.map("example.org"));
+    }
+
+    private Map<String, UpstreamSslContextProvider> providers() {
+        final Map<String, UpstreamSslContextProvider> providers = new HashMap<>();
+        providers.put("broker1.example.com", provider(exactContext));
+        providers.put("*.example.com", provider(wildcardContext));
+        return providers;
+    }
+
+    private static UpstreamSslContextProvider provider(final SslContext context) {
+        final UpstreamSslContextProvider provider = mock(UpstreamSslContextProvider.class);
+        when(provider.getContext()).thenReturn(context);
+        return provider;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.config.BandwidthLimit;
+import com.dajudge.proxybase.config.TrafficShapingConfig;
+import com.dajudge.proxybase.metrics.Metrics;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.DefaultChannelId;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.AttributeKey;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.dajudge.proxybase.ProxyApplication.LOGGING_CONTEXT_HANDLER;
+import static com.dajudge.proxybase.ProxyChannelFactory.TRAFFIC_SHAPED_BYTES;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TrafficShaperTest {
+    private static final int MESSAGE_SIZE = 64 * 1024;
+    private static final BandwidthLimit READ_LIMIT = new BandwidthLimit(1024, 0);
+    private static final AttributeKey<String> CLIENT = AttributeKey.valueOf(TrafficShaperTest.class, "client");
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Metrics metrics = mock(Metrics.class);
+
+    @After
+    public void teardown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void pauses_reading_when_over_limit() {
+        try (final TrafficShaper shaper = new TrafficShaper(new TrafficShapingConfig(
+                new BandwidthLimit(1024, 0),
+                BandwidthLimit.unlimited(),
+                BandwidthLimit.unlimited(),
+                TrafficShapingConfig::clientAddress,
+                1000,
+                15000
+        ), executor, metrics)) {
+            final EmbeddedChannel upstream = channel();
+            final EmbeddedChannel downstream = channel();
+            shaper.apply(upstream, downstream);
+
+            upstream.writeInbound(Unpooled.wrappedBuffer(new byte[MESSAGE_SIZE]));
+
+            assertFalse(upstream.config().isAutoRead());
+            assertTrue(downstream.config().isAutoRead());
+            verify(metrics).count(TRAFFIC_SHAPED_BYTES, MESSAGE_SIZE);
+            upstream.finishAndReleaseAll();
+            downstream.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    public void limits_writes_to_client_by_pausing_downstream_reads() {
+        try (final TrafficShaper shaper = shaper(
+                new BandwidthLimit(0, 1024),
+                BandwidthLimit.unlimited(),
+                BandwidthLimit.unlimited()
+        )) {
+            final EmbeddedChannel upstream = channel();
+            final EmbeddedChannel downstream = channel();
+            shaper.apply(upstream, downstream);
+
+            upstream.writeInbound(Unpooled.wrappedBuffer(new byte[MESSAGE_SIZE]));
+            assertTrue(upstream.config().isAutoRead());
+
+            downstream.writeInbound(Unpooled.wrappedBuffer(new byte[MESSAGE_SIZE]));
+            assertFalse(downstream.config().isAutoRead());
+            verify(metrics).count(TRAFFIC_SHAPED_BYTES, MESSAGE_SIZE);
+            upstream.finishAndReleaseAll();
+            downstream.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    public void limits_writes_to_multiplexed_client_on_upstream_channel() {
+        try (final TrafficShaper shaper = shaper(
+                BandwidthLimit.unlimited(),
+                BandwidthLimit.unlimited(),
+                new BandwidthLimit(1024, 1024)
+        )) {
+            final EmbeddedChannel upstream = client("tenant");
+            shaper.applyMultiplexed(upstream);
+
+            upstream.writeOutbound(Unpooled.wrappedBuffer(new byte[MESSAGE_SIZE]));
+
+            // Held back by the shaper, which signals backpressure instead of pausing the shared downstream channel
+            assertNull(upstream.readOutbound());
+            assertFalse(upstream.isWritable());
+            upstream.writeInbound(Unpooled.wrappedBuffer(new byte[MESSAGE_SIZE]));
+            assertFalse(upstream.config().isAutoRead());
+            upstream.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    public void shares_limit_between_connections_of_same_listener() {
+        final Channel listener = listener(9092);
+        final Channel otherListener = listener(9093);
+        try (final TrafficShaper shaper = shaper(BandwidthLimit.unlimited(), READ_LIMIT, BandwidthLimit.unlimited())) {
+            final EmbeddedChannel first = shaped(shaper, channel(listener));
+            final EmbeddedChannel second = shaped(shaper, channel(listener));
+            final EmbeddedChannel other = shaped(shaper, channel(otherListener));
+
+            first.writeInbound(Unpooled.wrappedBuffer(new byte[MESSAGE_SIZE]));
+            assertFalse(first.config().isAutoRead());
+
+            second.writeInbound(Unpooled.wrappedBuffer(new byte[1]));
+            assertFalse(second.config().isAutoRead());
+            other.writeInbound(Unpooled.wrappedBuffer(new byte[1]));
+            assertTrue(other.config().isAutoRead());
+            first.finishAndReleaseAll();
+            second.finishAndReleaseAll();
+            other.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    public void shares_limit_between_connections_of_same_client() {
+        try (final TrafficShaper shaper = shaper(BandwidthLimit.unlimited(), BandwidthLimit.unlimited(), READ_LIMIT)) {
+            final EmbeddedChannel first = shaped(shaper, client("tenant"));
+            final EmbeddedChannel second = shaped(shaper, client("tenant"));
+            final EmbeddedChannel other = shaped(shaper, client("other"));
+
+            first.writeInbound(Unpooled.wrappedBuffer(new byte[MESSAGE_SIZE]));
+            assertFalse(first.config().isAutoRead());
+
+            second.writeInbound(Unpooled.wrappedBuffer(new byte[1]));
+            assertFalse(second.config().isAutoRead());
+            other.writeInbound(Unpooled.wrappedBuffer(new byte[1]));
+            assertTrue(other.config().isAutoRead());
+            first.finishAndReleaseAll();
+            second.finishAndReleaseAll();
+            other.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    public void releases_client_limit_after_last_connection_closed() {
+        try (final TrafficShaper shaper = shaper(BandwidthLimit.unlimited(), BandwidthLimit.unlimited(), READ_LIMIT)) {
+            final EmbeddedChannel first = shaped(shaper, client("tenant"));
+            final EmbeddedChannel second = shaped(shaper, client("tenant"));
+            first.writeInbound(Unpooled.wrappedBuffer(new byte[MESSAGE_SIZE]));
+
+            // Still referenced by the second connection
+            first.finishAndReleaseAll();
+            final EmbeddedChannel third = shaped(shaper, client("tenant"));
+            third.writeInbound(Unpooled.wrappedBuffer(new byte[1]));
+            assertFalse(third.config().isAutoRead());
+
+            second.finishAndReleaseAll();
+            third.finishAndReleaseAll();
+            final EmbeddedChannel fresh = shaped(shaper, client("tenant"));
+            fresh.writeInbound(Unpooled.wrappedBuffer(new byte[1]));
+            assertTrue(fresh.config().isAutoRead());
+            fresh.finishAndReleaseAll();
+        }
+    }
+
+    private TrafficShaper shaper(
+            final BandwidthLimit global,
+            final BandwidthLimit perListener,
+            final BandwidthLimit perClient
+    ) {
+        return new TrafficShaper(new TrafficShapingConfig(
+                global,
+                perListener,
+                perClient,
+                channel -> channel.attr(CLIENT).get(),
+                1000,
+                15000
+        ), executor, metrics);
+    }
+
+    private static EmbeddedChannel shaped(final TrafficShaper shaper, final EmbeddedChannel upstream) {
+        final EmbeddedChannel downstream = channel();
+        shaper.apply(upstream, downstream);
+        upstream.closeFuture().addListener(future -> downstream.finishAndReleaseAll());
+        return upstream;
+    }
+
+    private static EmbeddedChannel client(final String identity) {
+        final EmbeddedChannel channel = channel();
+        channel.attr(CLIENT).set(identity);
+        return channel;
+    }
+
+    private static Channel listener(final int port) {
+        final Channel listener = mock(Channel.class);
+        when(listener.localAddress()).thenReturn(new InetSocketAddress("localhost", port));
+        return listener;
+    }
+
+    private static EmbeddedChannel channel() {
+        return channel(null);
+    }
+
+    private static EmbeddedChannel channel(final Channel parent) {
+        final EmbeddedChannel channel = new EmbeddedChannel(parent, DefaultChannelId.newInstance(), true, false);
+        channel.pipeline().addFirst(LOGGING_CONTEXT_HANDLER, new ChannelInboundHandlerAdapter());
+        return channel;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.config.UpstreamLimitsConfig;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.dajudge.proxybase.metrics.Metrics.NULL_METRICS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UpstreamConnectionLimiterTest {
+    private final AtomicLong now = new AtomicLong(-1000);
+
+    @Test
+    public void limits_connections_per_client() throws Exception {
+        final UpstreamConnectionLimiter limiter = limiter(new UpstreamLimitsConfig(128, 2, 0, 0));
+        final InetAddress client = InetAddress.getByName("10.0.0.1");
+        final InetAddress other = InetAddress.getByName("10.0.0.2");
+        assertTrue(limiter.acquireClientSlot(client));
+        assertTrue(limiter.acquireClientSlot(client));
+        assertFalse(limiter.acquireClientSlot(client));
+        assertTrue(limiter.acquireClientSlot(other));
+
+        limiter.releaseClientSlot(client);
+        assertTrue(limiter.acquireClientSlot(client));
+    }
+
+    @Test
+    public void limits_accept_rate_after_burst() {
+        final UpstreamConnectionLimiter limiter = limiter(new UpstreamLimitsConfig(128, 0, 10, 3));
+        assertTrue(limiter.acquireAcceptToken());
+        assertTrue(limiter.acquireAcceptToken());
+        assertTrue(limiter.acquireAcceptToken());
+        assertFalse(limiter.acquireAcceptToken());
+
+        now.addAndGet(MILLISECONDS.toNanos(100));
+        assertTrue(limiter.acquireAcceptToken());
+        assertFalse(limiter.acquireAcceptToken());
+    }
+
+    private UpstreamConnectionLimiter limiter(final UpstreamLimitsConfig config) {
+        return new UpstreamConnectionLimiter(config, NULL_METRICS, now::get);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.dajudge.proxybase;
+
+import com.dajudge.proxybase.ca.test.TestCertificationAuthority;
+import com.dajudge.proxybase.certs.KeyStoreManager;
+import com.dajudge.proxybase.certs.KeyStoreWrapper;
+import com.dajudge.proxybase.certs.SessionTicketKey;
+import io.netty.handler.ssl.OpenSsl;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Supplier;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.dajudge.proxybase.metrics.Metrics.NULL_METRICS;
+import static java.util.Collections.emptyList;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class UpstreamSslContextProviderTest {
+    private static final String KEYSTORE_TYPE = "jks";
+    private static final TestCertificationAuthority CA =
+            new TestCertificationAuthority(System::currentTimeMillis, "cn=contextCA", KEYSTORE_TYPE);
+
+    private final AtomicReference<KeyStoreWrapper> keyStore = new AtomicReference<>(
+            CA.createNewKeyStore("cn=upstreamServer", KEYSTORE_TYPE)
+    );
+    private final KeyStoreManager keyStoreManager = keyStore::get;
+    private final UpstreamSslContextProvider subject = new UpstreamSslContextProvider(
+            false,
+            Optional.empty(),
+            keyStoreManager,
+            0,
+            0,
+            Optional.empty(),
+            NULL_METRICS
+    );
+
+    @Test
+    public void keeps_context_when_reloaded_key_store_is_unchanged() throws Exception {
+        final Object context = subject.getContext();
+
+        keyStore.set(reload(keyStore.get()));
+
+        assertSame(context, subject.getContext());
+    }
+
+    @Test
+    public void rebuilds_context_when_key_store_changes() {
+        final Object context = subject.getContext();
+
+        keyStore.set(CA.createNewKeyStore("cn=upstreamServer", KEYSTORE_TYPE));
+
+        assertNotSame(context, subject.getContext());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_session_ticket_keys_without_openssl() {
+        assumeFalse(OpenSsl.isAvailable());
+
+        new UpstreamSslContextProvider(
+                false,
+                Optional.empty(),
+                keyStoreManager,
+                0,
+                0,
+                Optional.<Supplier<List<SessionTicketKey>>>of(() -> emptyList()),
+                NULL_METRICS
+        );
+    }
+
+    private static KeyStoreWrapper reload(final KeyStoreWrapper keyStore) throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        keyStore.getKeyStore().store(bytes, keyStore.getKeyPassword());
+        final KeyStore reloaded = KeyStore.getInstance(KEYSTORE_TYPE);
+        reloaded.load(new ByteArrayInputStream(bytes.toByteArray()), keyStore.getKeyPassword());
+        return new KeyStoreWrapper(reloaded, keyStore.getKeyPassword());
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.dajudge.proxybase.certs;
+
+import com.dajudge.proxybase.ca.test.TestCertificationAuthority;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.KeyStore;
+
+import static com.dajudge.proxybase.certs.KeyStoreWrapper.sameContent;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyStoreWrapperTest {
+    private static final String KEYSTORE_TYPE = "jks";
+    private static final TestCertificationAuthority CA =
+            new TestCertificationAuthority(System::currentTimeMillis, "cn=wrapperCA", KEYSTORE_TYPE);
+
+    @Test
+    public void reloaded_key_store_has_same_content() throws Exception {
+        final KeyStoreWrapper keyStore = CA.createNewKeyStore("cn=server", KEYSTORE_TYPE);
+        assertTrue(sameContent(keyStore, reload(keyStore)));
+    }
+
+    @Test
+    public void new_key_has_different_content() {
+        final KeyStoreWrapper keyStore = CA.createNewKeyStore("cn=server", KEYSTORE_TYPE);
+        assertFalse(sameContent(keyStore, CA.createNewKeyStore("cn=server", KEYSTORE_TYPE)));
+    }
+
+    @Test
+    public void compares_trust_stores() {
+        final KeyStoreWrapper trustStore = new KeyStoreWrapper(CA.getTrustStore(KEYSTORE_TYPE), null);
+        final TestCertificationAuthority otherCa =
+                new TestCertificationAuthority(System::currentTimeMillis, "cn=otherCA", KEYSTORE_TYPE);
+        assertTrue(sameContent(trustStore, new KeyStoreWrapper(CA.getTrustStore(KEYSTORE_TYPE), null)));
+        assertFalse(sameContent(trustStore, new KeyStoreWrapper(otherCa.getTrustStore(KEYSTORE_TYPE), null)));
+    }
+
+    @Test
+    public void handles_null() {
+        final KeyStoreWrapper trustStore = new KeyStoreWrapper(CA.getTrustStore(KEYSTORE_TYPE), null);
+        assertTrue(sameContent(null, null));
+        assertFalse(sameContent(trustStore, null));
+        assertFalse(sameContent(null, trustStore));
+    }
+
+    private static KeyStoreWrapper reload(final KeyStoreWrapper keyStore) throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        keyStore.getKeyStore().store(bytes, keyStore.getKeyPassword());
+        final KeyStore reloaded = KeyStore.getInstance(KEYSTORE_TYPE);
+        reloaded.load(new ByteArrayInputStream(bytes.toByteArray()), keyStore.getKeyPassword());
+        return new KeyStoreWrapper(reloaded, keyStore.getKeyPassword());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.certs;
+
+import com.dajudge.proxybase.ca.test.TestCertificationAuthority;
+import org.junit.Test;
+
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.dajudge.proxybase.ca.test.TestKeyMode.FRESH_RSA;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PemKeyStoreLoaderTest {
+    private static final String KEYSTORE_TYPE = "jks";
+    // RSA, as the PKCS#1 test cuts the key out of its PKCS#8 encoding
+    private static final TestCertificationAuthority CA =
+            new TestCertificationAuthority(System::currentTimeMillis, "cn=pemCA", KEYSTORE_TYPE, FRESH_RSA);
+    // Offset of the PKCS#1 structure inside the PKCS#8 encoding of an RSA-2048 key
+    private static final int PKCS1_OFFSET = 26;
+
+    private final Map<String, byte[]> files = new HashMap<>();
+    private final Filesystem filesystem = files::get;
+
+    @Test
+    public void loads_pkcs8_key() throws Exception {
+        final KeyStoreWrapper source = CA.createNewKeyStore("cn=pkcs8", KEYSTORE_TYPE);
+        final PrivateKey key = (PrivateKey) source.getKeyStore().getKey("key", source.getKeyPassword());
+        files.put("tls.crt", pem("CERTIFICATE", source.getKeyStore().getCertificate("key").getEncoded()));
+        files.put("tls.key", pem("PRIVATE KEY", key.getEncoded()));
+
+        final KeyStoreWrapper loaded = load("tls.crt", "tls.key");
+
+        assertKeyEntry(source, key, loaded);
+    }
+
+    @Test
+    public void loads_pkcs1_key() throws Exception {
+        final KeyStoreWrapper source = CA.createNewKeyStore("cn=pkcs1", KEYSTORE_TYPE);
+        final PrivateKey key = (PrivateKey) source.getKeyStore().getKey("key", source.getKeyPassword());
+        final byte[] pkcs8 = key.getEncoded();
+        files.put("tls.crt", pem("CERTIFICATE", source.getKeyStore().getCertificate("key").getEncoded()));
+        files.put("tls.key", pem("RSA PRIVATE KEY", Arrays.copyOfRange(pkcs8, PKCS1_OFFSET, pkcs8.length)));
+
+        final KeyStoreWrapper loaded = load("tls.crt", "tls.key");
+
+        assertKeyEntry(source, key, loaded);
+    }
+
+    @Test
+    public void loads_ca_bundle_as_trust_store() throws Exception {
+        final KeyStore first = CA.getTrustStore(KEYSTORE_TYPE);
+        final KeyStore second = new TestCertificationAuthority(System::currentTimeMillis, "cn=otherCA", KEYSTORE_TYPE)
+                .getTrustStore(KEYSTORE_TYPE);
+        files.put("ca.crt", concat(
+                pem("CERTIFICATE", first.getCertificate("ca").getEncoded()),
+                pem("CERTIFICATE", second.getCertificate("ca").getEncoded())
+        ));
+
+        final KeyStore loaded = load("ca.crt", null).getKeyStore();
+
+        assertEquals(2, loaded.size());
+        assertTrue(loaded.getCertificateAlias(first.getCertificate("ca")) != null);
+        assertTrue(loaded.getCertificateAlias(second.getCertificate("ca")) != null);
+    }
+
+    private KeyStoreWrapper load(final String certificatesPath, final String privateKeyPath) throws Exception {
+        return new PemKeyStoreLoader(filesystem, new PemKeyStoreConfig(certificatesPath, privateKeyPath, 0)).load();
+    }
+
+    private static void assertKeyEntry(
+            final KeyStoreWrapper source,
+            final PrivateKey expectedKey,
+            final KeyStoreWrapper loaded
+    ) throws Exception {
+        final KeyStore keyStore = loaded.getKeyStore();
+        final String alias = keyStore.aliases().nextElement();
+        final Key actualKey = keyStore.getKey(alias, loaded.getKeyPassword());
+        final Certificate[] chain = keyStore.getCertificateChain(alias);
+        assertArrayEquals(expectedKey.getEncoded(), actualKey.getEncoded());
+        assertEquals(1, chain.length);
+        assertEquals(source.getKeyStore().getCertificate("key"), chain[0]);
+    }
+
+    private static byte[] pem(final String type, final byte[] der) {
+        final String base64 = Base64.getMimeEncoder(64, "\n".getBytes(US_ASCII)).encodeToString(der);
+        return ("-----BEGIN " + type + "-----\n" + base64 + "\n-----END " + type + "-----\n").getBytes(US_ASCII);
+    }
+
+    private static byte[] concat(final byte[] a, final byte[] b) {
+        final byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.certs;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static java.util.Arrays.copyOfRange;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SessionTicketKeyLoaderTest {
+    private static final String PATH = "ticket.keys";
+
+    @Test
+    public void splits_keys_into_nginx_name_aes_and_hmac_parts() throws IOException {
+        final byte[] file = new byte[96];
+        for (int i = 0; i < file.length; i++) {
+            file[i] = (byte) i;
+        }
+
+        final List<SessionTicketKey> keys = load(file);
+
+        assertEquals(2, keys.size());
+        assertArrayEquals(copyOfRange(file, 0, 16), keys.get(0).getName());
+        assertArrayEquals(copyOfRange(file, 16, 32), keys.get(0).getAesKey());
+        assertArrayEquals(copyOfRange(file, 32, 48), keys.get(0).getHmacKey());
+        assertArrayEquals(copyOfRange(file, 48, 64), keys.get(1).getName());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejects_truncated_key_file() throws IOException {
+        load(new byte[47]);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejects_empty_key_file() throws IOException {
+        load(new byte[0]);
+    }
+
+    private static List<SessionTicketKey> load(final byte[] file) throws IOException {
+        return new SessionTicketKeyLoader(path -> file, new SessionTicketKeyConfig(PATH, 0)).load();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+public class InMemoryMetricsTest {
+    private final InMemoryMetrics subject = new InMemoryMetrics();
+
+    @Test
+    public void sums_counts() {
+        subject.count("counter", 1);
+        subject.count("counter", 2);
+        subject.count("other", 5);
+
+        assertEquals(3, subject.getCount("counter"));
+        assertEquals(5, subject.getCount("other"));
+    }
+
+    @Test
+    public void aggregates_distribution() {
+        subject.record("distribution", 7);
+        subject.record("distribution", -2);
+        subject.record("distribution", 4);
+
+        final InMemoryMetrics.Distribution distribution = subject.getDistribution("distribution");
+        assertEquals(3, distribution.getCount());
+        assertEquals(9, distribution.getSum());
+        assertEquals(7, distribution.getMax());
+    }
+
+    @Test
+    public void samples_gauge_when_read() {
+        final AtomicLong value = new AtomicLong(1);
+        subject.gauge("gauge", value::get);
+        value.set(42);
+
+        assertEquals(42, subject.getGauge("gauge"));
+    }
+
+    @Test
+    public void replaces_gauge() {
+        subject.gauge("gauge", () -> 1);
+        subject.gauge("gauge", () -> 2);
+
+        assertEquals(2, subject.getGauge("gauge"));
+    }
+
+    @Test
+    public void reports_zero_for_unknown_names() {
+        assertEquals(0, subject.getCount("unknown"));
+        assertEquals(0, subject.getGauge("unknown"));
+        assertEquals(0, subject.getDistribution("unknown").getCount());
+        assertEquals(0, subject.getDistribution("unknown").getSum());
+        assertEquals(0, subject.getDistribution("unknown").getMax());
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.dajudge.proxybase.util;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.SslHandler;
+
+/**
+ * Runs TLS handshakes between two {@link SslHandler}s in memory, so real SSL contexts can be tested without
+ * sockets.
+ */
+public final class EmbeddedTls {
+    private static final int MAX_ROUNDS = 20;
+
+    private EmbeddedTls() {
+    }
+
+    /**
+     * @return whether both sides completed the handshake successfully.
+     */
+    public static boolean handshake(final SslHandler client, final SslHandler server) {
+        final EmbeddedChannel clientChannel = new EmbeddedChannel(client);
+        final EmbeddedChannel serverChannel = new EmbeddedChannel(server);
+        try {
+            for (int i = 0; i < MAX_ROUNDS && !(client.handshakeFuture().isDone()
+                    && server.handshakeFuture().isDone()); i++) {
+                transfer(clientChannel, serverChannel);
+                transfer(serverChannel, clientChannel);
+            }
+            // TLS 1.3 sends session tickets after the handshake
+            transfer(serverChannel, clientChannel);
+            return client.handshakeFuture().isSuccess() && server.handshakeFuture().isSuccess();
+        } finally {
+            clientChannel.finishAndReleaseAll();
+            serverChannel.finishAndReleaseAll();
+        }
+    }
+
+    private static void transfer(final EmbeddedChannel from, final EmbeddedChannel to) {
+        ByteBuf data;
+        while ((data = from.readOutbound()) != null) {
+            if (!to.isActive()) {
+                data.release();
+                continue;
+            }
+            try {
+                to.writeInbound(data);
+            } catch (final RuntimeException e) {
+                // Handshake failures are reported by the handshake futures
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal UDP DNS server answering A queries for configured names, NXDOMAIN for unknown names and an empty
+ * answer for any other query type of a known name.
+ */
+public final class StubDnsServer implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(StubDnsServer.class);
+    private static final int TYPE_A = 1;
+    private static final int HEADER_LENGTH = 12;
+
+    private final DatagramSocket socket;
+    private final Map<String, Answer> answers = new ConcurrentHashMap<>();
+    private final AtomicInteger queries = new AtomicInteger();
+    private final Thread thread;
+
+    public StubDnsServer() throws SocketException {
+        socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        thread = new Thread(this::serve, "stub-dns");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+
+    public void answer(final String name, final String ipv4, final int ttlSecs) {
+        answers.put(name.toLowerCase(), new Answer(ipv4, ttlSecs));
+    }
+
+    public int getQueries() {
+        return queries.get();
+    }
+
+    private void serve() {
+        final byte[] buffer = new byte[512];
+        while (!socket.isClosed()) {
+            final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+                queries.incrementAndGet();
+                final byte[] response = respond(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()));
+                socket.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+            } catch (final IOException | RuntimeException e) {
+                if (!socket.isClosed()) {
+                    LOG.error("Failed to answer DNS query", e);
+                }
+            }
+        }
+    }
+
+    private byte[] respond(final ByteBuffer query) throws IOException {
+        final short id = query.getShort(0);
+        query.position(HEADER_LENGTH);
+        final StringBuilder name = new StringBuilder();
+        for (int length = query.get() & 0xff; length > 0; length = query.get() & 0xff) {
+            final byte[] label = new byte[length];
+            query.get(label);
+            name.append(name.length() > 0 ? "." : "").append(new String(label, "US-ASCII"));
+        }
+        final int type = query.getShort() & 0xffff;
+        query.getShort();
+        final int questionEnd = query.position();
+        final Answer answer = answers.get(name.toString().toLowerCase());
+        final boolean answered = answer != null && type == TYPE_A;
+        final ByteBuffer response = ByteBuffer.allocate(512);
+        response.putShort(id);
+        // Response, recursion desired and available, NXDOMAIN for unknown names
+        response.putShort((short) (answer == null ? 0x8183 : 0x8180));
+        response.putShort((short) 1);
+        response.putShort((short) (answered ? 1 : 0));
+        response.putShort((short) 0);
+        response.putShort((short) 0);
+        response.put(query.array(), query.arrayOffset() + HEADER_LENGTH, questionEnd - HEADER_LENGTH);
+        if (answered) {
+            // Pointer to the name in the question
+            response.putShort((short) 0xc00c);
+            response.putShort((short) TYPE_A);
+            response.putShort((short) 1);
+            response.putInt(answer.ttlSecs);
+            response.putShort((short) 4);
+            response.put(InetAddress.getByName(answer.ipv4).getAddress());
+        }
+        final byte[] result = new byte[response.position()];
+        response.flip();
+        response.get(result);
+        return result;
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Answer {
+        private final String ipv4;
+        private final int ttlSecs;
+
+        private Answer(final String ipv4, final int ttlSecs) {
+            this.ipv4 = ipv4;
+            this.ttlSecs = ttlSecs;
+        }
+    }
+}
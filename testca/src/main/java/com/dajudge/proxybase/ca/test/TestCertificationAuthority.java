@@ -32,29 +32,41 @@ import java.util.function.Supplier;
 public class TestCertificationAuthority extends CertificateAuthority {
     private static final String KEY_ALIAS = UUID.randomUUID().toString();
     private final Supplier<Long> clock;
+    private final TestKeyMode keyMode;
     private String keystoreType;
 
     public TestCertificationAuthority(final Supplier<Long> clock, final String dn, final String keystoreType) {
-        super(createCaKeyStore(dn, clock, keystoreType), KEY_ALIAS);
+        this(clock, dn, keystoreType, TestKeyMode.fromSystemProperty());
+    }
+
+    public TestCertificationAuthority(
+            final Supplier<Long> clock,
+            final String dn,
+            final String keystoreType,
+            final TestKeyMode keyMode
+    ) {
+        super(createCaKeyStore(dn, clock, keystoreType, keyMode), KEY_ALIAS);
         this.clock = clock;
+        this.keyMode = keyMode;
         this.keystoreType = keystoreType;
     }
 
     private static KeyStoreManager createCaKeyStore(
             final String dn,
             final Supplier<Long> clock,
-            final String keystoreType
+            final String keystoreType,
+            final TestKeyMode keyMode
     ) {
         final String keyPassword = UUID.randomUUID().toString();
         final KeyStoreWrapper wrapper = new KeyStoreWrapper(
                 Helpers.createKeyStore(keyStore -> {
-                    final KeyPair keyPair = Helpers.keyPair();
+                    final KeyPair keyPair = keyMode.nextKeyPair();
                     final X509Certificate cert = Helpers.selfSignedCert(
                             dn,
                             keyPair,
                             Helpers.now(clock),
                             Helpers.plus(Helpers.now(clock), Duration.ofDays(1)),
-                            "SHA256withRSA",
+                            keyMode.getSignatureAlgorithm(),
                             true
                     );
                     keyStore.setKeyEntry(
@@ -74,11 +86,12 @@ public class TestCertificationAuthority extends CertificateAuthority {
         return new KeyStoreWrapper(
                 createKeyStore(
                         dn,
-                        "SHA256withRSA",
+                        keyMode.getSignatureAlgorithm(),
                         keyPassword.toCharArray(),
                         Helpers.now(clock),
                         Helpers.plus(Helpers.now(clock), Duration.ofDays(1)),
-                        keyStoreType
+                        keyStoreType,
+                        keyMode::nextKeyPair
                 ),
                 keyPassword.toCharArray()
         );
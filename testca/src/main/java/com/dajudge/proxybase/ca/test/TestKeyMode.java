@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019-2021 Alex Stockinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.dajudge.proxybase.ca.test;
+
+import com.dajudge.proxybase.ca.Helpers;
+import com.dajudge.proxybase.ca.KeyPairPool;
+import com.dajudge.proxybase.ca.KeyType;
+
+import java.security.KeyPair;
+import java.util.Locale;
+
+/**
+ * Controls where the key pairs of test certificates come from. No key pair is ever handed out twice, so
+ * certificates of one test CA never validate against another; the modes only make key generation cheaper or
+ * move it off the calling thread.
+ *
+ * <p>The default is {@link #EC_P256}, whose keys are generated in a fraction of the time of RSA keys. It can be
+ * changed with the system property {@value #SYSTEM_PROPERTY}, e.g. to run the suite against RSA certificates.</p>
+ */
+public enum TestKeyMode {
+    /**
+     * Generates a fresh RSA-2048 key pair for every certificate.
+     */
+    FRESH_RSA(KeyType.RSA_2048),
+    /**
+     * Takes RSA-2048 key pairs from a pool which is filled on a background thread, falling back to generating
+     * them on the calling thread when the pool runs dry.
+     */
+    POOLED_RSA(KeyType.RSA_2048),
+    /**
+     * Generates a fresh EC P-256 key pair for every certificate.
+     */
+    EC_P256(KeyType.EC_P256);
+
+    public static final String SYSTEM_PROPERTY = "proxybase.testca.keyMode";
+    private static final int POOLED_KEY_PAIRS = 8;
+
+    private final KeyType keyType;
+
+    TestKeyMode(final KeyType keyType) {
+        this.keyType = keyType;
+    }
+
+    public static TestKeyMode fromSystemProperty() {
+        return valueOf(System.getProperty(SYSTEM_PROPERTY, EC_P256.name()).toUpperCase(Locale.ROOT));
+    }
+
+    public String getSignatureAlgorithm() {
+        return keyType.getSignatureAlgorithm();
+    }
+
+    KeyPair nextKeyPair() {
+        return this == POOLED_RSA ? PooledKeyPairs.POOL.get() : Helpers.keyPair(keyType);
+    }
+
+    /**
+     * Holds the pool, so its background thread is only started when the mode is actually used.
+     */
+    private static class PooledKeyPairs {
+        private static final KeyPairPool POOL = new KeyPairPool(KeyType.RSA_2048, POOLED_KEY_PAIRS);
+    }
+}